@@ -0,0 +1,272 @@
+package com.sharkcontrol.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the access token, its expiry and the refresh token.
+ *
+ * The token is renewed in the background {@link #REFRESH_AHEAD_MS} before
+ * it expires, so requests normally never see an expired one. If one still
+ * gets a 401 (clock skew, token revoked), {@link #refreshAfter} renews it:
+ * concurrent callers share one refresh and get its result. A refresh the
+ * server rejects as invalid_grant or invalid_client ends the session,
+ * {@link #isSignedIn()} turns false and the user has to log in again; any
+ * other failure (network, 429, 5xx) keeps the tokens for the next try.
+ * A refresh answer that arrives after a sign-out, or after a new login, is
+ * dropped.
+ */
+public final class AuthManager {
+
+    private static final String PREFS_NAME        = "SharkControl";
+    private static final String KEY_ACCESS_TOKEN  = "access_token";
+    private static final String KEY_REFRESH_TOKEN = "refresh_token";
+    private static final String KEY_EXPIRES_AT    = "token_expires_at";
+
+    static final long REFRESH_AHEAD_MS = 5 * 60 * 1000L;
+    private static final long MIN_DELAY_MS = 1000;
+    private static final long RETRY_MS = 60 * 1000L;
+
+    private static AuthManager instance;
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "auth-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** One refresh; everyone who needs a new token waits for the same one. */
+    private static final class Flight {
+        boolean done;
+        String token;
+        IOException error;
+    }
+
+    private final SharedPreferences prefs;
+    private final HttpTransport transport;
+    private String accessToken, refreshToken;
+    private long expiresAt; // 0 = unknown, e.g. saved by an older version
+    private Flight flight;
+    private ScheduledFuture<?> scheduled;
+    private long refreshes, failures;
+
+    private AuthManager(SharedPreferences prefs, HttpTransport transport) {
+        this.prefs = prefs;
+        this.transport = transport;
+        accessToken = prefs.getString(KEY_ACCESS_TOKEN, null);
+        refreshToken = emptyToNull(prefs.getString(KEY_REFRESH_TOKEN, null));
+        expiresAt = prefs.getLong(KEY_EXPIRES_AT, 0);
+        scheduleRefresh();
+    }
+
+    public static AuthManager get(Context context) {
+        return get(context, UrlConnectionTransport.get());
+    }
+
+    static synchronized AuthManager get(Context context, HttpTransport transport) {
+        if (instance == null) {
+            instance = new AuthManager(context.getApplicationContext()
+                    .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE), transport);
+        }
+        return instance;
+    }
+
+    public synchronized boolean isSignedIn() { return accessToken != null; }
+
+    /** Stores the tokens from a login; {@code expiresInSeconds} <= 0 if the server didn't say. */
+    public void signedIn(String access, String refresh, long expiresInSeconds) {
+        synchronized (this) {
+            accessToken = access;
+            refreshToken = emptyToNull(refresh);
+            expiresAt = expiresInSeconds > 0 ? System.currentTimeMillis() + expiresInSeconds * 1000 : 0;
+            prefs.edit()
+                    .putString(KEY_ACCESS_TOKEN, accessToken)
+                    .putString(KEY_REFRESH_TOKEN, refreshToken != null ? refreshToken : "")
+                    .putLong(KEY_EXPIRES_AT, expiresAt)
+                    .apply();
+        }
+        scheduleRefresh();
+    }
+
+    /** Stores the tokens of an OAuth token response. */
+    void signedIn(JSONObject tokenResponse) throws Exception {
+        String refresh;
+        synchronized (this) { refresh = refreshToken; } // a refresh response may not rotate it
+        signedIn(tokenResponse.getString("access_token"), tokenResponse.optString("refresh_token", refresh),
+                tokenResponse.optLong("expires_in", 0));
+    }
+
+    public void signOut() {
+        synchronized (this) {
+            accessToken = refreshToken = null;
+            expiresAt = 0;
+            prefs.edit().remove(KEY_ACCESS_TOKEN).remove(KEY_REFRESH_TOKEN).remove(KEY_EXPIRES_AT).apply();
+        }
+        scheduleRefresh();
+    }
+
+    /**
+     * The token for the next request, or null if signed out. An expired
+     * token is renewed first if it can be; otherwise the request goes out
+     * with it and {@link #refreshAfter} handles the 401.
+     */
+    String token() {
+        String token;
+        synchronized (this) {
+            token = accessToken;
+            if (token == null || expiresAt == 0 || refreshToken == null
+                    || System.currentTimeMillis() < expiresAt) return token;
+        }
+        try {
+            return refreshAfter(token);
+        } catch (IOException e) {
+            synchronized (this) { return accessToken; }
+        }
+    }
+
+    /**
+     * A token other than {@code rejected}: the one someone else renewed it to
+     * meanwhile, or a new one from a refresh. Throws if there is none.
+     */
+    String refreshAfter(String rejected) throws IOException {
+        Flight f;
+        boolean lead = false;
+        synchronized (this) {
+            if (accessToken == null) throw new IOException("HTTP 401: signed out");
+            if (!accessToken.equals(rejected)) return accessToken;
+            if (refreshToken == null) {
+                signOut();
+                throw new IOException("HTTP 401: session expired");
+            }
+            f = flight;
+            if (f == null) {
+                f = flight = new Flight();
+                lead = true;
+            }
+        }
+        if (lead) refresh(f);
+        synchronized (this) {
+            try {
+                while (!f.done) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("token refresh interrupted");
+            }
+        }
+        if (f.error != null) throw f.error;
+        return f.token;
+    }
+
+    private void refresh(Flight f) {
+        String refresh;
+        synchronized (this) { refresh = refreshToken; }
+        String token = null;
+        IOException error = null;
+        try {
+            token = requestToken(refresh);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            if (error == null) refreshes++; else failures++;
+            f.token = token;
+            f.error = error;
+            f.done = true;
+            flight = null;
+            notifyAll();
+        }
+    }
+
+    private String requestToken(String refresh) throws IOException {
+        String body = "grant_type=refresh_token"
+                + "&client_id=" + URLEncoder.encode(AylaApiClient.CLIENT_ID, "UTF-8")
+                + "&refresh_token=" + URLEncoder.encode(refresh, "UTF-8");
+        HttpTransport.Request req = HttpTransport.Request.post(AylaApiClient.AUTH_BASE + "/oauth/token",
+                "application/x-www-form-urlencoded", body.getBytes(StandardCharsets.UTF_8))
+                .header("Accept", "application/json")
+                .timeout(15000);
+        int code;
+        String response;
+        try (HttpTransport.Response res = transport.execute(req)) {
+            code = res.code();
+            response = res.string();
+        }
+        if ((code == 400 || code == 401) && isRejection(response)) {
+            // The refresh token is no good any more, unless a new login replaced it meanwhile
+            synchronized (this) { if (refresh.equals(refreshToken)) signOut(); }
+            throw new IOException("HTTP 401: session expired");
+        }
+        if (code != 200) throw new IOException("HTTP " + code + ": " + response);
+        JSONObject tokens;
+        try {
+            tokens = new JSONObject(response);
+            tokens.getString("access_token");
+        } catch (Exception e) {
+            throw new IOException("Malformed token response", e);
+        }
+        synchronized (this) {
+            // Signed out or in again while this was in flight: the answer belongs to a session that's gone
+            if (refresh.equals(refreshToken)) {
+                try {
+                    signedIn(tokens);
+                } catch (Exception e) {
+                    throw new IOException("Malformed token response", e);
+                }
+            }
+            if (accessToken == null) throw new IOException("HTTP 401: signed out");
+            return accessToken;
+        }
+    }
+
+    /** True for the OAuth errors that mean the refresh token or client was refused, not a passing failure. */
+    private static boolean isRejection(String response) {
+        try {
+            String error = new JSONObject(response).optString("error");
+            return "invalid_grant".equals(error) || "invalid_client".equals(error);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /** Renews the token in the background shortly before it expires. */
+    private synchronized void scheduleRefresh() {
+        if (accessToken == null || refreshToken == null || expiresAt == 0) {
+            if (scheduled != null) scheduled.cancel(false);
+            scheduled = null;
+            return;
+        }
+        schedule(Math.max(MIN_DELAY_MS, expiresAt - REFRESH_AHEAD_MS - System.currentTimeMillis()));
+    }
+
+    private synchronized void schedule(long delayMs) {
+        if (scheduled != null) scheduled.cancel(false);
+        String token = accessToken;
+        scheduled = timer.schedule(() -> {
+            try {
+                refreshAfter(token);
+            } catch (IOException e) {
+                // Network trouble: try again while the token is still ours; a rejected refresh signed us out
+                synchronized (this) {
+                    if (refreshToken != null && token.equals(accessToken)) schedule(RETRY_MS);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized String stats() {
+        return "refreshes=" + refreshes + " refreshFailures=" + failures;
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+}
@@ -2,53 +2,206 @@ package com.sharkcontrol.api;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import com.sharkcontrol.model.CoverageMap;
 import com.sharkcontrol.model.MapData;
+import com.sharkcontrol.model.MapDiff;
+import com.sharkcontrol.model.MapTimings;
 import com.sharkcontrol.model.RobotStatus;
+import com.sharkcontrol.model.RoomSegmenter;
 import com.sharkcontrol.model.Schedule;
 import com.sharkcontrol.model.SharkDevice;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
 
 public class AylaApiClient {
 
-    private static final String AUTH_BASE    = "https://logineu.sharkninja.com";
+    static final String AUTH_BASE            = "https://logineu.sharkninja.com";
     private static final String API_BASE     = "https://ads-field-eu.aylanetworks.com";
-    private static final String CLIENT_ID    = "rKDx9O18dBrY3eoJMTkRiBZHDvd9Mx1I";
+    private static final String STREAM_BASE  = "wss://stream-field-eu.aylanetworks.com";
+    static final String CLIENT_ID            = "rKDx9O18dBrY3eoJMTkRiBZHDvd9Mx1I";
     private static final String REDIRECT_URI = "com.sharkninja.shark://com.sharkninja.shark/callback";
     private static final String SCOPE        = "openid profile email offline_access read:users read:current_user read:user_idp_tokens";
 
     private static final String PREFS_NAME        = "SharkControl";
-    private static final String KEY_ACCESS_TOKEN  = "access_token";
-    private static final String KEY_REFRESH_TOKEN = "refresh_token";
+    private static final String KEY_LAN_MODE      = "lan_mode";
 
     private final Context context;
-    private final ExecutorService executor;
-    private String accessToken;
+    private final RequestScheduler scheduler;
+    private final HttpTransport transport;
+    private final DeviceChannel channel;
+    private final LocalCache cache;
+    private final AuthManager auth;
+    private volatile boolean closed;
 
     public interface Callback<T> {
         void onSuccess(T result);
         void onError(String error);
+
+        /**
+         * Last known value from the local cache, delivered before the network
+         * refresh so a screen can show something right away. Followed by
+         * onSuccess or onError once the refresh finishes.
+         */
+        default void onCached(T result) {}
+    }
+
+    /** Live status updates; called on a background thread. */
+    public interface StatusListener {
+        /** A status with at least one changed field (see {@link RobotStatus#getChangedFields()}). */
+        void onStatus(RobotStatus status);
+
+        /** The push stream went up or down; while down, callers should poll. */
+        void onLiveChanged(boolean live);
+    }
+
+    public interface Subscription {
+        void cancel();
     }
 
     public AylaApiClient(Context context) {
+        this(context, UrlConnectionTransport.get());
+    }
+
+    public AylaApiClient(Context context, HttpTransport transport) {
         this.context = context;
-        this.executor = Executors.newCachedThreadPool();
-        this.accessToken = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
-                .getString(KEY_ACCESS_TOKEN, null);
+        this.transport = transport;
+        this.scheduler = RequestScheduler.acquire();
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.auth = AuthManager.get(context, transport);
+        LanChannel.get().setKeySource(this::fetchLanKey);
+        LanChannel.get().setEnabled(prefs.getBoolean(KEY_LAN_MODE, false));
+        this.channel = new FailoverChannel(LanChannel.get(), new CloudChannel());
+        this.cache = LocalCache.get(context);
+    }
+
+    /** False once the session is over (signed out, or the token could not be renewed). */
+    public boolean isSignedIn() { return auth.isSignedIn(); }
+
+    /** Commands and status reads go to the robot on the local network first, falling back to the cloud. */
+    public void setLanModeEnabled(boolean enabled) {
+        LanChannel.get().setEnabled(enabled);
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(KEY_LAN_MODE, enabled).apply();
+    }
+
+    public boolean isLanModeEnabled() { return LanChannel.get().isEnabled(); }
+
+    /** Forgets all cached devices, status, maps, schedules and coverage history, e.g. on logout. */
+    public void clearLocalData() {
+        ScheduleRepository.clearAll();
+        cache.clear();
+        StatusCache.get().clear();
+        CoverageMap.deleteAll(coverageDir());
+    }
+
+    /** How often each map cell was cleaned across runs; null if the history can't be opened. */
+    public CoverageMap getCoverage(String dsn) {
+        try {
+            return CoverageMap.forDevice(coverageDir(), dsn);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Files, not cache: the history can't be fetched again
+    private File coverageDir() { return new File(context.getApplicationContext().getFilesDir(), "coverage"); }
+
+    /** Releases the shared worker pool; call from the owning Activity's onDestroy. */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        RequestScheduler.release(scheduler);
+    }
+
+    private <T> void enqueue(RequestScheduler.Lane lane, String key, Callback<T> callback, Runnable work) {
+        if (closed) return;
+        scheduler.submit(lane, key, work, () -> callback.onError("Zu viele Anfragen, bitte später erneut versuchen"));
+    }
+
+    private interface Fetch<T> { T run() throws Exception; }
+
+    /**
+     * Runs a read through the single-flight layer: concurrent callers asking
+     * for the same key share one request and one parsed result, so treat
+     * results as read-only.
+     */
+    private <T> void fetchShared(RequestScheduler.Lane lane, String key, Callback<T> callback, Fetch<T> fetch) {
+        if (closed) return;
+        SingleFlight flights = scheduler.flights;
+        if (!flights.join(key, callback)) return;
+        scheduler.submit(lane, key, () -> {
+            T result;
+            try {
+                result = fetch.run();
+            } catch (Exception e) {
+                flights.fail(key, e.getMessage());
+                return;
+            }
+            flights.succeed(key, result);
+        }, () -> flights.fail(key, "Zu viele Anfragen, bitte später erneut versuchen"));
+    }
+
+    /**
+     * Stale-while-revalidate read: a cached value within its TTL is the
+     * result; an older one goes to {@link Callback#onCached} first and the
+     * network fetch runs through {@link #fetchShared}. The fetch is
+     * responsible for writing its result back with {@link #remember}.
+     */
+    private <T> void fetchCached(RequestScheduler.Lane lane, String key, LocalCache.Kind<T> kind, String dsn,
+                                 Callback<T> callback, Fetch<T> fetch) {
+        fetchCached(lane, key, kind, dsn, false, callback, fetch);
+    }
+
+    /** As above; {@code force} treats a fresh cached value as stale, for explicit refreshes. */
+    private <T> void fetchCached(RequestScheduler.Lane lane, String key, LocalCache.Kind<T> kind, String dsn,
+                                 boolean force, Callback<T> callback, Fetch<T> fetch) {
+        if (closed) return;
+        Runnable revalidate = () -> fetchShared(lane, key, callback, fetch);
+        scheduler.submit(RequestScheduler.Lane.LOCAL, null, () -> {
+            LocalCache.Entry<T> cached = cache.read(kind, dsn);
+            if (cached != null && cached.isFresh() && !force) { callback.onSuccess(cached.value); return; }
+            if (cached != null) callback.onCached(cached.value);
+            revalidate.run();
+        }, revalidate);
+    }
+
+    private <T> T remember(LocalCache.Kind<T> kind, String dsn, T value) {
+        cache.write(kind, dsn, value);
+        return value;
+    }
+
+    /** Persists a status that changed, so the next cold start can show it. */
+    void rememberStatus(String dsn, RobotStatus status) {
+        if (status.getChangedFields() != 0) cache.write(LocalCache.STATUS, dsn, status);
+    }
+
+    /** Transport, scheduler and coalescing counters, for diagnostics. */
+    public String getRequestStats() {
+        return transport.stats() + " dropped=" + scheduler.droppedCount() + " " + scheduler.flights.stats()
+                + " " + auth.stats();
+    }
+
+    /** Schedule write batching for robot {@code dsn}: batches, edits and detected conflicts. */
+    public String getScheduleStats(String dsn) {
+        return ScheduleMutations.forDevice(dsn).stats();
     }
 
     public void signIn(String email, String password, Callback<String> callback) {
-        executor.execute(() -> {
+        enqueue(RequestScheduler.Lane.COMMAND, null, callback, () -> {
             try {
                 String body = "grant_type=password"
                         + "&client_id=" + URLEncoder.encode(CLIENT_ID, "UTF-8")
@@ -56,29 +209,21 @@ public class AylaApiClient {
                         + "&password=" + URLEncoder.encode(password, "UTF-8")
                         + "&scope=" + URLEncoder.encode(SCOPE, "UTF-8");
 
-                URL url = new URL(AUTH_BASE + "/oauth/token");
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                conn.setRequestProperty("Accept", "application/json");
-                conn.setDoOutput(true);
-                conn.setConnectTimeout(15000);
-                conn.setReadTimeout(15000);
-                conn.getOutputStream().write(body.getBytes(StandardCharsets.UTF_8));
-
-                int code = conn.getResponseCode();
-                String response = readStream(code < 400 ? conn.getInputStream() : conn.getErrorStream());
+                HttpTransport.Request req = HttpTransport.Request.post(AUTH_BASE + "/oauth/token",
+                        "application/x-www-form-urlencoded", body.getBytes(StandardCharsets.UTF_8))
+                        .header("Accept", "application/json")
+                        .timeout(15000);
+                int code;
+                String response;
+                try (HttpTransport.Response res = transport.execute(req)) {
+                    code = res.code();
+                    response = res.string();
+                }
 
                 if (code == 200) {
                     JSONObject json = new JSONObject(response);
-                    String token = json.getString("access_token");
-                    this.accessToken = token;
-                    SharedPreferences.Editor ed = context
-                            .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
-                    ed.putString(KEY_ACCESS_TOKEN, token);
-                    ed.putString(KEY_REFRESH_TOKEN, json.optString("refresh_token", ""));
-                    ed.apply();
-                    callback.onSuccess(token);
+                    auth.signedIn(json);
+                    callback.onSuccess(json.getString("access_token"));
                 } else {
                     try {
                         JSONObject err = new JSONObject(response);
@@ -95,71 +240,170 @@ public class AylaApiClient {
     }
 
     public void getDevices(Callback<List<SharkDevice>> callback) {
-        executor.execute(() -> {
+        // Cached and fetched lists both tell LanChannel where the robots are.
+        Callback<List<SharkDevice>> onDevices = new Callback<List<SharkDevice>>() {
+            @Override public void onSuccess(List<SharkDevice> devices) { registerLan(devices); callback.onSuccess(devices); }
+            @Override public void onError(String error) { callback.onError(error); }
+            @Override public void onCached(List<SharkDevice> devices) { registerLan(devices); callback.onCached(devices); }
+        };
+        fetchCached(RequestScheduler.Lane.STATUS, "devices", LocalCache.DEVICES, LocalCache.ACCOUNT, onDevices, () -> {
+            String response = get(API_BASE + "/apiv1/devices.json");
+            JSONArray devicesJson;
             try {
-                String response = get(API_BASE + "/apiv1/devices.json");
-                JSONArray devicesJson;
-                try {
-                    devicesJson = new JSONArray(response);
-                } catch (Exception e) {
-                    devicesJson = new JSONObject(response).optJSONArray("devices");
-                    if (devicesJson == null) devicesJson = new JSONArray();
-                }
-
-                List<SharkDevice> devices = new ArrayList<>();
-                for (int i = 0; i < devicesJson.length(); i++) {
-                    JSONObject d = devicesJson.getJSONObject(i);
-                    if (d.has("device")) d = d.getJSONObject("device");
-                    SharkDevice device = new SharkDevice();
-                    device.setDsn(d.optString("dsn", d.optString("serial_number")));
-                    device.setProductName(d.optString("product_name", d.optString("name", "Shark Robot")));
-                    device.setModel(d.optString("oem_model", d.optString("model")));
-                    device.setConnected("Online".equalsIgnoreCase(d.optString("connection_status")) || d.optBoolean("connected"));
-                    devices.add(device);
-                }
-                callback.onSuccess(devices);
+                devicesJson = new JSONArray(response);
             } catch (Exception e) {
-                callback.onError(e.getMessage());
+                devicesJson = new JSONObject(response).optJSONArray("devices");
+                if (devicesJson == null) devicesJson = new JSONArray();
             }
+
+            List<SharkDevice> devices = new ArrayList<>();
+            for (int i = 0; i < devicesJson.length(); i++) {
+                JSONObject d = devicesJson.getJSONObject(i);
+                if (d.has("device")) d = d.getJSONObject("device");
+                SharkDevice device = new SharkDevice();
+                device.setDsn(d.optString("dsn", d.optString("serial_number")));
+                device.setProductName(d.optString("product_name", d.optString("name", "Shark Robot")));
+                device.setModel(d.optString("oem_model", d.optString("model")));
+                device.setConnected("Online".equalsIgnoreCase(d.optString("connection_status")) || d.optBoolean("connected"));
+                device.setLanIp(d.optBoolean("lan_enabled") ? d.optString("lan_ip", null) : null);
+                devices.add(device);
+            }
+            return remember(LocalCache.DEVICES, LocalCache.ACCOUNT, devices);
         });
     }
 
+    private static void registerLan(List<SharkDevice> devices) {
+        for (SharkDevice d : devices) LanChannel.get().register(d.getDsn(), d.getLanIp());
+    }
+
     public void getDeviceStatus(String dsn, Callback<RobotStatus> callback) {
-        executor.execute(() -> {
-            try {
-                String response = get(API_BASE + "/apiv1/devices.json/" + dsn + "/properties");
-                JSONArray props;
-                try {
-                    props = new JSONArray(response);
-                } catch (Exception e) {
-                    props = new JSONObject(response).optJSONArray("properties");
-                    if (props == null) props = new JSONArray();
-                }
+        fetchCached(RequestScheduler.Lane.STATUS, dsn + "/status", LocalCache.STATUS, dsn, callback, () -> fetchStatus(dsn));
+    }
 
-                RobotStatus status = new RobotStatus();
-                for (int i = 0; i < props.length(); i++) {
-                    JSONObject p = props.getJSONObject(i);
-                    if (p.has("property")) p = p.getJSONObject("property");
-                    String name = p.optString("name");
-                    Object value = p.opt("value");
-                    switch (name) {
-                        case "GET_Operating_Mode":              status.setOperatingMode(String.valueOf(value)); break;
-                        case "GET_Battery_Capacity":            status.setBatteryCapacity(parseIntSafe(value)); break;
-                        case "GET_Power_Mode":                  status.setPowerMode(String.valueOf(value));     break;
-                        case "GET_Cleaning_Statistics_Minutes": status.setCleaningTime(parseIntSafe(value));    break;
-                        case "GET_Error_Code":                  status.setErrorCode(parseIntSafe(value));       break;
-                        case "GET_Charging_Status":             status.setCharging(parseIntSafe(value) > 0);    break;
+    /**
+     * Status for several robots at once. The Ayla API has no multi-DSN property
+     * endpoint, so this fans out one filtered request per DSN on the status lane
+     * and reports once all of them have answered. DSNs that fail are left out.
+     */
+    public void getDeviceStatuses(List<String> dsns, Callback<Map<String, RobotStatus>> callback) {
+        Map<String, RobotStatus> results = new LinkedHashMap<>();
+        if (dsns.isEmpty()) { callback.onSuccess(results); return; }
+        int[] remaining = {dsns.size()};
+        String[] lastError = {null};
+        for (String dsn : dsns) {
+            getDeviceStatus(dsn, new Callback<RobotStatus>() {
+                @Override public void onSuccess(RobotStatus status) { done(dsn, status, null); }
+                @Override public void onError(String error) { done(dsn, null, error); }
+
+                private void done(String d, RobotStatus status, String error) {
+                    boolean last;
+                    synchronized (results) {
+                        if (status != null) results.put(d, status); else lastError[0] = error;
+                        last = --remaining[0] == 0;
                     }
+                    if (!last) return;
+                    if (results.isEmpty() && lastError[0] != null) callback.onError(lastError[0]);
+                    else callback.onSuccess(results);
                 }
-                callback.onSuccess(status);
-            } catch (Exception e) {
-                callback.onError(e.getMessage());
-            }
+            });
+        }
+    }
+
+    /** Fetches only the properties in {@code query} with a single filtered request. */
+    public void getProperties(String dsn, PropertyQuery query, Callback<PropertyValues> callback) {
+        fetchShared(RequestScheduler.Lane.STATUS, dsn + "/props?" + query.toQueryString(), callback, () -> {
+            PropertyValues values = new PropertyValues(query);
+            channel.readProperties(dsn, query, (index, v) -> values.set(index, v.asString()));
+            return values;
+        });
+    }
+
+    /**
+     * Subscribes to live status changes of {@code device} over the Ayla
+     * datastream. Keeps reconnecting until {@link Subscription#cancel()}.
+     */
+    public Subscription subscribeStatus(SharkDevice device, StatusListener listener) {
+        StatusStream stream = new StatusStream(this, device.getDsn(), device.getModel(), listener);
+        stream.start();
+        return stream;
+    }
+
+    /** Creates a datapoint subscription and returns {id, stream_key}. */
+    String[] createStreamSubscription(String dsn, String oemModel) throws Exception {
+        JSONObject sub = new JSONObject()
+                .put("dsn", dsn)
+                .put("oem_model", oemModel)
+                .put("name", "sharkcontrol-" + dsn)
+                .put("property_name", "*")
+                .put("subscription_type", "datapoint")
+                .put("batch_size", 1);
+        JSONObject body = new JSONObject().put("subscription", sub);
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        try (HttpTransport.Response res = authorized(() -> HttpTransport.Request.post(API_BASE + "/apiv1/subscriptions.json",
+                "application/json", bytes).header("Accept", "application/json"))) {
+            String response = res.string();
+            if (!res.isSuccessful()) throw new IOException("HTTP " + res.code() + ": " + response);
+            JSONObject json = new JSONObject(response);
+            if (json.has("subscription")) json = json.getJSONObject("subscription");
+            return new String[]{json.optString("id"), json.getString("stream_key")};
+        }
+    }
+
+    void deleteStreamSubscription(String id) {
+        // Best effort; Ayla expires idle subscriptions on its own
+        try {
+            authorized(() -> HttpTransport.Request.delete(API_BASE + "/apiv1/subscriptions/" + id + ".json")).close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    String streamUrl(String streamKey) {
+        return STREAM_BASE + "/stream?stream_key=" + streamKey;
+    }
+
+    RobotStatus fetchStatus(String dsn) throws Exception {
+        StatusCache.Update update = StatusCache.get().new Update(dsn);
+        channel.readProperties(dsn, PropertyQuery.STATUS, update);
+        RobotStatus status = update.commit();
+        rememberStatus(dsn, status);
+        return status;
+    }
+
+    /** The LAN key of robot {@code dsn}, which {@link LanChannel} needs for the key exchange. */
+    private LanChannel.Key fetchLanKey(String dsn) throws Exception {
+        JSONObject json = new JSONObject(get(API_BASE + "/apiv1/dsns/" + dsn + "/lan.json"));
+        JSONObject lan = json.has("lanip") ? json.getJSONObject("lanip") : json;
+        if (!"enable".equals(lan.optString("status", "enable"))) throw new IOException("LAN mode is off on the robot");
+        return new LanChannel.Key(lan.getInt("lanip_key_id"), lan.getString("lanip_key"), lan.optInt("keep_alive", 30));
+    }
+
+    /** The Ayla cloud API as a {@link DeviceChannel}. */
+    private final class CloudChannel implements DeviceChannel {
+        @Override
+        public boolean isAvailable(String dsn) { return true; }
+
+        @Override
+        public void readProperties(String dsn, PropertyQuery query, PropertyParser.Handler handler) throws Exception {
+            fetchProperties(dsn, query, handler);
+        }
+
+        @Override
+        public void writeProperty(String dsn, String name, Object value) throws Exception {
+            JSONObject body = new JSONObject();
+            body.put("datapoint", new JSONObject().put("value", value));
+            postJson(API_BASE + "/apiv1/devices.json/" + dsn + "/properties/" + name + "/datapoints", body);
+        }
+    }
+
+    private void fetchProperties(String dsn, PropertyQuery query, PropertyParser.Handler handler) throws Exception {
+        get(API_BASE + "/apiv1/devices.json/" + dsn + "/properties?" + query.toQueryString(), in -> {
+            new PropertyParser(query.names).parse(in, handler);
+            return null;
         });
     }
 
     public void sendCommand(String dsn, String command, Callback<Void> callback) {
-        executor.execute(() -> {
+        enqueue(RequestScheduler.Lane.COMMAND, null, callback, () -> {
             try {
                 String val;
                 switch (command) {
@@ -169,9 +413,7 @@ public class AylaApiClient {
                     case "dock":  val = "return"; break;
                     default: callback.onError("Unbekannter Befehl"); return;
                 }
-                JSONObject body = new JSONObject();
-                body.put("datapoint", new JSONObject().put("value", val));
-                postJson(API_BASE + "/apiv1/devices.json/" + dsn + "/properties/SET_Operating_Mode/datapoints", body);
+                channel.writeProperty(dsn, "SET_Operating_Mode", val);
                 callback.onSuccess(null);
             } catch (Exception e) {
                 callback.onError(e.getMessage());
@@ -180,56 +422,83 @@ public class AylaApiClient {
     }
 
     public void setPowerMode(String dsn, String mode, Callback<Void> callback) {
-        executor.execute(() -> {
+        enqueue(RequestScheduler.Lane.COMMAND, null, callback, () -> {
             try {
-                JSONObject body = new JSONObject();
-                body.put("datapoint", new JSONObject().put("value", mode));
-                postJson(API_BASE + "/apiv1/devices.json/" + dsn + "/properties/SET_Power_Mode/datapoints", body);
+                channel.writeProperty(dsn, "SET_Power_Mode", mode);
                 callback.onSuccess(null);
             } catch (Exception e) { callback.onError(e.getMessage()); }
         });
     }
 
     public void getMapData(String dsn, Callback<MapData> callback) {
-        executor.execute(() -> {
-            try {
-                String response = get(API_BASE + "/apiv1/devices.json/" + dsn + "/properties"
-                        + "?names[]=GET_Robot_Map_Data&names[]=GET_Robot_Position&names[]=GET_Charging_Station_Position");
-                JSONArray props = new JSONArray(response);
-                String mapRaw = null, robotPos = null, chargePos = null;
-                for (int i = 0; i < props.length(); i++) {
-                    JSONObject p = props.getJSONObject(i);
-                    if (p.has("property")) p = p.getJSONObject("property");
-                    switch (p.optString("name")) {
-                        case "GET_Robot_Map_Data":            mapRaw   = p.optString("value"); break;
-                        case "GET_Robot_Position":            robotPos = p.optString("value"); break;
-                        case "GET_Charging_Station_Position": chargePos = p.optString("value"); break;
+        getMapData(dsn, false, callback);
+    }
+
+    /** {@code force} downloads the map even if the cached one is still fresh. */
+    public void getMapData(String dsn, boolean force, Callback<MapData> callback) {
+        fetchCached(RequestScheduler.Lane.BULK, dsn + "/map", LocalCache.MAP, dsn, force, callback, () -> {
+            MapData m = new MapData();
+            MapTimings timings = m.getTimings();
+            String[] raw = new String[PropertyQuery.MAP.size()];
+            MapGridDecoder decoder = new MapGridDecoder();
+            long start = System.nanoTime();
+            fetchProperties(dsn, PropertyQuery.MAP, new PropertyParser.StreamingHandler() {
+                @Override public boolean wantsStream(int index) { return index == 0; }
+
+                @Override
+                public void onPropertyStream(int index, JsonPullReader r) throws IOException {
+                    long t = System.nanoTime();
+                    try (Reader doc = r.nextStringReader()) {
+                        decoder.decode(doc, m);
                     }
+                    timings.add(MapTimings.DECODE, System.nanoTime() - t);
                 }
-                callback.onSuccess(parseMapData(mapRaw, robotPos, chargePos));
-            } catch (Exception e) { callback.onError(e.getMessage()); }
+
+                @Override
+                public void onProperty(int index, PropertyParser.Value v) {
+                    if (index != 0) { raw[index] = v.asString(); return; }
+                    // Value came before the name, so it was buffered after all.
+                    long t = System.nanoTime();
+                    try {
+                        if (!v.isNull()) decoder.decode(new StringReader(v.asString()), m);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    timings.add(MapTimings.DECODE, System.nanoTime() - t);
+                }
+            });
+            long fetched = System.nanoTime();
+            timings.set(MapTimings.FETCH, fetched - start);
+            LocalCache.Entry<MapData> previous = cache.read(LocalCache.MAP, dsn);
+            applyPrevious(m, previous != null ? previous.value : null);
+            m.setRooms(RoomSegmenter.forDevice(dsn).segment(m));
+            CoverageMap coverage = getCoverage(dsn);
+            if (coverage != null) {
+                try {
+                    coverage.merge(m);
+                } catch (IOException ignored) {
+                    // the map itself is fine; the history catches up on the next refresh
+                }
+            }
+            timings.set(MapTimings.ANALYSE, System.nanoTime() - fetched);
+            parsePositions(m, raw[1], raw[2]);
+            return remember(LocalCache.MAP, dsn, m);
         });
     }
 
-    private MapData parseMapData(String mapRaw, String robotPos, String chargePos) throws Exception {
-        MapData m = new MapData();
-        if (mapRaw == null || mapRaw.isEmpty() || "null".equals(mapRaw)) return m;
-        JSONObject mj = new JSONObject(mapRaw);
-        int w = mj.optInt("width", 64), h = mj.optInt("height", 64);
-        String b64 = mj.optString("grid", "");
-        int[][] grid = new int[h][w];
-        if (!b64.isEmpty()) {
-            byte[] bytes = android.util.Base64.decode(b64, android.util.Base64.DEFAULT);
-            int cleaned = 0;
-            for (int r = 0; r < h; r++) for (int c = 0; c < w; c++) {
-                if (r*w+c >= bytes.length) break;
-                int v = bytes[r*w+c] & 0xFF;
-                grid[r][c] = v==0 ? MapData.CELL_UNKNOWN : v==1 ? MapData.CELL_FLOOR : MapData.CELL_WALL;
-                if (v==1) cleaned++;
-            }
-            m.setCleanedCells(cleaned);
-        }
-        m.setGrid(grid);
+    /**
+     * The backend always sends the whole grid, so the decoded map is compared
+     * against {@code previous} cell by cell: the changed regions are recorded
+     * for the view, and an identical grid shares the previous cells.
+     */
+    private static void applyPrevious(MapData m, MapData previous) {
+        if (!m.hasData()) return;
+        MapDiff diff = MapDiff.between(previous, m);
+        if (diff != null && diff.isEmpty()) m.setGrid(previous.getWidth(), previous.getHeight(), previous.getCells());
+        m.setChanges(diff);
+    }
+
+    private void parsePositions(MapData m, String robotPos, String chargePos) {
         if (robotPos != null && !robotPos.isEmpty() && !"null".equals(robotPos)) {
             String[] p = robotPos.split(",");
             if (p.length >= 2) { m.setRobotX(Integer.parseInt(p[0].trim())); m.setRobotY(Integer.parseInt(p[1].trim())); }
@@ -239,113 +508,171 @@ public class AylaApiClient {
             String[] p = chargePos.split(",");
             if (p.length >= 2) { m.setChargeX(Integer.parseInt(p[0].trim())); m.setChargeY(Integer.parseInt(p[1].trim())); }
         }
-        return m;
     }
 
     public void getSchedules(String dsn, Callback<List<Schedule>> callback) {
-        executor.execute(() -> {
-            try {
-                String response = get(API_BASE + "/apiv1/devices.json/" + dsn + "/properties/GET_Schedule_Data/datapoints?limit=1");
-                List<Schedule> schedules = new ArrayList<>();
-                JSONArray dps = new JSONArray(response);
-                if (dps.length() > 0) {
-                    JSONObject dp = dps.getJSONObject(0);
-                    if (dp.has("datapoint")) dp = dp.getJSONObject("datapoint");
-                    JSONArray arr = new JSONArray(dp.optString("value", "[]"));
-                    for (int i = 0; i < arr.length(); i++) {
-                        JSONObject sj = arr.getJSONObject(i);
-                        Schedule s = new Schedule();
-                        s.setId(sj.optString("id", String.valueOf(i)));
-                        s.setHour(sj.optInt("hour", 8));
-                        s.setMinute(sj.optInt("minute", 0));
-                        s.setEnabled(sj.optBoolean("enabled", true));
-                        s.setPowerMode(sj.optString("power_mode", "normal"));
-                        JSONArray daysJson = sj.optJSONArray("days");
-                        List<Integer> days = new ArrayList<>();
-                        if (daysJson != null) for (int d = 0; d < daysJson.length(); d++) days.add(daysJson.getInt(d));
-                        s.setDays(days);
-                        schedules.add(s);
-                    }
+        fetchCached(RequestScheduler.Lane.BULK, dsn + "/schedules", LocalCache.SCHEDULES, dsn, callback,
+                () -> fetchSchedules(dsn));
+    }
+
+    private List<Schedule> fetchSchedules(String dsn) throws Exception {
+        ScheduleMutations.Snapshot s = get(API_BASE + "/apiv1/devices.json/" + dsn
+                + "/properties/GET_Schedule_Data/datapoints?limit=1", AylaApiClient::readScheduleDatapoint);
+        return remember(LocalCache.SCHEDULES, dsn, s.schedules);
+    }
+
+    /**
+     * Schedules of several robots, e.g. for {@link com.sharkcontrol.model.SchedulePlanner}.
+     * Runs as one bulk task so a large fleet can't overflow the lane. Lists
+     * with unsent edits and fresh cached lists are used as they are; DSNs
+     * that fail are left out.
+     */
+    public void getAllSchedules(List<String> dsns, Callback<Map<String, List<Schedule>>> callback) {
+        enqueue(RequestScheduler.Lane.BULK, null, callback, () -> {
+            Map<String, List<Schedule>> results = new LinkedHashMap<>();
+            String lastError = null;
+            for (String dsn : dsns) {
+                List<Schedule> local = ScheduleRepository.peek(dsn);
+                if (local == null) {
+                    LocalCache.Entry<List<Schedule>> cached = cache.read(LocalCache.SCHEDULES, dsn);
+                    if (cached != null && cached.isFresh()) local = cached.value;
                 }
-                callback.onSuccess(schedules);
-            } catch (Exception e) { callback.onError(e.getMessage()); }
+                try {
+                    results.put(dsn, local != null ? local : fetchSchedules(dsn));
+                } catch (Exception e) {
+                    lastError = e.getMessage();
+                }
+            }
+            if (results.isEmpty() && lastError != null) callback.onError(lastError);
+            else callback.onSuccess(results);
         });
     }
 
-    public void addSchedule(String dsn, Schedule s, Callback<Void> cb)    { modifySchedules(dsn, s, false, cb); }
-    public void updateSchedule(String dsn, Schedule s, Callback<Void> cb) { modifySchedules(dsn, s, true,  cb); }
+    public void addSchedule(String dsn, Schedule s, Callback<Void> cb) {
+        s.setId(ScheduleMutations.newId());
+        editSchedules(dsn, Collections.singletonList(s), Collections.emptyList(), cb);
+    }
+
+    public void updateSchedule(String dsn, Schedule s, Callback<Void> cb) {
+        editSchedules(dsn, Collections.singletonList(s), Collections.emptyList(), cb);
+    }
+
     public void deleteSchedule(String dsn, Schedule s, Callback<Void> cb) {
-        getSchedules(dsn, new Callback<List<Schedule>>() {
-            public void onSuccess(List<Schedule> list) { list.removeIf(x -> x.getId().equals(s.getId())); pushSchedules(dsn, list, cb); }
-            public void onError(String e) { cb.onError(e); }
-        });
+        editSchedules(dsn, Collections.emptyList(), Collections.singletonList(s.getId()), cb);
     }
 
-    private void modifySchedules(String dsn, Schedule s, boolean update, Callback<Void> cb) {
-        getSchedules(dsn, new Callback<List<Schedule>>() {
-            public void onSuccess(List<Schedule> list) {
-                if (update) { for (int i=0;i<list.size();i++) if (list.get(i).getId().equals(s.getId())) { list.set(i,s); break; } }
-                else { s.setId(String.valueOf(System.currentTimeMillis())); list.add(s); }
-                pushSchedules(dsn, list, cb);
-            }
-            public void onError(String e) { cb.onError(e); }
+    /**
+     * Adds or replaces {@code upserts} (matched by id) and removes
+     * {@code deletedIds}, as one write. Edits from other calls that arrive
+     * before the write goes out are folded into it.
+     */
+    public void editSchedules(String dsn, List<Schedule> upserts, List<String> deletedIds, Callback<Void> cb) {
+        List<ScheduleMutations.Edit> edits = new ArrayList<>(upserts.size() + deletedIds.size());
+        for (Schedule s : upserts) edits.add(ScheduleMutations.upsert(s));
+        for (String id : deletedIds) edits.add(ScheduleMutations.delete(id));
+        submitScheduleEdits(dsn, edits, new Callback<List<Schedule>>() {
+            @Override public void onSuccess(List<Schedule> written) { cb.onSuccess(null); }
+            @Override public void onError(String error) { cb.onError(error); }
         });
     }
 
-    private void pushSchedules(String dsn, List<Schedule> schedules, Callback<Void> callback) {
-        executor.execute(() -> {
-            try {
-                JSONArray arr = new JSONArray();
-                for (Schedule s : schedules) {
-                    JSONObject sj = new JSONObject();
-                    sj.put("id", s.getId()); sj.put("hour", s.getHour()); sj.put("minute", s.getMinute());
-                    sj.put("enabled", s.isEnabled()); sj.put("power_mode", s.getPowerMode());
-                    JSONArray da = new JSONArray(); for (int d : s.getDays()) da.put(d); sj.put("days", da);
-                    arr.put(sj);
-                }
-                JSONObject body = new JSONObject();
-                body.put("datapoint", new JSONObject().put("value", arr.toString()));
-                postJson(API_BASE + "/apiv1/devices.json/" + dsn + "/properties/SET_Schedule_Data/datapoints", body);
-                callback.onSuccess(null);
-            } catch (Exception e) { callback.onError(e.getMessage()); }
-        });
+    /** Queues {@code edits} for one write; {@code cb} gets the list as written. */
+    void submitScheduleEdits(String dsn, List<ScheduleMutations.Edit> edits, Callback<List<Schedule>> cb) {
+        ScheduleMutations mutations = ScheduleMutations.forDevice(dsn);
+        if (!mutations.submit(edits, cb)) return;
+        if (closed) { mutations.dropAll("Verbindung geschlossen"); return; }
+        scheduler.submit(RequestScheduler.Lane.COMMAND, dsn + "/schedule-edits", () -> mutations.drain(scheduleRemote),
+                () -> mutations.dropAll("Zu viele Anfragen, bitte später erneut versuchen"));
+    }
+
+    /**
+     * The schedules of robot {@code dsn} as an optimistic, locally persisted
+     * store; edits made through it are written to the cloud in the background.
+     */
+    public ScheduleRepository schedules(String dsn) {
+        ScheduleRepository repo = ScheduleRepository.forDevice(dsn);
+        repo.attach(this);
+        return repo;
+    }
+
+    boolean isClosed() { return closed; }
+
+    LocalCache localCache() { return cache; }
+
+    /** Schedule edits go through SET_Schedule_Data, whose latest datapoint is the version to check against. */
+    private final ScheduleMutations.Remote scheduleRemote = new ScheduleMutations.Remote() {
+        @Override
+        public ScheduleMutations.Snapshot read(String dsn) throws Exception {
+            String base = API_BASE + "/apiv1/devices.json/" + dsn + "/properties/";
+            ScheduleMutations.Snapshot written = get(base + "SET_Schedule_Data/datapoints?limit=1",
+                    AylaApiClient::readScheduleDatapoint);
+            if (written.version != null) return written;
+            // Never written through the cloud: start from what the robot reports
+            return get(base + "GET_Schedule_Data/datapoints?limit=1", AylaApiClient::readScheduleDatapoint);
+        }
+
+        @Override
+        public String write(String dsn, List<Schedule> schedules) throws Exception {
+            String body = ScheduleJson.datapointBody(schedules);
+            String response = postJson(API_BASE + "/apiv1/devices.json/" + dsn + "/properties/SET_Schedule_Data/datapoints", body);
+            remember(LocalCache.SCHEDULES, dsn, schedules);
+            return ScheduleJson.readDatapoint(new JsonPullReader(new StringReader(response))).version;
+        }
+    };
+
+    private static ScheduleMutations.Snapshot readScheduleDatapoint(InputStream in) throws IOException {
+        return ScheduleJson.readDatapoint(new JsonPullReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+    }
+
+    private interface BodyReader<T> { T read(InputStream in) throws Exception; }
+
+    private interface RequestFactory { HttpTransport.Request create(); }
+
+    /**
+     * Sends the request with the current token. On a 401 the token is
+     * renewed (one refresh shared by all requests that hit it) and a fresh
+     * copy of the request is sent once more, so callers never see an
+     * expired token unless the session is really over.
+     */
+    private HttpTransport.Response authorized(RequestFactory factory) throws IOException {
+        String token = auth.token();
+        HttpTransport.Response res = transport.execute(withToken(factory.create(), token));
+        if (res.code() != 401 || token == null) return res;
+        res.close();
+        return transport.execute(withToken(factory.create(), auth.refreshAfter(token)));
+    }
+
+    private static HttpTransport.Request withToken(HttpTransport.Request req, String token) {
+        return token != null ? req.header("Authorization", "auth_token " + token) : req;
     }
 
     private String get(String urlString) throws Exception {
-        URL url = new URL(urlString);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("GET");
-        conn.setRequestProperty("Accept", "application/json");
-        if (accessToken != null) conn.setRequestProperty("Authorization", "auth_token " + accessToken);
-        conn.setConnectTimeout(10000); conn.setReadTimeout(10000);
-        int code = conn.getResponseCode();
-        if (code >= 200 && code < 300) return readStream(conn.getInputStream());
-        throw new IOException("HTTP " + code + ": " + readStream(conn.getErrorStream()));
-    }
-
-    private void postJson(String urlString, JSONObject body) throws Exception {
-        URL url = new URL(urlString);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setRequestProperty("Accept", "application/json");
-        if (accessToken != null) conn.setRequestProperty("Authorization", "auth_token " + accessToken);
-        conn.setDoOutput(true); conn.setConnectTimeout(10000); conn.setReadTimeout(10000);
-        conn.getOutputStream().write(body.toString().getBytes(StandardCharsets.UTF_8));
-        int code = conn.getResponseCode();
-        if (code < 200 || code >= 300) throw new IOException("HTTP " + code + ": " + readStream(conn.getErrorStream()));
-    }
-
-    private String readStream(InputStream s) throws IOException {
-        if (s == null) return "";
-        BufferedReader r = new BufferedReader(new InputStreamReader(s, StandardCharsets.UTF_8));
-        StringBuilder sb = new StringBuilder(); String line;
-        while ((line = r.readLine()) != null) sb.append(line);
-        return sb.toString();
-    }
-
-    private int parseIntSafe(Object v) {
-        if (v == null) return 0;
-        try { return Integer.parseInt(v.toString()); } catch (Exception e) { return 0; }
+        try (HttpTransport.Response res = authorized(
+                () -> HttpTransport.Request.get(urlString).header("Accept", "application/json"))) {
+            if (res.isSuccessful()) return res.string();
+            throw new IOException("HTTP " + res.code() + ": " + res.string());
+        }
+    }
+
+    /** Like {@link #get(String)} but hands the body stream to {@code reader} instead of buffering it. */
+    private <T> T get(String urlString, BodyReader<T> reader) throws Exception {
+        try (HttpTransport.Response res = authorized(
+                () -> HttpTransport.Request.get(urlString).header("Accept", "application/json"))) {
+            if (res.isSuccessful()) return reader.read(res.body());
+            throw new IOException("HTTP " + res.code() + ": " + res.string());
+        }
+    }
+
+    private String postJson(String urlString, JSONObject body) throws Exception {
+        return postJson(urlString, body.toString());
+    }
+
+    private String postJson(String urlString, String body) throws Exception {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        try (HttpTransport.Response res = authorized(() -> HttpTransport.Request.post(urlString, "application/json",
+                bytes).header("Accept", "application/json"))) {
+            if (!res.isSuccessful()) throw new IOException("HTTP " + res.code() + ": " + res.string());
+            return res.string();
+        }
     }
 }
@@ -0,0 +1,53 @@
+package com.sharkcontrol.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Small pool of growable byte buffers shared by the HTTP layer so a poll
+ * does not allocate a fresh read buffer for every response body.
+ */
+final class BufferPool {
+    private static final int INITIAL_SIZE = 8 * 1024;
+    private static final int MAX_RETAINED_SIZE = 512 * 1024;
+    private static final int MAX_POOLED = 4;
+
+    private static final ArrayDeque<Buffer> pool = new ArrayDeque<>();
+
+    private BufferPool() {}
+
+    static final class Buffer {
+        byte[] bytes = new byte[INITIAL_SIZE];
+        int length;
+
+        void readFully(InputStream in) throws IOException {
+            length = 0;
+            int n;
+            while ((n = in.read(bytes, length, bytes.length - length)) != -1) {
+                length += n;
+                if (length == bytes.length) {
+                    byte[] grown = new byte[bytes.length * 2];
+                    System.arraycopy(bytes, 0, grown, 0, length);
+                    bytes = grown;
+                }
+            }
+        }
+    }
+
+    static Buffer acquire() {
+        synchronized (pool) {
+            Buffer b = pool.pollFirst();
+            if (b != null) { b.length = 0; return b; }
+        }
+        return new Buffer();
+    }
+
+    static void release(Buffer b) {
+        // Don't pin the occasional huge map response in memory.
+        if (b.bytes.length > MAX_RETAINED_SIZE) return;
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) pool.addFirst(b);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.sharkcontrol.api;
+
+import java.io.IOException;
+
+/**
+ * A path to a robot's properties. {@link AylaApiClient} talks to the cloud
+ * through one implementation and, when LAN mode is on, to the robot itself
+ * through {@link LanChannel}; {@link FailoverChannel} picks between them.
+ */
+interface DeviceChannel {
+
+    /**
+     * The request never left: no connection, or the robot never picked it
+     * up. Only this is safe to retry on another channel; any other failure of
+     * a write may have reached the robot.
+     */
+    class NotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotSentException(String message) { super(message); }
+
+        NotSentException(String message, Throwable cause) { super(message, cause); }
+    }
+
+    /** Whether this channel can currently be tried for {@code dsn}. */
+    boolean isAvailable(String dsn);
+
+    void readProperties(String dsn, PropertyQuery query, PropertyParser.Handler handler) throws Exception;
+
+    void writeProperty(String dsn, String name, Object value) throws Exception;
+}
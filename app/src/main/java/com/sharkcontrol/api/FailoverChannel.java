@@ -0,0 +1,75 @@
+package com.sharkcontrol.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tries the fast local channel first and falls back to the cloud. After a
+ * local failure the robot is skipped on the local path for a cool-down so a
+ * robot that left the network doesn't add a timeout to every call.
+ *
+ * Reads fall back on any failure. A write falls back only on
+ * {@link DeviceChannel.NotSentException}: once it may have reached the
+ * robot, sending it again through the cloud could run the command twice.
+ */
+final class FailoverChannel implements DeviceChannel {
+
+    private static final long COOL_DOWN_MS = 60 * 1000L;
+
+    private final DeviceChannel primary;
+    private final DeviceChannel fallback;
+    private final Map<String, Long> downUntil = new HashMap<>();
+
+    FailoverChannel(DeviceChannel primary, DeviceChannel fallback) {
+        this.primary = primary;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public boolean isAvailable(String dsn) {
+        return usePrimary(dsn) || fallback.isAvailable(dsn);
+    }
+
+    @Override
+    public void readProperties(String dsn, PropertyQuery query, PropertyParser.Handler handler) throws Exception {
+        if (usePrimary(dsn)) {
+            try {
+                primary.readProperties(dsn, query, handler);
+                return;
+            } catch (Exception e) {
+                markDown(dsn);
+            }
+        }
+        fallback.readProperties(dsn, query, handler);
+    }
+
+    @Override
+    public void writeProperty(String dsn, String name, Object value) throws Exception {
+        if (usePrimary(dsn)) {
+            try {
+                primary.writeProperty(dsn, name, value);
+                return;
+            } catch (NotSentException e) {
+                markDown(dsn);
+            } catch (Exception e) {
+                markDown(dsn);
+                throw e;
+            }
+        }
+        fallback.writeProperty(dsn, name, value);
+    }
+
+    private boolean usePrimary(String dsn) {
+        if (!primary.isAvailable(dsn)) return false;
+        synchronized (downUntil) {
+            Long until = downUntil.get(dsn);
+            return until == null || System.currentTimeMillis() >= until;
+        }
+    }
+
+    private void markDown(String dsn) {
+        synchronized (downUntil) {
+            downUntil.put(dsn, System.currentTimeMillis() + COOL_DOWN_MS);
+        }
+    }
+}
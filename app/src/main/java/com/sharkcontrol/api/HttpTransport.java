@@ -0,0 +1,73 @@
+package com.sharkcontrol.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pluggable HTTP layer underneath {@link AylaApiClient}.
+ * Implementations are expected to keep connections alive between calls;
+ * callers must always {@link Response#close()} a response so the underlying
+ * connection can go back to the pool.
+ */
+public interface HttpTransport {
+
+    Response execute(Request request) throws IOException;
+
+    /** Human readable counters (requests, new TLS connections) for diagnostics. */
+    String stats();
+
+    final class Request {
+        final String method;
+        final String url;
+        final List<String> headers = new ArrayList<>(); // name, value, name, value...
+        byte[] body;
+        int timeoutMs = 10000;
+
+        private Request(String method, String url) {
+            this.method = method;
+            this.url = url;
+        }
+
+        public static Request get(String url) { return new Request("GET", url); }
+
+        public static Request delete(String url) { return new Request("DELETE", url); }
+
+        public static Request post(String url, String contentType, byte[] body) {
+            Request r = new Request("POST", url);
+            r.header("Content-Type", contentType);
+            r.body = body;
+            return r;
+        }
+
+        public Request header(String name, String value) {
+            if (value != null) { headers.add(name); headers.add(value); }
+            return this;
+        }
+
+        public Request timeout(int ms) { this.timeoutMs = ms; return this; }
+    }
+
+    abstract class Response implements Closeable {
+        public abstract int code();
+
+        /** Decoded (e.g. gunzipped) response body, or an empty stream. */
+        public abstract InputStream body() throws IOException;
+
+        public boolean isSuccessful() { return code() >= 200 && code() < 300; }
+
+        /** Reads the whole body as UTF-8 using a pooled buffer. */
+        public String string() throws IOException {
+            BufferPool.Buffer buf = BufferPool.acquire();
+            try {
+                buf.readFully(body());
+                return new String(buf.bytes, 0, buf.length, StandardCharsets.UTF_8);
+            } finally {
+                BufferPool.release(buf);
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.sharkcontrol.api;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal, allocation-light JSON pull parser over a {@link Reader}.
+ *
+ * Commas and colons are treated as separators, so callers drive the structure
+ * (they know whether they expect a name or a value). Names can be matched
+ * against a fixed table with {@link #nextStringIndex(String[])} without
+ * creating Strings, and unwanted values are skipped without materializing them.
+ */
+public final class JsonPullReader {
+
+    public static final int BEGIN_OBJECT = 1;
+    public static final int END_OBJECT   = 2;
+    public static final int BEGIN_ARRAY  = 3;
+    public static final int END_ARRAY    = 4;
+    public static final int STRING       = 5;
+    public static final int NUMBER       = 6;
+    public static final int BOOLEAN      = 7;
+    public static final int NULL         = 8;
+    public static final int END_DOCUMENT = 9;
+
+    private final Reader in;
+    private final char[] buf = new char[4096];
+    private int pos, limit;
+
+    private char[] scratch = new char[64];
+    private int scratchLen;
+
+    public JsonPullReader(Reader in) {
+        this.in = in;
+    }
+
+    /** Returns the type of the next token without consuming it. */
+    public int peek() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) return END_DOCUMENT;
+            char c = buf[pos];
+            switch (c) {
+                case ' ': case '\t': case '\n': case '\r': case ',': case ':':
+                    pos++;
+                    continue;
+                case '{': return BEGIN_OBJECT;
+                case '}': return END_OBJECT;
+                case '[': return BEGIN_ARRAY;
+                case ']': return END_ARRAY;
+                case '"': return STRING;
+                case 't': case 'f': return BOOLEAN;
+                case 'n': return NULL;
+                default:  return NUMBER;
+            }
+        }
+    }
+
+    public boolean hasNext() throws IOException {
+        int t = peek();
+        return t != END_OBJECT && t != END_ARRAY && t != END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException { expect(BEGIN_OBJECT); }
+    public void endObject() throws IOException   { expect(END_OBJECT); }
+    public void beginArray() throws IOException  { expect(BEGIN_ARRAY); }
+    public void endArray() throws IOException    { expect(END_ARRAY); }
+
+    private void expect(int token) throws IOException {
+        int t = peek();
+        if (t != token) throw syntaxError("expected token " + token + " but was " + t);
+        pos++;
+    }
+
+    /** Object member name. */
+    public String nextName() throws IOException {
+        return nextString();
+    }
+
+    public String nextString() throws IOException {
+        int t = peek();
+        if (t == STRING) {
+            readQuoted();
+        } else if (t == NUMBER || t == BOOLEAN || t == NULL) {
+            readLiteral();
+        } else {
+            throw syntaxError("expected a string but was " + t);
+        }
+        return new String(scratch, 0, scratchLen);
+    }
+
+    /**
+     * Reads the next string (or name) and returns its index in {@code candidates},
+     * or -1 if it matches none. Does not allocate.
+     */
+    public int nextStringIndex(String[] candidates) throws IOException {
+        if (peek() != STRING) { skipValue(); return -1; }
+        readQuoted();
+        for (int i = 0; i < candidates.length; i++) {
+            if (scratchEquals(candidates[i])) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Streams the next string value without materializing it, e.g. a large
+     * embedded document. The returned reader must be read to the end (or
+     * closed) before this reader is used again. A non-string value is
+     * skipped and yields an empty reader.
+     */
+    public Reader nextStringReader() throws IOException {
+        if (peek() != STRING) {
+            skipValue();
+            return new StringValueReader(true);
+        }
+        pos++; // opening quote
+        return new StringValueReader(false);
+    }
+
+    private final class StringValueReader extends Reader {
+        private boolean done;
+
+        StringValueReader(boolean done) { this.done = done; }
+
+        @Override
+        public int read(char[] out, int off, int len) throws IOException {
+            if (done) return -1;
+            int n = 0;
+            while (n < len) {
+                if (pos == limit && !fill()) throw syntaxError("unterminated string");
+                // Copy the run up to the next quote or escape in one go.
+                int end = Math.min(limit, pos + (len - n));
+                int start = pos;
+                while (pos < end) {
+                    char c = buf[pos];
+                    if (c == '"' || c == '\\') break;
+                    pos++;
+                }
+                System.arraycopy(buf, start, out, off + n, pos - start);
+                n += pos - start;
+                if (pos == end) continue;
+                if (buf[pos++] == '"') { done = true; break; }
+                out[off + n++] = readEscape();
+            }
+            return n == 0 && done ? -1 : n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            char[] skip = new char[256];
+            while (read(skip, 0, skip.length) != -1) { /* drain to the closing quote */ }
+        }
+    }
+
+    /** True if the next string (or name) equals {@code expected}. Does not allocate. */
+    public boolean nextStringIs(String expected) throws IOException {
+        if (peek() != STRING) { skipValue(); return false; }
+        readQuoted();
+        return scratchEquals(expected);
+    }
+
+    public double nextDouble() throws IOException {
+        int t = peek();
+        if (t == STRING) readQuoted(); else readLiteral();
+        return parseScratchNumber();
+    }
+
+    public long nextLong() throws IOException {
+        return (long) nextDouble();
+    }
+
+    public int nextInt() throws IOException {
+        return (int) nextDouble();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        int t = peek();
+        if (t == STRING) readQuoted(); else readLiteral();
+        if (scratchEquals("true")) return true;
+        if (scratchEquals("false") || scratchEquals("null")) return false;
+        return parseScratchNumber() != 0;
+    }
+
+    public void nextNull() throws IOException {
+        if (peek() != NULL) throw syntaxError("expected null");
+        readLiteral();
+    }
+
+    /** Skips the next value, including nested objects and arrays. */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int t = peek();
+            switch (t) {
+                case BEGIN_OBJECT: case BEGIN_ARRAY: pos++; depth++; break;
+                case END_OBJECT: case END_ARRAY: pos++; depth--; break;
+                case STRING: skipQuoted(); break;
+                case END_DOCUMENT: return;
+                default: readLiteral(); break;
+            }
+        } while (depth > 0);
+    }
+
+    /** The last string or literal read, e.g. after a failed {@link #nextStringIs}. */
+    String lastString() {
+        return new String(scratch, 0, scratchLen);
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0) { pos = limit = 0; return false; }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buf[pos++];
+    }
+
+    private void append(char c) {
+        if (scratchLen == scratch.length) {
+            char[] grown = new char[scratch.length * 2];
+            System.arraycopy(scratch, 0, grown, 0, scratchLen);
+            scratch = grown;
+        }
+        scratch[scratchLen++] = c;
+    }
+
+    private void readQuoted() throws IOException {
+        pos++; // opening quote
+        scratchLen = 0;
+        while (true) {
+            int c = read();
+            if (c == -1) throw syntaxError("unterminated string");
+            if (c == '"') return;
+            append(c == '\\' ? readEscape() : (char) c);
+        }
+    }
+
+    private void skipQuoted() throws IOException {
+        pos++;
+        while (true) {
+            int c = read();
+            if (c == -1) throw syntaxError("unterminated string");
+            if (c == '"') return;
+            if (c == '\\') readEscape();
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case 'n': return '\n';
+            case 't': return '\t';
+            case 'r': return '\r';
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'u':
+                int v = 0;
+                for (int i = 0; i < 4; i++) {
+                    int h = Character.digit(read(), 16);
+                    if (h < 0) throw syntaxError("bad unicode escape");
+                    v = (v << 4) | h;
+                }
+                return (char) v;
+            case -1: throw syntaxError("unterminated escape");
+            default: return (char) c; // \" \\ \/
+        }
+    }
+
+    private void readLiteral() throws IOException {
+        scratchLen = 0;
+        while (true) {
+            if (pos == limit && !fill()) return;
+            char c = buf[pos];
+            if (c == ',' || c == ':' || c == '}' || c == ']' || c == ' '
+                    || c == '\n' || c == '\r' || c == '\t' || c == '"') return;
+            append(c);
+            pos++;
+        }
+    }
+
+    private boolean scratchEquals(String s) {
+        if (s.length() != scratchLen) return false;
+        for (int i = 0; i < scratchLen; i++) if (s.charAt(i) != scratch[i]) return false;
+        return true;
+    }
+
+    private double parseScratchNumber() {
+        // Fast path for plain integers, which is what Ayla sends almost always.
+        long v = 0;
+        int i = 0;
+        boolean neg = scratchLen > 0 && scratch[0] == '-';
+        if (neg) i++;
+        if (i == scratchLen) return 0;
+        for (; i < scratchLen; i++) {
+            char c = scratch[i];
+            if (c < '0' || c > '9') {
+                try {
+                    return Double.parseDouble(new String(scratch, 0, scratchLen));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            v = v * 10 + (c - '0');
+        }
+        return neg ? -v : v;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("JSON: " + message);
+    }
+}
@@ -0,0 +1,486 @@
+package com.sharkcontrol.api;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Talks to a robot directly on the home network in Ayla's LAN mode.
+ *
+ * The robot serves no request/response API. The app registers with it
+ * (POST /local_reg.json, carrying the app's own address and port), and the
+ * robot connects back to {@link LanServer} for a key exchange based on the
+ * lanip_key the cloud hands out. After that the app notifies the robot
+ * (PUT /local_reg.json) whenever it has commands; the robot fetches them
+ * from /local_lan/commands.json and posts requested property values to
+ * /local_lan/property/datapoint.json. Both are sealed with {@link LanCrypto}.
+ *
+ * Only private and loopback addresses are contacted, over the channel's own
+ * sockets. Short timeouts keep a miss cheap because {@link FailoverChannel}
+ * then retries through the cloud. A write fails with
+ * {@link DeviceChannel.NotSentException} only while the robot has not
+ * taken it; once its commands request took it, it is never withdrawn, even
+ * if the reply is still being written.
+ */
+final class LanChannel implements DeviceChannel {
+
+    /** The robot's LAN key, as the cloud reports it in lan.json. */
+    static final class Key {
+        final int id;
+        final byte[] secret;
+        final long keepAliveMs;
+
+        Key(int id, String secret, int keepAliveSeconds) {
+            this.id = id;
+            this.secret = secret.getBytes(StandardCharsets.UTF_8);
+            this.keepAliveMs = Math.max(10, keepAliveSeconds) * 1000L;
+        }
+    }
+
+    interface KeySource {
+        Key fetch(String dsn) throws Exception;
+    }
+
+    private static final int CONNECT_TIMEOUT_MS = 1500;
+    private static final long HANDSHAKE_TIMEOUT_MS = 3000;
+    static final long REPLY_TIMEOUT_MS = 3000;
+    private static final String URI = "/local_lan";
+    private static final Pattern LAN_IP = Pattern.compile("(\\d{1,3}(?:\\.\\d{1,3}){3})(?::(\\d{1,5}))?");
+
+    private static final LanChannel INSTANCE = new LanChannel();
+
+    /** A property write, or a request for the robot to post one property's value. */
+    private static final class Command {
+        final int id;
+        final String name;
+        final Object value;
+        final boolean read;
+        boolean taken;    // handed to a commands reply; can't be withdrawn any more
+        boolean fetched;  // that reply was written
+        boolean answered;
+        Object result;
+        String error; // set if handing it over failed halfway
+
+        Command(int id, String name, Object value, boolean read) {
+            this.id = id;
+            this.name = name;
+            this.value = value;
+            this.read = read;
+        }
+    }
+
+    private static final class Session {
+        final String dsn;
+        final InetSocketAddress robot;
+        Key key;
+        LanCrypto crypto; // null until the key exchange
+        long lastContact;
+        int seqNo;
+        final List<Command> queue = new ArrayList<>();          // waiting for the robot to fetch
+        final Map<Integer, Command> awaiting = new HashMap<>(); // reads fetched, value not posted yet
+
+        Session(String dsn, InetSocketAddress robot) {
+            this.dsn = dsn;
+            this.robot = robot;
+        }
+    }
+
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final AtomicInteger commandIds = new AtomicInteger();
+    private final SecureRandom random = new SecureRandom();
+    private volatile KeySource keySource;
+    private volatile boolean enabled;
+    private LanServer server;
+    volatile Runnable beforeCommandsReply; // for tests: runs between taking a batch and replying
+
+    LanChannel() {}
+
+    static LanChannel get() { return INSTANCE; }
+
+    void setKeySource(KeySource source) { this.keySource = source; }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (enabled) return;
+        synchronized (this) {
+            if (server != null) server.close();
+            server = null;
+        }
+        synchronized (sessions) {
+            for (Session s : sessions.values()) {
+                synchronized (s) { s.crypto = null; }
+            }
+        }
+    }
+
+    boolean isEnabled() { return enabled; }
+
+    /** Remembers the robot's local address; null, empty or a public address forgets it. */
+    void register(String dsn, String lanIp) {
+        InetSocketAddress robot = lanAddress(lanIp);
+        synchronized (sessions) {
+            Session old = sessions.get(dsn);
+            if (robot == null) sessions.remove(dsn);
+            else if (old == null || !old.robot.equals(robot)) sessions.put(dsn, new Session(dsn, robot));
+        }
+    }
+
+    /** {@code ip[:port]} if ip is a private or loopback IPv4 literal, else null. */
+    static InetSocketAddress lanAddress(String lanIp) {
+        if (lanIp == null) return null;
+        Matcher m = LAN_IP.matcher(lanIp.trim());
+        if (!m.matches()) return null;
+        try {
+            InetAddress a = InetAddress.getByName(m.group(1)); // a literal: no lookup
+            if (!a.isSiteLocalAddress() && !a.isLinkLocalAddress() && !a.isLoopbackAddress()) return null;
+            return new InetSocketAddress(a, m.group(2) != null ? Integer.parseInt(m.group(2)) : 80);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isAvailable(String dsn) {
+        if (!enabled) return false;
+        synchronized (sessions) { return sessions.containsKey(dsn); }
+    }
+
+    @Override
+    public void readProperties(String dsn, PropertyQuery query, PropertyParser.Handler handler) throws Exception {
+        Session s = session(dsn);
+        List<Command> reads = new ArrayList<>(query.size());
+        for (int i = 0; i < query.size(); i++) reads.add(new Command(commandIds.incrementAndGet(), query.name(i), null, true));
+        deliver(s, reads);
+        synchronized (s) {
+            long deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MS;
+            for (Command c : reads) {
+                while (!c.answered && c.error == null) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        for (Command r : reads) s.awaiting.remove(r.id);
+                        throw new IOException("Keine Antwort vom Roboter im LAN");
+                    }
+                    waitOn(s, left);
+                }
+                if (c.error != null) throw new IOException(c.error);
+            }
+        }
+        PropertyParser.Value v = new PropertyParser.Value();
+        for (int i = 0; i < reads.size(); i++) {
+            Object result = reads.get(i).result;
+            if (result == null) continue; // the robot doesn't have it
+            v.set(result);
+            handler.onProperty(i, v);
+        }
+    }
+
+    @Override
+    public void writeProperty(String dsn, String name, Object value) throws Exception {
+        Session s = session(dsn);
+        Command write = new Command(commandIds.incrementAndGet(), name, value, false);
+        deliver(s, Collections.singletonList(write));
+        synchronized (s) {
+            if (write.error != null) throw new IOException(write.error);
+        }
+    }
+
+    private Session session(String dsn) throws NotSentException {
+        if (!enabled) throw new NotSentException("LAN-Modus ist aus");
+        synchronized (sessions) {
+            Session s = sessions.get(dsn);
+            if (s == null) throw new NotSentException("Keine lokale Adresse für " + dsn);
+            return s;
+        }
+    }
+
+    /**
+     * Queues {@code commands}, notifies the robot and returns once it fetched
+     * them. Commands it did not take in time are withdrawn, so a
+     * {@link NotSentException} means none of them can still arrive; if some
+     * were taken but their reply isn't written yet, a plain IOException.
+     */
+    private void deliver(Session s, List<Command> commands) throws IOException {
+        connect(s);
+        synchronized (s) { s.queue.addAll(commands); }
+        try {
+            int code = sendRegistration(s, "PUT", true);
+            if (code / 100 != 2) {
+                synchronized (s) { s.crypto = null; }
+                throw new NotSentException("LAN-Benachrichtigung abgelehnt: HTTP " + code);
+            }
+            synchronized (s) {
+                long deadline = System.currentTimeMillis() + REPLY_TIMEOUT_MS;
+                while (!allFetched(commands)) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) throw new NotSentException("Roboter holt Befehle im LAN nicht ab");
+                    waitOn(s, left);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (s) {
+                if (allFetched(commands)) return; // picked up just in time
+                s.queue.removeAll(commands);
+                for (Command c : commands) {
+                    if (c.taken) throw new IOException("Befehl hat den Roboter im LAN vielleicht nicht erreicht", e);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static boolean allFetched(List<Command> commands) {
+        for (Command c : commands) if (!c.fetched) return false;
+        return true;
+    }
+
+    /** Registers with the robot unless a session is still alive, and waits for its key exchange. */
+    private void connect(Session s) throws IOException {
+        Key key;
+        synchronized (s) {
+            if (s.crypto != null && System.currentTimeMillis() - s.lastContact < s.key.keepAliveMs) return;
+            s.crypto = null;
+            key = s.key;
+        }
+        if (key == null) {
+            KeySource source = keySource;
+            if (source == null) throw new NotSentException("Kein LAN-Schlüssel");
+            try {
+                key = source.fetch(s.dsn);
+            } catch (Exception e) {
+                throw new NotSentException("LAN-Schlüssel nicht verfügbar: " + e.getMessage(), e);
+            }
+            synchronized (s) { s.key = key; }
+        }
+        int code = sendRegistration(s, "POST", false);
+        if (code / 100 != 2) throw new NotSentException("LAN-Registrierung abgelehnt: HTTP " + code);
+        synchronized (s) {
+            long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS;
+            while (s.crypto == null) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) throw new NotSentException("Roboter meldet sich nicht im LAN");
+                waitOn(s, left);
+            }
+        }
+    }
+
+    /** POST registers, PUT keeps the registration and with {@code notify} asks the robot to fetch commands. */
+    private int sendRegistration(Session s, String method, boolean notify) throws NotSentException {
+        try (Socket socket = new Socket()) {
+            socket.connect(s.robot, CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            // The address the robot can reach us at is the one this connection left from
+            JSONObject reg = new JSONObject().put("local_reg", new JSONObject()
+                    .put("uri", URI)
+                    .put("notify", notify ? 1 : 0)
+                    .put("ip", socket.getLocalAddress().getHostAddress())
+                    .put("port", server().port()));
+            byte[] body = reg.toString().getBytes(StandardCharsets.UTF_8);
+            String head = method + " /local_reg.json HTTP/1.1\r\n"
+                    + "Host: " + s.robot.getAddress().getHostAddress() + ":" + s.robot.getPort() + "\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.flush();
+            String[] status = LanServer.readLine(socket.getInputStream()).split(" ");
+            return status.length > 1 ? Integer.parseInt(status[1]) : 0;
+        } catch (Exception e) {
+            throw new NotSentException("Roboter im LAN nicht erreichbar", e);
+        }
+    }
+
+    private synchronized LanServer server() throws IOException {
+        if (server == null) server = new LanServer(this::handle);
+        return server;
+    }
+
+    private void handle(LanServer.Exchange ex) throws Exception {
+        Session s = null;
+        synchronized (sessions) {
+            for (Session candidate : sessions.values()) {
+                if (candidate.robot.getAddress().equals(ex.from)) s = candidate;
+            }
+        }
+        if (s == null || !enabled) {
+            ex.respond(404, null);
+            return;
+        }
+        switch (ex.path) {
+            case URI + "/key_exchange.json":       keyExchange(s, ex); break;
+            case URI + "/commands.json":           commands(s, ex); break;
+            case URI + "/property/datapoint.json": datapoint(s, ex); break;
+            default: ex.respond(404, null);
+        }
+    }
+
+    private void keyExchange(Session s, LanServer.Exchange ex) throws Exception {
+        JSONObject kx = new JSONObject(ex.bodyString()).getJSONObject("key_exchange");
+        Key key;
+        synchronized (s) {
+            key = s.key;
+            if (key != null && kx.optInt("key_id", -1) != key.id) {
+                key = s.key = null; // rotated: fetch it again
+                s.crypto = null;
+            }
+        }
+        if (key == null) {
+            ex.respond(412, null);
+            return;
+        }
+        String random2 = randomToken();
+        long time2 = System.nanoTime() & 0x7fffffffL;
+        LanCrypto crypto = new LanCrypto(key.secret, kx.getString("random_1"), random2, kx.getLong("time_1"), time2, true);
+        ex.respond(200, new JSONObject().put("random_2", random2).put("time_2", time2).toString());
+        synchronized (s) {
+            s.crypto = crypto;
+            s.seqNo = 0;
+            s.lastContact = System.currentTimeMillis();
+            s.notifyAll();
+        }
+    }
+
+    private void commands(Session s, LanServer.Exchange ex) throws Exception {
+        LanCrypto crypto;
+        List<Command> batch;
+        int seq;
+        synchronized (s) {
+            crypto = s.crypto;
+            if (crypto != null) {
+                batch = new ArrayList<>(s.queue);
+                s.queue.clear();
+                for (Command c : batch) {
+                    c.taken = true;
+                    if (c.read) s.awaiting.put(c.id, c);
+                }
+                seq = ++s.seqNo;
+                s.lastContact = System.currentTimeMillis();
+            } else {
+                batch = null;
+                seq = 0;
+            }
+        }
+        if (crypto == null) {
+            ex.respond(401, null); // makes the robot start over with a key exchange
+            return;
+        }
+        JSONArray cmds = new JSONArray(), properties = new JSONArray();
+        for (Command c : batch) {
+            if (c.read) {
+                cmds.put(new JSONObject().put("cmd", new JSONObject()
+                        .put("cmd_id", c.id)
+                        .put("method", "GET")
+                        .put("resource", "property.json?name=" + c.name)
+                        .put("uri", URI + "/property/datapoint.json")
+                        .put("data", "none")));
+            } else {
+                properties.put(new JSONObject().put("property", new JSONObject()
+                        .put("base_type", baseType(c.value))
+                        .put("name", c.name)
+                        .put("value", c.value)
+                        .put("dsn", s.dsn)));
+            }
+        }
+        JSONObject data = new JSONObject();
+        if (cmds.length() > 0) data.put("cmds", cmds);
+        if (properties.length() > 0) data.put("properties", properties);
+        String[] sealed = crypto.seal(new JSONObject().put("seq_no", seq).put("data", data).toString());
+        Runnable hook = beforeCommandsReply;
+        if (hook != null) hook.run();
+        try {
+            ex.respond(200, new JSONObject().put("enc", sealed[0]).put("sign", sealed[1]).put("seq_no", seq).toString());
+        } catch (IOException e) {
+            // May or may not have arrived, so it can't be retried elsewhere; the IVs are out of step too
+            synchronized (s) {
+                s.crypto = null;
+                for (Command c : batch) {
+                    c.fetched = true;
+                    c.error = "Befehl hat den Roboter im LAN vielleicht nicht erreicht";
+                }
+                s.notifyAll();
+            }
+            throw e;
+        }
+        synchronized (s) {
+            for (Command c : batch) c.fetched = true;
+            s.notifyAll();
+        }
+    }
+
+    private void datapoint(Session s, LanServer.Exchange ex) throws Exception {
+        LanCrypto crypto;
+        synchronized (s) {
+            crypto = s.crypto;
+            s.lastContact = System.currentTimeMillis();
+        }
+        if (crypto == null) {
+            ex.respond(401, null);
+            return;
+        }
+        JSONObject sealed = new JSONObject(ex.bodyString());
+        JSONObject data = new JSONObject(crypto.open(sealed.getString("enc"), sealed.getString("sign"))).optJSONObject("data");
+        String cmdId = ex.param("cmd_id");
+        synchronized (s) {
+            Command c = null;
+            if (cmdId != null) {
+                c = s.awaiting.remove(Integer.parseInt(cmdId));
+            } else if (data != null) {
+                for (Iterator<Command> it = s.awaiting.values().iterator(); it.hasNext(); ) {
+                    Command candidate = it.next();
+                    if (candidate.name.equals(data.optString("name"))) {
+                        it.remove();
+                        c = candidate;
+                        break;
+                    }
+                }
+            }
+            if (c != null) {
+                c.answered = true;
+                c.result = data != null ? data.opt("value") : null;
+                s.notifyAll();
+            }
+        }
+        ex.respond(200, null);
+    }
+
+    private static String baseType(Object value) {
+        if (value instanceof Boolean) return "boolean";
+        if (value instanceof Integer || value instanceof Long) return "integer";
+        if (value instanceof Number) return "decimal";
+        return "string";
+    }
+
+    private String randomToken() {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        char[] c = new char[16];
+        for (int i = 0; i < c.length; i++) c[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+        return new String(c);
+    }
+
+    private static void waitOn(Object monitor, long ms) throws InterruptedIOException {
+        try {
+            monitor.wait(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("LAN request interrupted");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.sharkcontrol.api;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session keys and message sealing of an Ayla LAN session.
+ *
+ * Both sides derive a signing key, an AES-256 key and an IV seed per
+ * direction from the robot's lanip_key and the randoms and times swapped in
+ * the key exchange. Messages are JSON, zero-padded to the block size,
+ * encrypted with AES-CBC and signed with HMAC-SHA256 over the plaintext.
+ * The IV of each message is the last cipher block of the one before in the
+ * same direction, so messages must be opened in the order they were sealed.
+ */
+final class LanCrypto {
+
+    private static final int BLOCK = 16;
+
+    private final byte[] signKey, cryptoKey, peerSignKey, peerCryptoKey;
+    private byte[] iv, peerIv;
+
+    /**
+     * @param app true for the app's side, false for the robot's; the two
+     *            are each other's mirror image
+     */
+    LanCrypto(byte[] lanKey, String random1, String random2, long time1, long time2, boolean app) {
+        String appSeed = random1 + random2 + time1 + time2;
+        String robotSeed = random2 + random1 + time2 + time1;
+        String own = app ? appSeed : robotSeed, peer = app ? robotSeed : appSeed;
+        signKey = derive(lanKey, own + "0");
+        cryptoKey = derive(lanKey, own + "1");
+        iv = Arrays.copyOf(derive(lanKey, own + "2"), BLOCK);
+        peerSignKey = derive(lanKey, peer + "0");
+        peerCryptoKey = derive(lanKey, peer + "1");
+        peerIv = Arrays.copyOf(derive(lanKey, peer + "2"), BLOCK);
+    }
+
+    /** {@code json} encrypted and signed, as {enc, sign} in base64. */
+    synchronized String[] seal(String json) throws GeneralSecurityException {
+        byte[] plain = json.getBytes(StandardCharsets.UTF_8);
+        byte[] padded = Arrays.copyOf(plain, (plain.length + BLOCK - 1) / BLOCK * BLOCK);
+        Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cryptoKey, "AES"), new IvParameterSpec(iv));
+        byte[] enc = aes.doFinal(padded);
+        iv = Arrays.copyOfRange(enc, enc.length - BLOCK, enc.length);
+        return new String[] {Base64.getEncoder().encodeToString(enc),
+                Base64.getEncoder().encodeToString(hmac(signKey, plain))};
+    }
+
+    /** The JSON the peer sealed; throws if the signature does not match. */
+    synchronized String open(String enc, String sign) throws GeneralSecurityException {
+        byte[] cipherText = Base64.getDecoder().decode(enc);
+        if (cipherText.length == 0 || cipherText.length % BLOCK != 0) {
+            throw new GeneralSecurityException("Bad LAN message length " + cipherText.length);
+        }
+        Cipher aes = Cipher.getInstance("AES/CBC/NoPadding");
+        aes.init(Cipher.DECRYPT_MODE, new SecretKeySpec(peerCryptoKey, "AES"), new IvParameterSpec(peerIv));
+        byte[] padded = aes.doFinal(cipherText);
+        int n = padded.length;
+        while (n > 0 && padded[n - 1] == 0) n--;
+        byte[] plain = Arrays.copyOf(padded, n);
+        if (!MessageDigest.isEqual(hmac(peerSignKey, plain), Base64.getDecoder().decode(sign))) {
+            throw new GeneralSecurityException("Bad LAN message signature");
+        }
+        peerIv = Arrays.copyOfRange(cipherText, cipherText.length - BLOCK, cipherText.length);
+        return new String(plain, StandardCharsets.UTF_8);
+    }
+
+    /** Ayla's key derivation: HMAC(key, HMAC(key, seed) + seed). */
+    private static byte[] derive(byte[] key, String seed) {
+        byte[] s = seed.getBytes(StandardCharsets.UTF_8);
+        byte[] inner = hmac(key, s);
+        byte[] msg = Arrays.copyOf(inner, inner.length + s.length);
+        System.arraycopy(s, 0, msg, inner.length, s.length);
+        return hmac(key, msg);
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
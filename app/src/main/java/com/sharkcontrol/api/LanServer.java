@@ -0,0 +1,156 @@
+package com.sharkcontrol.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The HTTP endpoint robots connect back to in Ayla LAN mode. Just enough
+ * HTTP/1.1 for their requests: one request per connection, bodies with a
+ * Content-Length, answered and closed.
+ */
+final class LanServer {
+
+    private static final int MAX_BODY = 64 * 1024;
+    private static final int READ_TIMEOUT_MS = 5000;
+
+    interface Handler {
+        /** Must call {@link Exchange#respond} exactly once. */
+        void handle(Exchange exchange) throws Exception;
+    }
+
+    static final class Exchange {
+        final InetAddress from;
+        final String method, path, query;
+        final byte[] body;
+        private final OutputStream out;
+        private boolean responded;
+
+        Exchange(InetAddress from, String method, String path, String query, byte[] body, OutputStream out) {
+            this.from = from;
+            this.method = method;
+            this.path = path;
+            this.query = query;
+            this.body = body;
+            this.out = out;
+        }
+
+        String bodyString() { return new String(body, StandardCharsets.UTF_8); }
+
+        /** The value of {@code name} in the query string, or null. */
+        String param(String name) {
+            if (query == null) return null;
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).equals(name)) return pair.substring(eq + 1);
+            }
+            return null;
+        }
+
+        /** Sends the reply; returns once it is written, throws if it could not be. */
+        void respond(int code, String json) throws IOException {
+            if (responded) return;
+            responded = true;
+            byte[] b = json != null ? json.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            String head = "HTTP/1.1 " + code + " " + (code < 300 ? "OK" : "Error") + "\r\n"
+                    + (b.length > 0 ? "Content-Type: application/json\r\n" : "")
+                    + "Content-Length: " + b.length + "\r\nConnection: close\r\n\r\n";
+            out.write(head.getBytes(StandardCharsets.US_ASCII));
+            out.write(b);
+            out.flush();
+        }
+    }
+
+    private final ServerSocket socket;
+    private final Handler handler;
+    private final ExecutorService workers = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "lan-server");
+        t.setDaemon(true);
+        return t;
+    });
+
+    LanServer(Handler handler) throws IOException {
+        this.handler = handler;
+        socket = new ServerSocket(0);
+        Thread accept = new Thread(this::acceptLoop, "lan-accept");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    int port() { return socket.getLocalPort(); }
+
+    void close() {
+        try { socket.close(); } catch (IOException ignored) {}
+        workers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!socket.isClosed()) {
+            Socket s;
+            try {
+                s = socket.accept();
+            } catch (IOException e) {
+                return; // closed
+            }
+            workers.execute(() -> serve(s));
+        }
+    }
+
+    private void serve(Socket s) {
+        try (Socket c = s) {
+            c.setSoTimeout(READ_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(c.getInputStream());
+            OutputStream out = c.getOutputStream();
+            String[] request = readLine(in).split(" ");
+            if (request.length < 2) return;
+            int length = 0;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT).equals("content-length")) {
+                    length = Integer.parseInt(line.substring(colon + 1).trim());
+                }
+            }
+            if (length < 0 || length > MAX_BODY) {
+                new Exchange(c.getInetAddress(), request[0], "", null, new byte[0], out).respond(413, null);
+                return;
+            }
+            byte[] body = new byte[length];
+            for (int n = 0, r; n < length; n += r) {
+                if ((r = in.read(body, n, length - n)) == -1) return;
+            }
+            String target = request[1];
+            int q = target.indexOf('?');
+            Exchange ex = new Exchange(c.getInetAddress(), request[0], q < 0 ? target : target.substring(0, q),
+                    q < 0 ? null : target.substring(q + 1), body, out);
+            try {
+                handler.handle(ex);
+            } catch (Exception e) {
+                ex.respond(500, null);
+            }
+            ex.respond(500, null); // no-op if the handler answered
+        } catch (IOException | RuntimeException ignored) {
+            // the robot will retry
+        }
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (line.size() > 8192) throw new IOException("Header line too long");
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) throw new IOException("Connection closed");
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,274 @@
+package com.sharkcontrol.api;
+
+import android.content.Context;
+import com.sharkcontrol.model.MapData;
+import com.sharkcontrol.model.RobotStatus;
+import com.sharkcontrol.model.Schedule;
+import com.sharkcontrol.model.SharkDevice;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Last known devices, status, map and schedules per DSN, kept in memory and
+ * on disk so screens can show something immediately on a cold start while
+ * the network refresh runs (stale-while-revalidate).
+ *
+ * Each {@link Kind} has a TTL: a cached value younger than that is served as
+ * the result without going to the network at all. Anything older than
+ * {@link #MAX_AGE_MS} is ignored.
+ */
+final class LocalCache {
+
+    static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    interface Codec<T> {
+        String encode(T value) throws Exception;
+        T decode(String json) throws Exception;
+    }
+
+    static final class Kind<T> {
+        final String name;
+        final long ttlMs;
+        final Codec<T> codec;
+
+        Kind(String name, long ttlMs, Codec<T> codec) {
+            this.name = name;
+            this.ttlMs = ttlMs;
+            this.codec = codec;
+        }
+    }
+
+    static final class Entry<T> {
+        final T value;
+        final long savedAt;
+        final long ttlMs;
+
+        Entry(T value, long savedAt, long ttlMs) {
+            this.value = value;
+            this.savedAt = savedAt;
+            this.ttlMs = ttlMs;
+        }
+
+        boolean isFresh() { return System.currentTimeMillis() - savedAt < ttlMs; }
+    }
+
+    static final Kind<List<SharkDevice>> DEVICES = new Kind<>("devices", 10 * 60 * 1000L, new DevicesCodec());
+    static final Kind<RobotStatus> STATUS = new Kind<>("status", 0, new StatusCodec());
+    static final Kind<MapData> MAP = new Kind<>("map", 15 * 1000L, new MapCodec());
+    static final Kind<List<Schedule>> SCHEDULES = new Kind<>("schedules", 60 * 1000L, new SchedulesCodec());
+    // Edits not yet written to the cloud; never "fresh", they are only ever replayed
+    static final Kind<List<ScheduleMutations.Edit>> SCHEDULE_EDITS = new Kind<>("schedule-edits", 0, new ScheduleEditsCodec());
+
+    /** Pseudo-DSN for account-wide entries such as the device list. */
+    static final String ACCOUNT = "_account";
+
+    private static LocalCache instance;
+
+    private final File root;
+    private final Map<String, Entry<?>> memory = new HashMap<>();
+
+    private LocalCache(File root) {
+        this.root = root;
+    }
+
+    static synchronized LocalCache get(Context context) {
+        if (instance == null) instance = new LocalCache(new File(context.getApplicationContext().getCacheDir(), "ayla"));
+        return instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> Entry<T> read(Kind<T> kind, String dsn) {
+        String key = key(kind, dsn);
+        synchronized (memory) {
+            Entry<?> e = memory.get(key);
+            if (e != null) return System.currentTimeMillis() - e.savedAt < MAX_AGE_MS ? (Entry<T>) e : null;
+        }
+        File f = file(kind, dsn);
+        if (!f.exists()) return null;
+        try {
+            String content = readFile(f);
+            int nl = content.indexOf('\n');
+            long savedAt = Long.parseLong(content.substring(0, nl));
+            if (System.currentTimeMillis() - savedAt >= MAX_AGE_MS) return null;
+            Entry<T> e = new Entry<>(kind.codec.decode(content.substring(nl + 1)), savedAt, kind.ttlMs);
+            synchronized (memory) { memory.put(key, e); }
+            return e;
+        } catch (Exception e) {
+            f.delete(); // unreadable, e.g. written by an older version
+            return null;
+        }
+    }
+
+    <T> void write(Kind<T> kind, String dsn, T value) {
+        long now = System.currentTimeMillis();
+        synchronized (memory) { memory.put(key(kind, dsn), new Entry<>(value, now, kind.ttlMs)); }
+        File f = file(kind, dsn);
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            f.getParentFile().mkdirs();
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write((now + "\n" + kind.codec.encode(value)).getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tmp.renameTo(f)) tmp.delete();
+        } catch (Exception e) {
+            tmp.delete(); // the cache is best effort
+        }
+    }
+
+    void invalidate(Kind<?> kind, String dsn) {
+        synchronized (memory) { memory.remove(key(kind, dsn)); }
+        file(kind, dsn).delete();
+    }
+
+    void clear() {
+        synchronized (memory) { memory.clear(); }
+        deleteRecursively(root);
+    }
+
+    private static String key(Kind<?> kind, String dsn) { return dsn + "/" + kind.name; }
+
+    private File file(Kind<?> kind, String dsn) {
+        return new File(new File(root, dsn.replaceAll("[^A-Za-z0-9_-]", "_")), kind.name + ".json");
+    }
+
+    private static String readFile(File f) throws IOException {
+        BufferPool.Buffer buf = BufferPool.acquire();
+        try (InputStream in = new FileInputStream(f)) {
+            buf.readFully(in);
+            return new String(buf.bytes, 0, buf.length, StandardCharsets.UTF_8);
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) for (File c : children) deleteRecursively(c);
+        f.delete();
+    }
+
+    // ---- Codecs ----
+
+    private static final class DevicesCodec implements Codec<List<SharkDevice>> {
+        @Override
+        public String encode(List<SharkDevice> devices) throws Exception {
+            JSONArray arr = new JSONArray();
+            for (SharkDevice d : devices) {
+                arr.put(new JSONObject().put("dsn", d.getDsn()).put("product_name", d.getProductName())
+                        .put("model", d.getModel()).put("connected", d.isConnected()).put("lan_ip", d.getLanIp()));
+            }
+            return arr.toString();
+        }
+
+        @Override
+        public List<SharkDevice> decode(String json) throws Exception {
+            JSONArray arr = new JSONArray(json);
+            List<SharkDevice> devices = new ArrayList<>();
+            for (int i = 0; i < arr.length(); i++) {
+                JSONObject o = arr.getJSONObject(i);
+                SharkDevice d = new SharkDevice();
+                d.setDsn(o.getString("dsn"));
+                d.setProductName(o.optString("product_name", null));
+                d.setModel(o.optString("model", null));
+                d.setConnected(o.optBoolean("connected"));
+                d.setLanIp(o.optString("lan_ip", null));
+                devices.add(d);
+            }
+            return devices;
+        }
+    }
+
+    private static final class StatusCodec implements Codec<RobotStatus> {
+        @Override
+        public String encode(RobotStatus s) throws Exception {
+            return new JSONObject().put("mode", s.getOperatingMode()).put("battery", s.getBatteryCapacity())
+                    .put("power", s.getPowerMode()).put("cleaning_time", s.getCleaningTime())
+                    .put("error", s.getErrorCode()).put("charging", s.isCharging()).toString();
+        }
+
+        @Override
+        public RobotStatus decode(String json) throws Exception {
+            JSONObject o = new JSONObject(json);
+            RobotStatus s = new RobotStatus();
+            s.setOperatingMode(o.optString("mode", null));
+            s.setBatteryCapacity(o.optInt("battery"));
+            s.setPowerMode(o.optString("power", null));
+            s.setCleaningTime(o.optInt("cleaning_time"));
+            s.setErrorCode(o.optInt("error"));
+            s.setCharging(o.optBoolean("charging"));
+            return s;
+        }
+    }
+
+    private static final class MapCodec implements Codec<MapData> {
+        @Override
+        public String encode(MapData m) throws Exception {
+            JSONObject o = new JSONObject();
+            if (m.hasData()) {
+                int w = m.getWidth(), h = m.getHeight();
+                byte[] cells = m.getCells().length == w * h ? m.getCells() : java.util.Arrays.copyOf(m.getCells(), w * h);
+                o.put("width", w).put("height", h).put("cells", Base64.getEncoder().encodeToString(cells));
+            }
+            return o.put("robot_x", m.getRobotX()).put("robot_y", m.getRobotY()).put("robot_angle", m.getRobotAngle())
+                    .put("charge_x", m.getChargeX()).put("charge_y", m.getChargeY())
+                    .put("cleaned", m.getCleanedCells()).put("total", m.getTotalCells()).toString();
+        }
+
+        @Override
+        public MapData decode(String json) throws Exception {
+            JSONObject o = new JSONObject(json);
+            MapData m = new MapData();
+            if (o.has("cells")) {
+                int w = o.getInt("width"), h = o.getInt("height");
+                m.setGrid(w, h, Base64.getDecoder().decode(o.getString("cells")));
+            }
+            m.setRobotX(o.optInt("robot_x", -1));
+            m.setRobotY(o.optInt("robot_y", -1));
+            m.setRobotAngle((float) o.optDouble("robot_angle", 0));
+            m.setChargeX(o.optInt("charge_x", -1));
+            m.setChargeY(o.optInt("charge_y", -1));
+            m.setCleanedCells(o.optInt("cleaned"));
+            m.setTotalCells(o.optInt("total"));
+            return m;
+        }
+    }
+
+    private static final class SchedulesCodec implements Codec<List<Schedule>> {
+        @Override
+        public String encode(List<Schedule> schedules) {
+            StringBuilder sb = new StringBuilder(16 + 112 * schedules.size());
+            ScheduleJson.writeList(schedules, sb);
+            return sb.toString();
+        }
+
+        @Override
+        public List<Schedule> decode(String json) throws Exception {
+            return ScheduleJson.readList(new JsonPullReader(new StringReader(json)), new ArrayList<>());
+        }
+    }
+
+    private static final class ScheduleEditsCodec implements Codec<List<ScheduleMutations.Edit>> {
+        @Override
+        public String encode(List<ScheduleMutations.Edit> edits) {
+            return ScheduleJson.writeEdits(edits);
+        }
+
+        @Override
+        public List<ScheduleMutations.Edit> decode(String json) throws Exception {
+            return ScheduleJson.readEdits(new JsonPullReader(new StringReader(json)));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.sharkcontrol.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Registry of grid encodings for {@link MapGridDecoder}. A map document
+ * names its encoding in an "encoding" member; without one the grid is raw,
+ * one byte per cell, unless it starts with a zlib header. Codecs are streaming: they transform decoded base64
+ * chunks on the way into the cell store and never hold the whole grid.
+ */
+final class MapCodecs {
+
+    /** Receives grid bytes chunk by chunk. Closing releases the chain's resources, finished or not. */
+    interface Sink extends Closeable {
+        void write(byte[] b, int off, int len) throws IOException;
+
+        /** No more input; flush anything buffered. */
+        void finish() throws IOException;
+
+        @Override
+        default void close() throws IOException {}
+    }
+
+    interface Codec {
+        /** Returns a sink that decodes into {@code out}. */
+        Sink open(Sink out);
+    }
+
+    static final String RAW = "raw";
+    static final String ZLIB = "zlib";
+    static final String RLE = "rle";
+
+    private static final Map<String, Codec> codecs = new LinkedHashMap<>();
+    static {
+        register(RAW, out -> out);
+        register(ZLIB, InflateSink::new);
+        register(RLE, RleSink::new);
+    }
+
+    private MapCodecs() {}
+
+    static synchronized void register(String name, Codec codec) {
+        codecs.put(name.toLowerCase(java.util.Locale.ROOT), codec);
+    }
+
+    /** The codec for {@code name}; null or empty means raw. */
+    static synchronized Codec get(String name) throws IOException {
+        if (name == null || name.isEmpty()) return codecs.get(RAW);
+        Codec c = codecs.get(name.toLowerCase(java.util.Locale.ROOT));
+        if (c == null) throw new IOException("Unknown map encoding: " + name);
+        return c;
+    }
+
+    /** zlib stream (RFC 1950), or raw deflate if the header is missing. */
+    private static final class InflateSink implements Sink {
+        private final Sink out;
+        private final byte[] buf = new byte[8192];
+        private Inflater inflater;
+        private boolean finished;
+
+        InflateSink(Sink out) { this.out = out; }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished || len == 0) return;
+            if (inflater == null) {
+                // A zlib header is 0x78 followed by a byte that makes the pair a multiple of 31.
+                boolean zlib = len >= 2 && (b[off] & 0x0F) == 8 && (((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF)) % 31 == 0;
+                inflater = new Inflater(!zlib);
+            }
+            inflater.setInput(b, off, len);
+            drain();
+        }
+
+        private void drain() throws IOException {
+            try {
+                int n;
+                while ((n = inflater.inflate(buf)) > 0) out.write(buf, 0, n);
+                if (inflater.finished()) finished = true;
+            } catch (DataFormatException e) {
+                throw new IOException("Map: invalid zlib data", e);
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.finish();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Native memory: freed here so a grid that fails to decode doesn't leak it.
+            if (inflater != null) inflater.end();
+            out.close();
+        }
+    }
+
+    /** Run-length pairs: (count 1..255, value). */
+    private static final class RleSink implements Sink {
+        private final Sink out;
+        private final byte[] buf = new byte[8192];
+        private int fill;
+        private int pendingCount = -1; // count byte waiting for its value
+
+        RleSink(Sink out) { this.out = out; }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off, end = off + len; i < end; i++) {
+                if (pendingCount < 0) {
+                    pendingCount = b[i] & 0xFF;
+                    continue;
+                }
+                byte v = b[i];
+                for (int k = pendingCount; k > 0; k--) {
+                    if (fill == buf.length) { out.write(buf, 0, fill); fill = 0; }
+                    buf[fill++] = v;
+                }
+                pendingCount = -1;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (fill > 0) out.write(buf, 0, fill);
+            fill = 0;
+            out.finish();
+        }
+
+        @Override
+        public void close() throws IOException { out.close(); }
+    }
+}
@@ -0,0 +1,208 @@
+package com.sharkcontrol.api;
+
+import com.sharkcontrol.model.MapData;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Decodes the GET_Robot_Map_Data document ({"width":..,"height":..,"grid":"<base64>"})
+ * from a character stream straight into the {@link MapData} cell store.
+ *
+ * The base64 text is never materialized: characters are decoded as they
+ * arrive, run through the grid's codec (see {@link MapCodecs}) chunk by
+ * chunk, and every resulting byte is classified through a lookup table and
+ * counted in the same pass. Only the JDK is used, so the decoder can be
+ * benchmarked on a plain JVM.
+ *
+ * The codec comes from an "encoding" member before the grid. Without one,
+ * a zlib header is detected from the first two bytes; anything else is raw.
+ */
+final class MapGridDecoder {
+
+    private static final String[] KEYS = {"width", "height", "grid", "encoding"};
+    private static final int DEFAULT_SIZE = 64;
+
+    // Raw robot value -> cell value, and per-value counters, so the inner
+    // loop has no data-dependent branches.
+    private static final byte[] CLASSIFY = new byte[256];
+    private static final int[] IS_FLOOR = new int[256];
+    private static final int[] IS_KNOWN = new int[256];
+    private static final int[] BASE64 = new int[128];
+    private static final int SKIP = -1, PAD = -2;
+    static {
+        for (int v = 0; v < 256; v++) {
+            CLASSIFY[v] = (byte) (v == 0 ? MapData.CELL_UNKNOWN : v == 1 ? MapData.CELL_FLOOR : MapData.CELL_WALL);
+            IS_FLOOR[v] = v == 1 ? 1 : 0;
+            IS_KNOWN[v] = v != 0 ? 1 : 0;
+        }
+        java.util.Arrays.fill(BASE64, SKIP); // whitespace and line breaks, as Base64.DEFAULT allows
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < 64; i++) BASE64[alphabet.charAt(i)] = i;
+        BASE64['-'] = 62; // URL-safe variant
+        BASE64['_'] = 63;
+        BASE64['='] = PAD;
+    }
+
+    private final char[] chunk = new char[4096];
+    private final byte[] decoded = new byte[3072];
+
+    private byte[] cells;
+    private int length;     // bytes written
+    private boolean fixed;  // cells has its final size; extra bytes are dropped
+    private int floor, known;
+
+    /**
+     * Reads one map document from {@code in} into {@code m}: grid, cleaned and
+     * total cell counts.
+     */
+    void decode(Reader in, MapData m) throws IOException {
+        JsonPullReader r = new JsonPullReader(in);
+        int w = -1, h = -1;
+        String encoding = null;
+        boolean gridSeen = false;
+        cells = null;
+        length = floor = known = 0;
+        if (r.peek() != JsonPullReader.BEGIN_OBJECT) {
+            r.skipValue();
+            return;
+        }
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextStringIndex(KEYS)) {
+                case 0: w = r.nextInt(); break;
+                case 1: h = r.nextInt(); break;
+                case 2:
+                    // Size known up front (the usual order): decode into the final store.
+                    // Otherwise into a growing buffer that is trimmed afterwards.
+                    fixed = w > 0 && h > 0;
+                    cells = new byte[fixed ? w * h : 16 * 1024];
+                    try (MapCodecs.Sink sink = encoding != null ? MapCodecs.get(encoding).open(cellSink) : new SniffSink(cellSink);
+                         Reader grid = r.nextStringReader()) {
+                        decodeBase64(grid, sink);
+                        sink.finish();
+                    }
+                    gridSeen = true;
+                    break;
+                case 3:
+                    encoding = r.nextString();
+                    if (gridSeen && !MapCodecs.RAW.equalsIgnoreCase(encoding)) {
+                        throw new IOException("Map: encoding must precede the grid");
+                    }
+                    break;
+                default: r.skipValue();
+            }
+        }
+        r.endObject();
+
+        if (w <= 0) w = DEFAULT_SIZE;
+        if (h <= 0) h = DEFAULT_SIZE;
+        byte[] store;
+        if (cells != null && fixed && cells.length == w * h) {
+            store = cells;
+        } else {
+            store = new byte[w * h];
+            if (cells != null) System.arraycopy(cells, 0, store, 0, Math.min(length, store.length));
+            if (length > store.length) recount(store);
+        }
+        m.setGrid(w, h, store);
+        m.setCleanedCells(floor);
+        m.setTotalCells(known);
+        cells = null;
+    }
+
+    private void decodeBase64(Reader in, MapCodecs.Sink sink) throws IOException {
+        int acc = 0, bits = 0, n, out = 0;
+        outer:
+        while ((n = in.read(chunk, 0, chunk.length)) != -1) {
+            for (int i = 0; i < n; i++) {
+                char c = chunk[i];
+                int d = c < 128 ? BASE64[c] : SKIP;
+                if (d == SKIP) continue;
+                if (d == PAD) break outer;
+                acc = (acc << 6) | d;
+                bits += 6;
+                if (bits >= 8) {
+                    bits -= 8;
+                    decoded[out++] = (byte) (acc >>> bits);
+                    if (out == decoded.length) { sink.write(decoded, 0, out); out = 0; }
+                }
+            }
+        }
+        if (out > 0) sink.write(decoded, 0, out);
+        // Drain so the enclosing document can be read on.
+        while (in.read(chunk, 0, chunk.length) != -1) { /* skip padding and anything after it */ }
+    }
+
+    /** End of every codec chain: classifies and counts into {@link #cells}. */
+    private final MapCodecs.Sink cellSink = new MapCodecs.Sink() {
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (fixed) {
+                len = Math.min(len, cells.length - length);
+            } else if (length + len > cells.length) {
+                cells = java.util.Arrays.copyOf(cells, Math.max(cells.length * 2, length + len));
+            }
+            byte[] dst = cells;
+            int f = 0, k = 0, at = length;
+            for (int i = 0; i < len; i++) {
+                int v = b[off + i] & 0xFF;
+                dst[at + i] = CLASSIFY[v];
+                f += IS_FLOOR[v];
+                k += IS_KNOWN[v];
+            }
+            length += len;
+            floor += f;
+            known += k;
+        }
+
+        @Override
+        public void finish() {}
+    };
+
+    /** Picks zlib or raw from the first two bytes when the document names no encoding. */
+    private static final class SniffSink implements MapCodecs.Sink {
+        private final MapCodecs.Sink cells;
+        private final byte[] head = new byte[2];
+        private int headLen;
+        private MapCodecs.Sink target;
+
+        SniffSink(MapCodecs.Sink cells) { this.cells = cells; }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (target == null) {
+                while (headLen < 2 && len > 0) { head[headLen++] = b[off++]; len--; }
+                if (headLen < 2) return;
+                int cmf = head[0] & 0xFF, flg = head[1] & 0xFF;
+                boolean zlib = (cmf & 0x0F) == 8 && (cmf >> 4) <= 7 && ((cmf << 8) | flg) % 31 == 0;
+                target = zlib ? MapCodecs.get(MapCodecs.ZLIB).open(cells) : cells;
+                target.write(head, 0, 2);
+            }
+            if (len > 0) target.write(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (target == null) {
+                target = cells;
+                target.write(head, 0, headLen);
+            }
+            target.finish();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (target != null) target.close();
+        }
+    }
+
+    /** Counts again after the grid was cut to its declared size. */
+    private void recount(byte[] store) {
+        floor = known = 0;
+        for (byte b : store) {
+            floor += b == MapData.CELL_FLOOR ? 1 : 0;
+            known += b != MapData.CELL_UNKNOWN ? 1 : 0;
+        }
+    }
+}
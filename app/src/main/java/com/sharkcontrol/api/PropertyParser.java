@@ -0,0 +1,203 @@
+package com.sharkcontrol.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams an Ayla properties response straight off the wire and hands only
+ * the wanted properties to a {@link Handler}. Accepts both the bare array and
+ * the {"properties":[...]} shape, with or without the {"property":{...}}
+ * wrapper around each entry, in a single pass.
+ */
+public final class PropertyParser {
+
+    public interface Handler {
+        /** Called for each wanted property; {@code index} is its position in the names table. */
+        void onProperty(int index, Value value);
+    }
+
+    /**
+     * Handler that remembers each property's data_updated_at. When a property
+     * still carries the timestamp returned by {@link #lastUpdatedAt}, its value
+     * is skipped without being parsed and {@link #onProperty} is not called.
+     */
+    public interface DeltaHandler extends Handler {
+        /** Timestamp seen last time for this property, or null. */
+        String lastUpdatedAt(int index);
+
+        /** The property has a new timestamp; its value (if any) follows via onProperty. */
+        void onUpdatedAt(int index, String updatedAt);
+    }
+
+    /**
+     * Handler that can consume selected values straight from the stream,
+     * e.g. the map blob, instead of receiving them as a String.
+     */
+    public interface StreamingHandler extends Handler {
+        boolean wantsStream(int index);
+
+        /** Must consume exactly the one value at the reader's position. */
+        void onPropertyStream(int index, JsonPullReader r) throws IOException;
+    }
+
+    /** Reusable holder for a single property value. */
+    public static final class Value {
+        static final int NULL = 0, STRING = 1, NUMBER = 2, BOOLEAN = 3;
+
+        int type;
+        double number;
+        boolean bool;
+        String text;
+
+        public boolean isNull() { return type == NULL; }
+
+        public String asString() {
+            switch (type) {
+                case STRING:  return text;
+                case BOOLEAN: return String.valueOf(bool);
+                case NUMBER:  return number == (long) number ? Long.toString((long) number) : Double.toString(number);
+                default:      return null;
+            }
+        }
+
+        public int asInt() {
+            switch (type) {
+                case NUMBER:  return (int) number;
+                case BOOLEAN: return bool ? 1 : 0;
+                case STRING:
+                    try { return Integer.parseInt(text.trim()); } catch (Exception e) { return 0; }
+                default:      return 0;
+            }
+        }
+
+        /** Sets the value from an already parsed JSON value (String, Number, Boolean or null). */
+        void set(Object o) {
+            text = null;
+            if (o instanceof Number)       { type = NUMBER;  number = ((Number) o).doubleValue(); }
+            else if (o instanceof Boolean) { type = BOOLEAN; bool = (Boolean) o; }
+            else if (o == null || o == org.json.JSONObject.NULL) { type = NULL; }
+            else                           { type = STRING;  text = o.toString(); }
+        }
+
+        void read(JsonPullReader r) throws IOException {
+            int t = r.peek();
+            text = null;
+            switch (t) {
+                case JsonPullReader.STRING:  type = STRING;  text = r.nextString(); break;
+                case JsonPullReader.NUMBER:  type = NUMBER;  number = r.nextDouble(); break;
+                case JsonPullReader.BOOLEAN: type = BOOLEAN; bool = r.nextBoolean(); break;
+                case JsonPullReader.NULL:    type = NULL;    r.nextNull(); break;
+                default:                     type = NULL;    r.skipValue(); break;
+            }
+        }
+    }
+
+    private static final String[] PROPERTY_KEYS = {"name", "value", "property", "data_updated_at"};
+
+    private final String[] names;
+    private final Value value = new Value();
+    private final Value pending = new Value();
+
+    /** @param names property names the caller is interested in; everything else is skipped */
+    public PropertyParser(String[] names) {
+        this.names = names;
+    }
+
+    public void parse(InputStream in, Handler handler) throws IOException {
+        parse(new JsonPullReader(new InputStreamReader(in, StandardCharsets.UTF_8)), handler);
+    }
+
+    public void parse(JsonPullReader r, Handler handler) throws IOException {
+        int t = r.peek();
+        if (t == JsonPullReader.BEGIN_ARRAY) {
+            readArray(r, handler);
+        } else if (t == JsonPullReader.BEGIN_OBJECT) {
+            r.beginObject();
+            while (r.hasNext()) {
+                if (r.nextStringIs("properties") && r.peek() == JsonPullReader.BEGIN_ARRAY) {
+                    readArray(r, handler);
+                } else {
+                    r.skipValue();
+                }
+            }
+            r.endObject();
+        }
+    }
+
+    private void readArray(JsonPullReader r, Handler handler) throws IOException {
+        r.beginArray();
+        while (r.hasNext()) {
+            if (r.peek() == JsonPullReader.BEGIN_OBJECT) readProperty(r, handler);
+            else r.skipValue();
+        }
+        r.endArray();
+    }
+
+    private void readProperty(JsonPullReader r, Handler handler) throws IOException {
+        DeltaHandler delta = handler instanceof DeltaHandler ? (DeltaHandler) handler : null;
+        int index = -2;          // -2: name not seen yet, -1: not wanted
+        boolean hasPending = false;
+        boolean unchanged = false;
+        String pendingUpdatedAt = null;
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextStringIndex(PROPERTY_KEYS)) {
+                case 0:
+                    index = r.nextStringIndex(names);
+                    if (index >= 0 && pendingUpdatedAt != null) unchanged = checkUpdatedAt(delta, index, pendingUpdatedAt);
+                    break;
+                case 1:
+                    if (index >= 0) {
+                        if (unchanged) { r.skipValue(); break; }
+                        if (handler instanceof StreamingHandler && ((StreamingHandler) handler).wantsStream(index)) {
+                            ((StreamingHandler) handler).onPropertyStream(index, r);
+                            break;
+                        }
+                        value.read(r);
+                        handler.onProperty(index, value);
+                    } else if (index == -2) {
+                        // Value before name: keep it until we know whether it is wanted.
+                        pending.read(r);
+                        hasPending = true;
+                    } else {
+                        r.skipValue();
+                    }
+                    break;
+                case 2:
+                    if (r.peek() == JsonPullReader.BEGIN_OBJECT) readProperty(r, handler);
+                    else r.skipValue();
+                    break;
+                case 3:
+                    if (delta == null || index == -1 || r.peek() != JsonPullReader.STRING) {
+                        r.skipValue();
+                    } else if (index == -2) {
+                        pendingUpdatedAt = r.nextString();
+                    } else {
+                        // Compare in place so an unchanged property costs no allocation.
+                        String last = delta.lastUpdatedAt(index);
+                        if (last == null) {
+                            delta.onUpdatedAt(index, r.nextString());
+                        } else if (r.nextStringIs(last)) {
+                            unchanged = true;
+                        } else {
+                            delta.onUpdatedAt(index, r.lastString());
+                        }
+                    }
+                    break;
+                default:
+                    r.skipValue();
+            }
+        }
+        r.endObject();
+        if (hasPending && index >= 0 && !unchanged) handler.onProperty(index, pending);
+    }
+
+    private static boolean checkUpdatedAt(DeltaHandler delta, int index, String updatedAt) {
+        if (delta == null) return false;
+        if (updatedAt.equals(delta.lastUpdatedAt(index))) return true;
+        delta.onUpdatedAt(index, updatedAt);
+        return false;
+    }
+}
@@ -0,0 +1,54 @@
+package com.sharkcontrol.api;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * The set of Ayla properties a screen needs. Sent as names[] filters so the
+ * server only returns those properties, and used as the names table for
+ * {@link PropertyParser} so the indexes line up with {@link #indexOf}.
+ */
+public final class PropertyQuery {
+
+    /** Everything mapped into {@link com.sharkcontrol.model.RobotStatus}. */
+    public static final PropertyQuery STATUS = of(
+            "GET_Operating_Mode", "GET_Battery_Capacity", "GET_Power_Mode",
+            "GET_Cleaning_Statistics_Minutes", "GET_Error_Code", "GET_Charging_Status");
+
+    /** Map grid plus robot and dock positions. */
+    public static final PropertyQuery MAP = of(
+            "GET_Robot_Map_Data", "GET_Robot_Position", "GET_Charging_Station_Position");
+
+    final String[] names;
+    private final String queryString;
+
+    private PropertyQuery(String[] names) {
+        this.names = names;
+        StringBuilder sb = new StringBuilder();
+        try {
+            for (String n : names) {
+                if (sb.length() > 0) sb.append('&');
+                sb.append("names[]=").append(URLEncoder.encode(n, "UTF-8"));
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        this.queryString = sb.toString();
+    }
+
+    public static PropertyQuery of(String... names) {
+        return new PropertyQuery(names.clone());
+    }
+
+    public int size() { return names.length; }
+
+    public String name(int index) { return names[index]; }
+
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) if (names[i].equals(name)) return i;
+        return -1;
+    }
+
+    /** names[]=A&names[]=B... without the leading '?'. */
+    public String toQueryString() { return queryString; }
+}
@@ -0,0 +1,31 @@
+package com.sharkcontrol.api;
+
+/** Result of a {@link PropertyQuery}: one value slot per requested property. */
+public final class PropertyValues {
+
+    private final PropertyQuery query;
+    private final String[] values;
+
+    PropertyValues(PropertyQuery query) {
+        this.query = query;
+        this.values = new String[query.size()];
+    }
+
+    void set(int index, String value) { values[index] = value; }
+
+    public PropertyQuery getQuery() { return query; }
+
+    /** Value as sent by the server, or null if the property was missing or null. */
+    public String getString(String name) {
+        int i = query.indexOf(name);
+        return i >= 0 ? values[i] : null;
+    }
+
+    public int getInt(String name, int fallback) {
+        String v = getString(name);
+        if (v == null) return fallback;
+        try { return Integer.parseInt(v.trim()); } catch (NumberFormatException e) { return fallback; }
+    }
+
+    public boolean has(String name) { return getString(name) != null; }
+}
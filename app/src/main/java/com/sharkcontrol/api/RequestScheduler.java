@@ -0,0 +1,195 @@
+package com.sharkcontrol.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared, bounded worker pool for all {@link AylaApiClient} instances.
+ *
+ * Work is split into priority lanes. A worker always takes the oldest task
+ * from the highest lane that still has a free slot, and the lower lanes are
+ * capped below the worker count, so a user command never waits behind a
+ * queue of slow map downloads. Each lane has a bounded queue: queued polls
+ * with the same key are coalesced (the stale one is dropped) and an
+ * overflowing lane sheds its oldest task. A dropped task always hears about
+ * it through its {@code onDropped}, so no caller waits forever.
+ *
+ * The pool is reference counted: every client acquires it on creation and
+ * releases it on {@link AylaApiClient#close()}; the threads stop once the last
+ * owner is gone. Tasks still queued then, and any submitted afterwards, are
+ * dropped like shed ones.
+ */
+final class RequestScheduler {
+
+    enum Lane {
+        COMMAND(16, WORKERS),  // sendCommand, setPowerMode, schedule writes, sign-in
+        LOCAL(16, 1),          // reads from the on-disk cache
+        STATUS(4, 2),          // status polls, device list
+        BULK(4, 1);            // map and schedule downloads
+
+        final int maxQueued;
+        final int maxRunning;
+
+        Lane(int maxQueued, int maxRunning) {
+            this.maxQueued = maxQueued;
+            this.maxRunning = maxRunning;
+        }
+    }
+
+    // One more than the lower lanes' maxRunning together, so COMMAND always finds a free worker.
+    private static final int WORKERS = 5;
+
+    private static RequestScheduler shared;
+    private static int owners;
+
+    /** Single-flight registry for reads; lives and dies with the pool. */
+    final SingleFlight flights = new SingleFlight();
+
+    private final Object lock = new Object();
+    private final List<List<Task>> queues = new ArrayList<>();
+    private final int[] running = new int[Lane.values().length];
+    private final Thread[] workers = new Thread[WORKERS];
+    private boolean shutdown;
+    private long dropped;
+
+    private static final class Task {
+        final String key;
+        final Runnable work;
+        final Runnable onDropped;
+
+        Task(String key, Runnable work, Runnable onDropped) {
+            this.key = key;
+            this.work = work;
+            this.onDropped = onDropped;
+        }
+    }
+
+    static synchronized RequestScheduler acquire() {
+        if (shared == null) shared = new RequestScheduler();
+        owners++;
+        return shared;
+    }
+
+    static void release(RequestScheduler scheduler) {
+        synchronized (RequestScheduler.class) {
+            if (scheduler != shared) return;
+            if (--owners > 0) return;
+            shared = null;
+            owners = 0;
+        }
+        scheduler.shutdown();
+    }
+
+    private RequestScheduler() {
+        for (int i = 0; i < Lane.values().length; i++) queues.add(new ArrayList<>());
+        for (int i = 0; i < WORKERS; i++) {
+            workers[i] = new Thread(this::workLoop, "ayla-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues {@code work} on {@code lane}. A non-null {@code key} replaces a
+     * still-queued task with the same key, since the newer request returns
+     * fresher data. {@code onDropped} runs if the task never will: it was
+     * replaced that way, shed because the lane is full, or the pool is shut
+     * down.
+     */
+    void submit(Lane lane, String key, Runnable work, Runnable onDropped) {
+        Task shed = null;
+        synchronized (lock) {
+            List<Task> q = queues.get(lane.ordinal());
+            Task task = new Task(key, work, onDropped);
+            int same = indexOfKey(q, key);
+            if (shutdown) {
+                shed = task;
+                dropped++;
+            } else if (same >= 0) {
+                shed = q.set(same, task);
+                dropped++;
+            } else if (q.size() >= lane.maxQueued) {
+                // Commands keep their order: refuse the new one. Reads shed the stalest one.
+                shed = lane == Lane.COMMAND ? task : q.remove(0);
+                if (shed != task) q.add(task);
+                dropped++;
+            } else {
+                q.add(task);
+            }
+            lock.notifyAll();
+        }
+        if (shed != null && shed.onDropped != null) shed.onDropped.run();
+    }
+
+    /** Number of tasks coalesced or shed since the pool was created. */
+    long droppedCount() {
+        synchronized (lock) { return dropped; }
+    }
+
+    private static int indexOfKey(List<Task> q, String key) {
+        if (key == null) return -1;
+        for (int i = 0; i < q.size(); i++) if (key.equals(q.get(i).key)) return i;
+        return -1;
+    }
+
+    private Task take(int[] laneOut) throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                if (shutdown) return null;
+                for (Lane lane : Lane.values()) {
+                    List<Task> q = queues.get(lane.ordinal());
+                    if (!q.isEmpty() && running[lane.ordinal()] < lane.maxRunning) {
+                        running[lane.ordinal()]++;
+                        laneOut[0] = lane.ordinal();
+                        return q.remove(0);
+                    }
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    private void workLoop() {
+        int[] lane = new int[1];
+        try {
+            Task task;
+            while ((task = take(lane)) != null) {
+                try {
+                    task.work.run();
+                } catch (RuntimeException ignored) {
+                    // Tasks report their own errors through callbacks.
+                } finally {
+                    synchronized (lock) {
+                        running[lane[0]]--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // shutting down
+        }
+    }
+
+    private void shutdown() {
+        List<Task> cleared = new ArrayList<>();
+        synchronized (lock) {
+            shutdown = true;
+            for (List<Task> q : queues) {
+                cleared.addAll(q);
+                q.clear();
+            }
+            dropped += cleared.size();
+            lock.notifyAll();
+        }
+        for (Thread t : workers) t.interrupt();
+        // Outside the lock: a callback may submit again, which is then dropped at once
+        for (Task task : cleared) {
+            if (task.onDropped == null) continue;
+            try {
+                task.onDropped.run();
+            } catch (RuntimeException ignored) {
+                // one callback must not keep the others from hearing about it
+            }
+        }
+    }
+}
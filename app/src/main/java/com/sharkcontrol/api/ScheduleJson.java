@@ -0,0 +1,209 @@
+package com.sharkcontrol.api;
+
+import com.sharkcontrol.model.Schedule;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader and writer for the schedule list of GET_/SET_Schedule_Data.
+ *
+ * The list travels as a JSON string inside the datapoint:
+ * {@code {"datapoint":{"value":"[{\"id\":\"..\",\"hour\":8,\"minute\":0,
+ * \"enabled\":true,\"power_mode\":\"normal\",\"days\":[0,1]}]"}}}. Reading
+ * parses the embedded document straight from the response stream; writing
+ * appends both levels into one builder. Neither builds a JSONObject, and
+ * writing allocates nothing per schedule.
+ */
+final class ScheduleJson {
+
+    private static final String[] FIELDS = {"id", "hour", "minute", "enabled", "power_mode", "days"};
+    private static final String[] DATAPOINT_FIELDS = {"datapoint", "value", "updated_at", "created_at"};
+    private static final String[] EDIT_FIELDS = {"upsert", "delete"};
+
+    private ScheduleJson() {}
+
+    /** Schedule list and version of the first datapoint in {@code r}; version is null if there is none. */
+    static ScheduleMutations.Snapshot readDatapoint(JsonPullReader r) throws IOException {
+        List<Schedule> schedules = new ArrayList<>();
+        String[] version = new String[2]; // updated_at, created_at
+        if (r.peek() == JsonPullReader.BEGIN_ARRAY) {
+            r.beginArray();
+            if (r.hasNext()) readDatapointObject(r, schedules, version);
+            while (r.hasNext()) r.skipValue();
+            r.endArray();
+        } else if (r.peek() == JsonPullReader.BEGIN_OBJECT) {
+            readDatapointObject(r, schedules, version);
+        }
+        return new ScheduleMutations.Snapshot(schedules, version[0] != null ? version[0] : version[1]);
+    }
+
+    /** A datapoint, or a {"datapoint": ...} wrapper around one. */
+    private static void readDatapointObject(JsonPullReader r, List<Schedule> into, String[] version) throws IOException {
+        r.beginObject();
+        while (r.hasNext()) {
+            switch (r.nextStringIndex(DATAPOINT_FIELDS)) {
+                case 0:
+                    if (r.peek() == JsonPullReader.BEGIN_OBJECT) readDatapointObject(r, into, version);
+                    else r.skipValue();
+                    break;
+                case 1:
+                    try (Reader value = r.nextStringReader()) {
+                        JsonPullReader inner = new JsonPullReader(value);
+                        if (inner.peek() == JsonPullReader.BEGIN_ARRAY) readList(inner, into);
+                    }
+                    break;
+                case 2: version[0] = emptyToNull(r.peek() == JsonPullReader.STRING ? r.nextString() : skip(r)); break;
+                case 3: version[1] = emptyToNull(r.peek() == JsonPullReader.STRING ? r.nextString() : skip(r)); break;
+                default: r.skipValue();
+            }
+        }
+        r.endObject();
+    }
+
+    /** Reads a JSON array of schedules into {@code into}. */
+    static List<Schedule> readList(JsonPullReader r, List<Schedule> into) throws IOException {
+        r.beginArray();
+        while (r.hasNext()) into.add(readOne(r, String.valueOf(into.size())));
+        r.endArray();
+        return into;
+    }
+
+    static Schedule readOne(JsonPullReader r, String defaultId) throws IOException {
+        Schedule s = new Schedule();
+        String id = defaultId;
+        int hour = 8, minute = 0, mask = 0;
+        boolean enabled = true;
+        r.beginObject();
+        while (r.hasNext()) {
+            int field = r.nextStringIndex(FIELDS);
+            if (r.peek() == JsonPullReader.NULL) { r.skipValue(); continue; }
+            switch (field) {
+                case 0: id = r.peek() == JsonPullReader.STRING ? r.nextString() : String.valueOf(r.nextLong()); break;
+                case 1: hour = r.nextInt(); break;
+                case 2: minute = r.nextInt(); break;
+                case 3: enabled = r.nextBoolean(); break;
+                case 4: s.setPowerMode(r.nextString()); break;
+                case 5:
+                    r.beginArray();
+                    while (r.hasNext()) {
+                        int d = r.nextInt();
+                        if (d >= 0 && d < 7) mask |= 1 << d;
+                    }
+                    r.endArray();
+                    break;
+                default: r.skipValue();
+            }
+        }
+        r.endObject();
+        s.setId(id);
+        s.setStartMinute(Math.max(0, Math.min(23, hour)) * 60 + Math.max(0, Math.min(59, minute)));
+        s.setEnabled(enabled);
+        s.setDayMask(mask);
+        return s;
+    }
+
+    /** The body that writes {@code schedules} as a new SET_Schedule_Data datapoint. */
+    static String datapointBody(List<Schedule> schedules) {
+        StringBuilder inner = new StringBuilder(64 + 112 * schedules.size());
+        writeList(schedules, inner);
+        StringBuilder out = new StringBuilder(inner.length() + inner.length() / 4 + 32);
+        out.append("{\"datapoint\":{\"value\":");
+        quote(inner, out);
+        return out.append("}}").toString();
+    }
+
+    static void writeList(List<Schedule> schedules, StringBuilder out) {
+        out.append('[');
+        for (int i = 0; i < schedules.size(); i++) {
+            if (i > 0) out.append(',');
+            writeOne(schedules.get(i), out);
+        }
+        out.append(']');
+    }
+
+    static void writeOne(Schedule s, StringBuilder out) {
+        out.append("{\"id\":");
+        quote(s.getId() != null ? s.getId() : "", out);
+        out.append(",\"hour\":").append(s.getHour())
+                .append(",\"minute\":").append(s.getMinute())
+                .append(",\"enabled\":").append(s.isEnabled())
+                .append(",\"power_mode\":");
+        quote(s.getPowerMode() != null ? s.getPowerMode() : "normal", out);
+        out.append(",\"days\":[");
+        boolean first = true;
+        for (int d = 0; d < 7; d++) {
+            if (!s.hasDay(d)) continue;
+            if (!first) out.append(',');
+            out.append(d);
+            first = false;
+        }
+        out.append("]}");
+    }
+
+    /** Edits not yet written, for {@link LocalCache}: [{"upsert":{...}},{"delete":"id"}]. */
+    static String writeEdits(List<ScheduleMutations.Edit> edits) {
+        StringBuilder out = new StringBuilder(16 + 128 * edits.size()).append('[');
+        for (int i = 0; i < edits.size(); i++) {
+            ScheduleMutations.Edit e = edits.get(i);
+            if (i > 0) out.append(',');
+            if (e.schedule != null) {
+                out.append("{\"upsert\":");
+                writeOne(e.schedule, out);
+            } else {
+                out.append("{\"delete\":");
+                quote(e.deletedId, out);
+            }
+            out.append('}');
+        }
+        return out.append(']').toString();
+    }
+
+    static List<ScheduleMutations.Edit> readEdits(JsonPullReader r) throws IOException {
+        List<ScheduleMutations.Edit> edits = new ArrayList<>();
+        r.beginArray();
+        while (r.hasNext()) {
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextStringIndex(EDIT_FIELDS)) {
+                    case 0: edits.add(new ScheduleMutations.Edit(readOne(r, ""), null)); break;
+                    case 1: edits.add(new ScheduleMutations.Edit(null, r.nextString())); break;
+                    default: r.skipValue();
+                }
+            }
+            r.endObject();
+        }
+        r.endArray();
+        return edits;
+    }
+
+    /** Appends {@code s} as a JSON string literal. */
+    private static void quote(CharSequence s, StringBuilder out) {
+        out.append('"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static String skip(JsonPullReader r) throws IOException {
+        r.skipValue();
+        return null;
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+}
@@ -0,0 +1,180 @@
+package com.sharkcontrol.api;
+
+import com.sharkcontrol.model.Schedule;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queues schedule edits per DSN and writes them as one SET_Schedule_Data
+ * datapoint per batch. Edits made while a write is in flight go into the
+ * next batch, so ten quick toggles cost the same as one.
+ *
+ * Edits are operations (upsert, delete), not whole lists. Each batch reads
+ * the latest written datapoint first and applies its edits on top, so
+ * changes another writer made before are kept. After writing, the latest
+ * datapoint is read again: if its version (the datapoint's timestamp) is not
+ * the one just written, another writer posted meanwhile, and the batch is
+ * applied on top of their list and written again, up to
+ * {@link #MAX_REWRITES} times.
+ */
+final class ScheduleMutations {
+
+    /** One queued change: upsert of {@link #schedule}, or deletion of {@link #deletedId} if that is null. */
+    static final class Edit {
+        final Schedule schedule;
+        final String deletedId;
+
+        Edit(Schedule schedule, String deletedId) {
+            this.schedule = schedule;
+            this.deletedId = deletedId;
+        }
+
+        String id() { return schedule != null ? schedule.getId() : deletedId; }
+
+        void apply(List<Schedule> schedules) {
+            String id = id();
+            for (int i = 0; i < schedules.size(); i++) {
+                if (!id.equals(schedules.get(i).getId())) continue;
+                if (schedule != null) schedules.set(i, schedule); else schedules.remove(i);
+                return;
+            }
+            if (schedule != null) schedules.add(schedule);
+        }
+    }
+
+    /** A written schedule list and the version of its datapoint. */
+    static final class Snapshot {
+        final List<Schedule> schedules;
+        final String version;
+
+        Snapshot(List<Schedule> schedules, String version) {
+            this.schedules = schedules;
+            this.version = version;
+        }
+    }
+
+    interface Remote {
+        /** The latest written list; never null. */
+        Snapshot read(String dsn) throws Exception;
+
+        /** Writes {@code schedules} and returns the new version. */
+        String write(String dsn, List<Schedule> schedules) throws Exception;
+    }
+
+    static final int MAX_REWRITES = 3;
+
+    private static final Map<String, ScheduleMutations> byDsn = new HashMap<>();
+    private static long lastId;
+
+    private final String dsn;
+    private final List<Edit> pending = new ArrayList<>();
+    private final List<AylaApiClient.Callback<List<Schedule>>> waiters = new ArrayList<>();
+    private boolean scheduled;
+    private String writtenVersion; // version of this app's last write
+    private long batches, edits, conflicts;
+
+    private ScheduleMutations(String dsn) { this.dsn = dsn; }
+
+    static synchronized ScheduleMutations forDevice(String dsn) {
+        ScheduleMutations m = byDsn.get(dsn);
+        if (m == null) {
+            m = new ScheduleMutations(dsn);
+            byDsn.put(dsn, m);
+        }
+        return m;
+    }
+
+    /** A new unique schedule id; time based, like the ids other clients create. */
+    static synchronized String newId() {
+        lastId = Math.max(lastId + 1, System.currentTimeMillis());
+        return String.valueOf(lastId);
+    }
+
+    /** Adds or replaces {@code schedule} as it is now; later changes to the object are not picked up. */
+    static Edit upsert(Schedule schedule) {
+        return new Edit(schedule.copy(), null);
+    }
+
+    static Edit delete(String id) {
+        return new Edit(null, id);
+    }
+
+    /**
+     * Queues {@code batch}; {@code callback} gets the written list. Returns
+     * true if the caller has to schedule {@link #drain}.
+     */
+    synchronized boolean submit(List<Edit> batch, AylaApiClient.Callback<List<Schedule>> callback) {
+        pending.addAll(batch);
+        waiters.add(callback);
+        if (scheduled) return false;
+        scheduled = true;
+        return true;
+    }
+
+    /** Writes everything queued, one datapoint per round. Runs on a worker thread. */
+    void drain(Remote remote) {
+        while (true) {
+            List<Edit> batch;
+            List<AylaApiClient.Callback<List<Schedule>>> callbacks;
+            synchronized (this) {
+                if (pending.isEmpty()) { scheduled = false; return; }
+                batch = new ArrayList<>(pending);
+                callbacks = new ArrayList<>(waiters);
+                pending.clear();
+                waiters.clear();
+            }
+            List<Schedule> written;
+            try {
+                Snapshot latest = remote.read(dsn);
+                synchronized (this) {
+                    if (writtenVersion != null && !writtenVersion.equals(latest.version)) conflicts++;
+                }
+                String version;
+                for (int rewrites = 0; ; rewrites++) {
+                    written = new ArrayList<>(latest.schedules);
+                    for (Edit e : batch) e.apply(written);
+                    version = remote.write(dsn, written);
+                    if (version == null) break; // nothing to compare against
+                    latest = remote.read(dsn);
+                    if (version.equals(latest.version)) break;
+                    // Someone posted after us and their list lacks our edits
+                    synchronized (this) { conflicts++; }
+                    if (rewrites == MAX_REWRITES) throw new IOException("Zeitplan wird gerade anderswo geändert");
+                }
+                synchronized (this) {
+                    writtenVersion = version;
+                    batches++;
+                    edits += batch.size();
+                }
+            } catch (Exception e) {
+                for (AylaApiClient.Callback<List<Schedule>> cb : callbacks) {
+                    try { cb.onError(e.getMessage()); } catch (RuntimeException ignored) {}
+                }
+                continue;
+            }
+            for (AylaApiClient.Callback<List<Schedule>> cb : callbacks) {
+                try { cb.onSuccess(written); } catch (RuntimeException ignored) {}
+            }
+        }
+    }
+
+    /** The scheduled drain was shed: fails everything queued. */
+    void dropAll(String error) {
+        List<AylaApiClient.Callback<List<Schedule>>> callbacks;
+        synchronized (this) {
+            pending.clear();
+            callbacks = new ArrayList<>(waiters);
+            waiters.clear();
+            scheduled = false;
+        }
+        for (AylaApiClient.Callback<List<Schedule>> cb : callbacks) cb.onError(error);
+    }
+
+    synchronized String stats() {
+        return "batches=" + batches + " edits=" + edits + " conflicts=" + conflicts;
+    }
+}
@@ -0,0 +1,273 @@
+package com.sharkcontrol.api;
+
+import com.sharkcontrol.model.Schedule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The schedules of one robot as the user sees and edits them.
+ *
+ * Edits change the in-memory list right away; listeners hear about it
+ * before anything goes over the network. The list and the edits not yet
+ * written are persisted, so reopening the screen (or the app) shows them
+ * and the edits are replayed. Writes happen behind: one batch at a time goes
+ * out through {@link ScheduleMutations}, edits made meanwhile wait and go
+ * out together, and an unsent edit is replaced by a newer one of the same
+ * schedule. A failed batch is retried with backoff; after
+ * {@link #MAX_ATTEMPTS} it is given up, the list rolls back to what the
+ * cloud has, and listeners get {@link Listener#onError}.
+ *
+ * Lists handed out are read-only; to change a schedule, pass an edited
+ * {@link Schedule#copy()} to {@link #upsert}.
+ */
+public final class ScheduleRepository {
+
+    public interface Listener {
+        /** {@link #getSchedules()} changed. Called on a worker thread. */
+        void onSchedulesChanged();
+
+        /** Loading failed, or edits were given up and rolled back. Called on a worker thread. */
+        void onError(String error);
+    }
+
+    private static final long RETRY_MIN_MS = 2000;
+    private static final long RETRY_MAX_MS = 60 * 1000L;
+    private static final int MAX_ATTEMPTS = 6;
+
+    private static final Map<String, ScheduleRepository> byDsn = new HashMap<>();
+    // Persistence and retry timers; one thread keeps the writes in order
+    private static final ScheduledExecutorService io = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "schedule-store");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String dsn;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Random jitter = new Random();
+    // Oldest first; the first inFlight are being written
+    private final List<ScheduleMutations.Edit> pending = new ArrayList<>();
+    private List<Schedule> confirmed; // as last read from or written to the cloud; null until loaded
+    private List<Schedule> view = Collections.emptyList();
+    private AylaApiClient client;
+    private LocalCache cache;
+    private boolean restored, retryScheduled, cleared;
+    private int inFlight, failures;
+
+    private ScheduleRepository(String dsn) { this.dsn = dsn; }
+
+    static synchronized ScheduleRepository forDevice(String dsn) {
+        ScheduleRepository r = byDsn.get(dsn);
+        if (r == null) {
+            r = new ScheduleRepository(dsn);
+            byDsn.put(dsn, r);
+        }
+        return r;
+    }
+
+    /** Forgets all repositories and their unsent edits, e.g. on logout. */
+    static synchronized void clearAll() {
+        for (ScheduleRepository r : byDsn.values()) {
+            synchronized (r) {
+                r.cleared = true;
+                r.pending.clear();
+            }
+        }
+        byDsn.clear();
+    }
+
+    /** The list of {@code dsn} as the user sees it, if a repository has loaded it; else null. */
+    static List<Schedule> peek(String dsn) {
+        ScheduleRepository r;
+        synchronized (ScheduleRepository.class) { r = byDsn.get(dsn); }
+        if (r == null) return null;
+        synchronized (r) { return r.confirmed != null ? r.view : null; }
+    }
+
+    /** Writes go through the most recently attached open client. */
+    void attach(AylaApiClient c) {
+        boolean restore;
+        synchronized (this) {
+            client = c;
+            restore = cache == null;
+            cache = c.localCache();
+        }
+        if (restore) io.execute(this::restore);
+        else sync();
+    }
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+        boolean known;
+        synchronized (this) { known = confirmed != null || !pending.isEmpty(); }
+        if (known) l.onSchedulesChanged();
+    }
+
+    public void removeListener(Listener l) { listeners.remove(l); }
+
+    /** The list to show, including edits not yet written. */
+    public synchronized List<Schedule> getSchedules() { return view; }
+
+    /** True while edits are waiting to be written. */
+    public synchronized boolean hasPendingEdits() { return !pending.isEmpty(); }
+
+    /** Reads the list from the cloud (the cached copy first, if there is one). */
+    public void load() {
+        AylaApiClient c;
+        synchronized (this) { c = client; }
+        if (c == null) return;
+        c.getSchedules(dsn, new AylaApiClient.Callback<List<Schedule>>() {
+            @Override public void onCached(List<Schedule> schedules) { loaded(schedules); }
+            @Override public void onSuccess(List<Schedule> schedules) { loaded(schedules); }
+            @Override public void onError(String error) { for (Listener l : listeners) l.onError(error); }
+        });
+    }
+
+    /** Adds {@code s}, or replaces the schedule with its id. A schedule without id gets one. */
+    public void upsert(Schedule s) {
+        ScheduleMutations.Edit e = ScheduleMutations.upsert(s);
+        if (e.schedule.getId() == null) e.schedule.setId(ScheduleMutations.newId());
+        edit(e);
+    }
+
+    public void delete(String id) {
+        edit(ScheduleMutations.delete(id));
+    }
+
+    private void edit(ScheduleMutations.Edit e) {
+        synchronized (this) {
+            if (cleared) return;
+            String id = e.id();
+            for (int i = pending.size() - 1; i >= inFlight; i--) {
+                if (id.equals(pending.get(i).id())) pending.remove(i);
+            }
+            pending.add(e);
+            List<Schedule> v = new ArrayList<>(view);
+            e.apply(v);
+            view = Collections.unmodifiableList(v);
+        }
+        changed();
+        sync();
+    }
+
+    private void loaded(List<Schedule> schedules) {
+        synchronized (this) {
+            if (cleared) return;
+            confirmed = schedules;
+            rebuild();
+        }
+        for (Listener l : listeners) l.onSchedulesChanged();
+    }
+
+    /** Edits saved by an earlier process go before any made since. */
+    private void restore() {
+        LocalCache c;
+        synchronized (this) { c = cache; }
+        LocalCache.Entry<List<ScheduleMutations.Edit>> saved = c.read(LocalCache.SCHEDULE_EDITS, dsn);
+        boolean any;
+        synchronized (this) {
+            restored = true;
+            any = saved != null && !saved.value.isEmpty() && !cleared;
+            if (any) {
+                pending.addAll(0, saved.value); // nothing is in flight before restore
+                rebuild();
+            }
+        }
+        if (any) for (Listener l : listeners) l.onSchedulesChanged();
+        persist();
+        sync();
+    }
+
+    private void rebuild() {
+        List<Schedule> v = confirmed == null ? new ArrayList<>() : new ArrayList<>(confirmed);
+        for (ScheduleMutations.Edit e : pending) e.apply(v);
+        view = Collections.unmodifiableList(v);
+    }
+
+    /** Persists in the background, then tells the listeners. */
+    private void changed() {
+        io.execute(this::persist);
+        for (Listener l : listeners) l.onSchedulesChanged();
+    }
+
+    private void persist() {
+        LocalCache c;
+        List<ScheduleMutations.Edit> edits;
+        List<Schedule> v;
+        synchronized (this) {
+            if (!restored || cleared) return; // restore merges and persists first
+            c = cache;
+            edits = new ArrayList<>(pending);
+            v = confirmed != null ? view : null; // never cache a partial list as the robot's
+        }
+        if (edits.isEmpty()) c.invalidate(LocalCache.SCHEDULE_EDITS, dsn);
+        else c.write(LocalCache.SCHEDULE_EDITS, dsn, edits);
+        if (v != null) c.write(LocalCache.SCHEDULES, dsn, v);
+    }
+
+    private void sync() {
+        AylaApiClient c;
+        List<ScheduleMutations.Edit> batch;
+        synchronized (this) {
+            c = client;
+            if (!restored || cleared || inFlight > 0 || retryScheduled || pending.isEmpty()) return;
+            if (c == null || c.isClosed()) return; // resumed by the next attach
+            inFlight = pending.size();
+            batch = new ArrayList<>(pending);
+        }
+        c.submitScheduleEdits(dsn, batch, new AylaApiClient.Callback<List<Schedule>>() {
+            @Override public void onSuccess(List<Schedule> written) { written(written); }
+            @Override public void onError(String error) { failed(error); }
+        });
+    }
+
+    private void written(List<Schedule> written) {
+        synchronized (this) {
+            if (cleared) return;
+            pending.subList(0, inFlight).clear();
+            inFlight = 0;
+            failures = 0;
+            confirmed = written;
+            rebuild();
+        }
+        changed();
+        sync();
+    }
+
+    private void failed(String error) {
+        long delay = 0;
+        synchronized (this) {
+            if (cleared) return;
+            if (++failures < MAX_ATTEMPTS) {
+                inFlight = 0;
+                retryScheduled = true;
+                delay = Math.min(RETRY_MAX_MS, RETRY_MIN_MS << (failures - 1));
+                delay = (long) (delay * (0.8 + 0.4 * jitter.nextDouble()));
+            } else {
+                pending.subList(0, inFlight).clear();
+                inFlight = 0;
+                failures = 0;
+                rebuild();
+            }
+        }
+        if (delay > 0) {
+            io.schedule(() -> {
+                synchronized (this) { retryScheduled = false; }
+                sync();
+            }, delay, TimeUnit.MILLISECONDS);
+            return;
+        }
+        changed();
+        for (Listener l : listeners) l.onError(error);
+        sync();
+    }
+}
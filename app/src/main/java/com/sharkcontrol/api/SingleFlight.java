@@ -0,0 +1,57 @@
+package com.sharkcontrol.api;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collapses concurrent identical reads (keyed by DSN and resource) into one
+ * in-flight request. The first caller for a key becomes the leader and does
+ * the work; everyone who joins before it finishes gets the same result.
+ */
+final class SingleFlight {
+
+    private final Map<String, List<AylaApiClient.Callback<Object>>> inFlight = new HashMap<>();
+    private long calls;
+    private long coalesced;
+
+    /** Registers {@code callback} for {@code key}; returns true if the caller must run the request. */
+    @SuppressWarnings("unchecked")
+    synchronized <T> boolean join(String key, AylaApiClient.Callback<T> callback) {
+        calls++;
+        List<AylaApiClient.Callback<Object>> waiters = inFlight.get(key);
+        if (waiters != null) {
+            waiters.add((AylaApiClient.Callback<Object>) callback);
+            coalesced++;
+            return false;
+        }
+        waiters = new ArrayList<>(2);
+        waiters.add((AylaApiClient.Callback<Object>) callback);
+        inFlight.put(key, waiters);
+        return true;
+    }
+
+    void succeed(String key, Object result) {
+        for (AylaApiClient.Callback<Object> cb : finish(key)) {
+            try { cb.onSuccess(result); } catch (RuntimeException ignored) {}
+        }
+    }
+
+    void fail(String key, String error) {
+        for (AylaApiClient.Callback<Object> cb : finish(key)) {
+            try { cb.onError(error); } catch (RuntimeException ignored) {}
+        }
+    }
+
+    private synchronized List<AylaApiClient.Callback<Object>> finish(String key) {
+        List<AylaApiClient.Callback<Object>> waiters = inFlight.remove(key);
+        return waiters != null ? waiters : new ArrayList<>();
+    }
+
+    synchronized long coalescedCount() { return coalesced; }
+
+    synchronized String stats() {
+        return "reads=" + calls + " coalesced=" + coalesced;
+    }
+}
@@ -0,0 +1,93 @@
+package com.sharkcontrol.api;
+
+import com.sharkcontrol.model.RobotStatus;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Last known status and per-property data_updated_at for each robot.
+ *
+ * A poll starts from a copy of the last status, only parses the properties
+ * whose timestamp moved, and marks a RobotStatus field as changed only when
+ * its value actually differs. An idle robot therefore costs one small
+ * response and no parsing or UI work.
+ */
+final class StatusCache {
+
+    private static final StatusCache INSTANCE = new StatusCache();
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    static StatusCache get() { return INSTANCE; }
+
+    private static final class Entry {
+        RobotStatus status;
+        final String[] updatedAt = new String[PropertyQuery.STATUS.size()];
+    }
+
+    private synchronized Entry entry(String dsn) {
+        Entry e = entries.get(dsn);
+        if (e == null) { e = new Entry(); entries.put(dsn, e); }
+        return e;
+    }
+
+    synchronized void clear() { entries.clear(); }
+
+    /** Handler that applies one poll of {@link PropertyQuery#STATUS} to the cached status. */
+    final class Update implements PropertyParser.DeltaHandler {
+        private final Entry entry;
+        private final String[] updatedAt;
+        private final RobotStatus next;
+        private int changed;
+
+        Update(String dsn) {
+            entry = entry(dsn);
+            synchronized (entry) {
+                updatedAt = entry.updatedAt.clone();
+                next = entry.status != null ? new RobotStatus(entry.status) : new RobotStatus();
+                changed = entry.status != null ? 0 : RobotStatus.FIELDS_ALL;
+            }
+        }
+
+        @Override public String lastUpdatedAt(int index) { return updatedAt[index]; }
+
+        @Override public void onUpdatedAt(int index, String at) { updatedAt[index] = at; }
+
+        @Override
+        public void onProperty(int index, PropertyParser.Value v) {
+            switch (index) {
+                case 0: {
+                    String mode = v.asString();
+                    if (!eq(mode, next.getOperatingMode())) { next.setOperatingMode(mode); changed |= RobotStatus.FIELD_OPERATING_MODE; }
+                    break;
+                }
+                case 1: if (v.asInt() != next.getBatteryCapacity()) { next.setBatteryCapacity(v.asInt()); changed |= RobotStatus.FIELD_BATTERY; } break;
+                case 2: {
+                    String power = v.asString();
+                    if (!eq(power, next.getPowerMode())) { next.setPowerMode(power); changed |= RobotStatus.FIELD_POWER_MODE; }
+                    break;
+                }
+                case 3: if (v.asInt() != next.getCleaningTime()) { next.setCleaningTime(v.asInt()); changed |= RobotStatus.FIELD_CLEANING_TIME; } break;
+                case 4: if (v.asInt() != next.getErrorCode()) { next.setErrorCode(v.asInt()); changed |= RobotStatus.FIELD_ERROR; } break;
+                case 5: {
+                    boolean charging = v.asInt() > 0;
+                    if (charging != next.isCharging()) { next.setCharging(charging); changed |= RobotStatus.FIELD_CHARGING; }
+                    break;
+                }
+            }
+        }
+
+        /** Stores the result as the new baseline and returns it. */
+        RobotStatus commit() {
+            next.setChangedFields(changed);
+            synchronized (entry) {
+                System.arraycopy(updatedAt, 0, entry.updatedAt, 0, updatedAt.length);
+                entry.status = next;
+            }
+            return next;
+        }
+
+        private boolean eq(String a, String b) { return a == null ? b == null : a.equals(b); }
+    }
+}
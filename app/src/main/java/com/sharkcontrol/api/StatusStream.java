@@ -0,0 +1,134 @@
+package com.sharkcontrol.api;
+
+import com.sharkcontrol.model.RobotStatus;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Random;
+
+/**
+ * Live status for one robot over Ayla's datastream websocket.
+ *
+ * Runs on its own thread: creates a datapoint subscription, connects to the
+ * stream and turns each datapoint of a {@link PropertyQuery#STATUS} property
+ * into a RobotStatus update through {@link StatusCache}. The stream cannot
+ * replay missed events, so every (re)connect first runs one delta poll to
+ * catch up from the last seen data_updated_at. Drops reconnect with
+ * exponential backoff; while the stream is down the listener is told so the
+ * caller can fall back to polling.
+ */
+final class StatusStream implements AylaApiClient.Subscription {
+
+    private static final int READ_TIMEOUT_MS = 90 * 1000; // server heartbeats every ~30 s
+    private static final long RETRY_MIN_MS = 1000;
+    private static final long RETRY_MAX_MS = 5 * 60 * 1000L;
+
+    private final AylaApiClient client;
+    private final String dsn;
+    private final String oemModel;
+    private final AylaApiClient.StatusListener listener;
+    private final Thread thread;
+    private final Random jitter = new Random();
+    private volatile boolean cancelled;
+    private volatile WebSocketClient socket;
+    private String subscriptionId;
+    private String streamKey;
+
+    StatusStream(AylaApiClient client, String dsn, String oemModel, AylaApiClient.StatusListener listener) {
+        this.client = client;
+        this.dsn = dsn;
+        this.oemModel = oemModel;
+        this.listener = listener;
+        this.thread = new Thread(this::runLoop, "ayla-stream-" + dsn);
+        thread.setDaemon(true);
+    }
+
+    void start() { thread.start(); }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        WebSocketClient s = socket;
+        if (s != null) s.close();
+        thread.interrupt();
+    }
+
+    private void runLoop() {
+        int failures = 0;
+        while (!cancelled) {
+            boolean wasLive = false;
+            try {
+                if (streamKey == null) {
+                    String[] sub = client.createStreamSubscription(dsn, oemModel);
+                    subscriptionId = sub[0];
+                    streamKey = sub[1];
+                }
+                WebSocketClient s = new WebSocketClient(URI.create(client.streamUrl(streamKey)), READ_TIMEOUT_MS);
+                socket = s;
+                if (cancelled) break;
+                s.connect();
+                catchUp();
+                listener.onLiveChanged(true);
+                wasLive = true;
+                failures = 0;
+                s.run(text -> onMessage(s, text));
+            } catch (Exception e) {
+                failures++;
+                if (failures % 3 == 0) dropSubscription(); // stream key may have expired
+            }
+            socket = null;
+            if (wasLive) listener.onLiveChanged(false);
+            if (cancelled) break;
+            long delay = Math.min(RETRY_MAX_MS, RETRY_MIN_MS << Math.min(failures, 16));
+            try {
+                Thread.sleep((long) (delay * (0.8 + 0.4 * jitter.nextDouble())));
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        dropSubscription();
+    }
+
+    private void dropSubscription() {
+        if (subscriptionId != null) client.deleteStreamSubscription(subscriptionId);
+        subscriptionId = null;
+        streamKey = null;
+    }
+
+    /** Delta poll: delivers whatever changed while the stream was down. */
+    private void catchUp() throws Exception {
+        RobotStatus status = client.fetchStatus(dsn);
+        if (status.getChangedFields() != 0) listener.onStatus(status);
+    }
+
+    /** Messages are framed as "<length>|<payload>"; "Z" is the heartbeat. */
+    private void onMessage(WebSocketClient s, String text) throws IOException {
+        int bar = text.indexOf('|');
+        String payload = bar >= 0 ? text.substring(bar + 1) : text;
+        if ("Z".equals(payload)) {
+            s.sendText("Z");
+            return;
+        }
+        try {
+            JSONObject msg = new JSONObject(payload);
+            JSONObject meta = msg.optJSONObject("metadata");
+            JSONObject dp = msg.optJSONObject("datapoint");
+            if (meta == null || dp == null || !dsn.equals(meta.optString("dsn", dsn))) return;
+            int index = PropertyQuery.STATUS.indexOf(meta.optString("property_name"));
+            if (index < 0) return;
+
+            StatusCache.Update update = StatusCache.get().new Update(dsn);
+            String updatedAt = dp.optString("updated_at", dp.optString("created_at", null));
+            if (updatedAt != null) update.onUpdatedAt(index, updatedAt);
+            PropertyParser.Value value = new PropertyParser.Value();
+            value.set(dp.opt("value"));
+            update.onProperty(index, value);
+            RobotStatus status = update.commit();
+            client.rememberStatus(dsn, status);
+            if (status.getChangedFields() != 0) listener.onStatus(status);
+        } catch (org.json.JSONException ignored) {
+            // not a datapoint event
+        }
+    }
+}
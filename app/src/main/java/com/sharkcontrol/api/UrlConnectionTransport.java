@@ -0,0 +1,166 @@
+package com.sharkcontrol.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Default {@link HttpTransport} on top of {@link HttpURLConnection}.
+ *
+ * The platform keeps a keep-alive pool per host, but a connection only goes
+ * back into it once its body has been read to the end and the stream closed,
+ * which the old code never did - so every poll paid a fresh TLS handshake.
+ * The pool is bounded via the standard http.maxConnections property and new
+ * TLS connections are counted so reuse can be checked in {@link #stats()}.
+ */
+public final class UrlConnectionTransport implements HttpTransport {
+
+    private static final int MAX_IDLE_CONNECTIONS_PER_HOST = 4;
+    private static final long KEEP_ALIVE_MS = 5 * 60 * 1000L;
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    private static final UrlConnectionTransport INSTANCE = new UrlConnectionTransport();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final SSLSocketFactory socketFactory;
+
+    static {
+        // Read by the platform connection pool when it is first created.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS_PER_HOST));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_MS));
+    }
+
+    private UrlConnectionTransport() {
+        this(HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+
+    /** A transport with its own pool, on top of {@code tls}; for tests against a local server. */
+    UrlConnectionTransport(SSLSocketFactory tls) {
+        socketFactory = new CountingSocketFactory(tls, handshakes);
+    }
+
+    /** One shared instance so all clients share the same pool and counters. */
+    public static UrlConnectionTransport get() { return INSTANCE; }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        requests.incrementAndGet();
+        HttpURLConnection conn = (HttpURLConnection) new URL(request.url).openConnection();
+        // The pool is keyed on the socket factory, so always hand out the same instance.
+        if (conn instanceof HttpsURLConnection) ((HttpsURLConnection) conn).setSSLSocketFactory(socketFactory);
+        conn.setRequestMethod(request.method);
+        conn.setConnectTimeout(request.timeoutMs);
+        conn.setReadTimeout(request.timeoutMs);
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        for (int i = 0; i < request.headers.size(); i += 2) {
+            conn.setRequestProperty(request.headers.get(i), request.headers.get(i + 1));
+        }
+        if (request.body != null) {
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(request.body.length);
+            OutputStream out = conn.getOutputStream();
+            try { out.write(request.body); } finally { out.close(); }
+        }
+        return new ConnectionResponse(conn, conn.getResponseCode());
+    }
+
+    @Override
+    public String stats() {
+        return "requests=" + requests.get() + " tlsConnections=" + handshakes.get();
+    }
+
+    long requestCount() { return requests.get(); }
+
+    long tlsConnectionCount() { return handshakes.get(); }
+
+    private static final class ConnectionResponse extends Response {
+        private final HttpURLConnection conn;
+        private final int code;
+        private InputStream raw, body;
+
+        ConnectionResponse(HttpURLConnection conn, int code) {
+            this.conn = conn;
+            this.code = code;
+        }
+
+        @Override public int code() { return code; }
+
+        @Override
+        public InputStream body() throws IOException {
+            if (body != null) return body;
+            raw = code < 400 ? conn.getInputStream() : conn.getErrorStream();
+            if (raw == null) raw = new java.io.ByteArrayInputStream(new byte[0]);
+            body = raw;
+            if ("gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+                // 204s, HEADs and some error replies say gzip but have no body, so no gzip header either
+                PushbackInputStream in = new PushbackInputStream(raw, 1);
+                int first = in.read();
+                if (first == -1) {
+                    body = in;
+                } else {
+                    in.unread(first);
+                    body = new GZIPInputStream(in);
+                }
+            }
+            return body;
+        }
+
+        @Override
+        public void close() {
+            try {
+                InputStream in = body();
+                // Drain what is left so the connection can be reused instead of dropped.
+                byte[] skip = new byte[1024];
+                int total = 0, n;
+                while (total < DRAIN_LIMIT && (n = in.read(skip)) != -1) total += n;
+                in.close();
+            } catch (IOException ignored) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /** Counts freshly created TLS sockets, i.e. handshakes that were not avoided by reuse. */
+    private static final class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final AtomicLong counter;
+
+        CountingSocketFactory(SSLSocketFactory delegate, AtomicLong counter) {
+            this.delegate = delegate;
+            this.counter = counter;
+        }
+
+        @Override public String[] getDefaultCipherSuites() { return delegate.getDefaultCipherSuites(); }
+        @Override public String[] getSupportedCipherSuites() { return delegate.getSupportedCipherSuites(); }
+
+        @Override public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            counter.incrementAndGet(); return delegate.createSocket(s, host, port, autoClose);
+        }
+        @Override public Socket createSocket() throws IOException {
+            counter.incrementAndGet(); return delegate.createSocket();
+        }
+        @Override public Socket createSocket(String host, int port) throws IOException {
+            counter.incrementAndGet(); return delegate.createSocket(host, port);
+        }
+        @Override public Socket createSocket(String host, int port, InetAddress local, int localPort) throws IOException {
+            counter.incrementAndGet(); return delegate.createSocket(host, port, local, localPort);
+        }
+        @Override public Socket createSocket(InetAddress host, int port) throws IOException {
+            counter.incrementAndGet(); return delegate.createSocket(host, port);
+        }
+        @Override public Socket createSocket(InetAddress address, int port, InetAddress local, int localPort) throws IOException {
+            counter.incrementAndGet(); return delegate.createSocket(address, port, local, localPort);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.sharkcontrol.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.regex.Pattern;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Just enough of RFC 6455 for Ayla's datastream: one TLS connection, text
+ * frames in both directions, ping/pong and close. Reads block on the calling
+ * thread; a read timeout longer than the server heartbeat detects dead links.
+ */
+final class WebSocketClient {
+
+    interface Listener {
+        void onText(String text) throws IOException;
+    }
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OP_CONTINUATION = 0x0, OP_TEXT = 0x1, OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8, OP_PING = 0x9, OP_PONG = 0xA;
+    private static final int MAX_MESSAGE = 1024 * 1024;
+    private static final Pattern IP_LITERAL = Pattern.compile("[0-9.]+|\\[?[0-9a-fA-F]*:[0-9a-fA-F:.]*]?");
+
+    private final URI uri;
+    private final int readTimeoutMs;
+    private final SSLSocketFactory tls;
+    private final SecureRandom random = new SecureRandom();
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private volatile boolean closed;
+
+    WebSocketClient(URI uri, int readTimeoutMs) {
+        this(uri, readTimeoutMs, (SSLSocketFactory) SSLSocketFactory.getDefault());
+    }
+
+    WebSocketClient(URI uri, int readTimeoutMs, SSLSocketFactory tls) {
+        this.uri = uri;
+        this.readTimeoutMs = readTimeoutMs;
+        this.tls = tls;
+    }
+
+    void connect() throws IOException {
+        boolean secure = "wss".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(uri.getHost(), port), 10000);
+            s.setSoTimeout(readTimeoutMs);
+            if (secure) {
+                // Layered with the host name so SNI is sent, and the certificate must match that name
+                SSLSocket ssl = (SSLSocket) tls.createSocket(s, uri.getHost(), port, true);
+                SSLParameters params = ssl.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                if (!IP_LITERAL.matcher(uri.getHost()).matches()) {
+                    params.setServerNames(Collections.singletonList(new SNIHostName(uri.getHost())));
+                }
+                ssl.setSSLParameters(params);
+                ssl.startHandshake();
+                s = ssl;
+            }
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+        in = new BufferedInputStream(s.getInputStream());
+        out = s.getOutputStream();
+
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String key = Base64.getEncoder().encodeToString(nonce);
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + uri.getHost() + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n";
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        String status = readLine();
+        if (!status.startsWith("HTTP/1.1 101")) throw new IOException("WebSocket handshake failed: " + status);
+        String accept = null;
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                accept = line.substring(colon + 1).trim();
+            }
+        }
+        if (!expectedAccept(key).equals(accept)) throw new IOException("WebSocket handshake: bad accept key");
+    }
+
+    /** Reads messages until the connection closes or fails. */
+    void run(Listener listener) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        while (!closed) {
+            int b0 = in.read();
+            int b1 = in.read();
+            if (b0 < 0 || b1 < 0) throw new EOFException("WebSocket closed");
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            long len = b1 & 0x7F;
+            if (len == 126) len = (readByte() << 8) | readByte();
+            else if (len == 127) { len = 0; for (int i = 0; i < 8; i++) len = (len << 8) | readByte(); }
+            if (len > MAX_MESSAGE) throw new IOException("WebSocket frame too large");
+            byte[] mask = null;
+            if ((b1 & 0x80) != 0) { mask = new byte[4]; readFully(mask); }
+            byte[] payload = new byte[(int) len];
+            readFully(payload);
+            if (mask != null) for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+
+            switch (opcode) {
+                case OP_PING:
+                    send(OP_PONG, payload);
+                    break;
+                case OP_CLOSE:
+                    if (!closed) send(OP_CLOSE, new byte[0]);
+                    closed = true;
+                    return;
+                case OP_TEXT: case OP_BINARY: case OP_CONTINUATION:
+                    message.write(payload, 0, payload.length);
+                    if (message.size() > MAX_MESSAGE) throw new IOException("WebSocket message too large");
+                    if (fin) {
+                        listener.onText(new String(message.toByteArray(), StandardCharsets.UTF_8));
+                        message.reset();
+                    }
+                    break;
+                default:
+                    break; // pong and reserved opcodes
+            }
+        }
+    }
+
+    void sendText(String text) throws IOException {
+        send(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        try { send(OP_CLOSE, new byte[0]); } catch (IOException ignored) {}
+        try { if (socket != null) socket.close(); } catch (IOException ignored) {}
+    }
+
+    private synchronized void send(int opcode, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+        frame.write(0x80 | opcode);
+        int len = payload.length;
+        if (len < 126) {
+            frame.write(0x80 | len);
+        } else if (len <= 0xFFFF) {
+            frame.write(0x80 | 126);
+            frame.write(len >>> 8);
+            frame.write(len);
+        } else {
+            frame.write(0x80 | 127);
+            for (int i = 7; i >= 0; i--) frame.write(i > 3 ? 0 : len >>> (8 * i));
+        }
+        // Client frames must be masked.
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        frame.write(mask, 0, 4);
+        for (int i = 0; i < len; i++) frame.write(payload[i] ^ mask[i & 3]);
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException("WebSocket closed");
+        return b;
+    }
+
+    private void readFully(byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            if (n < 0) throw new EOFException("WebSocket closed");
+            off += n;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') if (c != '\r') sb.append((char) c);
+        if (c == -1 && sb.length() == 0) throw new EOFException("WebSocket handshake: connection closed");
+        return sb.toString();
+    }
+
+    private static String expectedAccept(String key) throws IOException {
+        try {
+            byte[] sha1 = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(sha1);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.sharkcontrol.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How many cleaning runs covered each cell of a robot's map, accumulated
+ * across runs, for the heatmap view.
+ *
+ * The counters live in a memory-mapped file, so only the pages being
+ * merged or drawn are resident however many runs were recorded. Every
+ * cell has a 16-bit run count (saturating) and a 16-bit mark holding the
+ * run it was last counted for. The mark makes merging idempotent: the
+ * repeated refreshes of one run, and the same map seen again after an app
+ * restart, count every cell once. A refresh that carries a {@link MapDiff}
+ * only touches the changed blocks.
+ *
+ * A new run is detected when the cleaned area falls below half of the
+ * current run's peak, because the robot starts each run with a fresh
+ * cleaned grid. If the map changes shape, the old counts can't be lined up
+ * with it and the history starts over.
+ */
+public final class CoverageMap {
+
+    private static final int MAGIC = 0x53434F56; // "SCOV"
+    private static final int VERSION = 1;
+    // Header ints: magic, version, width, height, runs, run peak, max count, reserved
+    private static final int HEADER = 32;
+    private static final int H_WIDTH = 8, H_HEIGHT = 12, H_RUNS = 16, H_PEAK = 20, H_MAX = 24;
+    private static final int MAX_COUNT = 0xFFFF;
+
+    private static final Map<String, CoverageMap> open = new HashMap<>();
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private CharBuffer counts, marks;
+    private int width, height, runs, runPeak, maxCount;
+    private WeakReference<MapData> lastMerged = new WeakReference<>(null);
+
+    private CoverageMap(File file) throws IOException {
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        if (raf.length() >= HEADER) {
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            int w = head.getInt(H_WIDTH), h = head.getInt(H_HEIGHT);
+            if (head.getInt(0) == MAGIC && head.getInt(4) == VERSION && w > 0 && h > 0
+                    && raf.length() == HEADER + 4L * w * h) {
+                map(w, h);
+                runs = buffer.getInt(H_RUNS);
+                runPeak = buffer.getInt(H_PEAK);
+                maxCount = buffer.getInt(H_MAX);
+            }
+        }
+    }
+
+    /** The coverage of robot {@code dsn}, stored in {@code dir}. */
+    public static CoverageMap forDevice(File dir, String dsn) throws IOException {
+        synchronized (open) {
+            CoverageMap c = open.get(dsn);
+            if (c == null) {
+                if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+                c = new CoverageMap(new File(dir, dsn.replaceAll("[^A-Za-z0-9_-]", "_") + ".cov"));
+                open.put(dsn, c);
+            }
+            return c;
+        }
+    }
+
+    /** Closes all open coverage maps and deletes their files, e.g. on logout. */
+    public static void deleteAll(File dir) {
+        synchronized (open) {
+            for (CoverageMap c : open.values()) c.close();
+            open.clear();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+    }
+
+    private void map(int w, int h) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 4L * w * h);
+        ByteBuffer b = buffer.duplicate();
+        b.position(HEADER);
+        counts = b.slice().asCharBuffer();
+        b.position(HEADER + 2 * w * h);
+        marks = b.slice().asCharBuffer();
+        width = w;
+        height = h;
+    }
+
+    /** Starts an empty history for a {@code w x h} map. */
+    private void reset(int w, int h) throws IOException {
+        buffer = null;
+        counts = marks = null;
+        channel.truncate(0);
+        map(w, h); // grows the file; new bytes read as zero
+        runs = runPeak = maxCount = 0;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(H_WIDTH, w);
+        buffer.putInt(H_HEIGHT, h);
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        buffer.putInt(H_RUNS, runs);
+        buffer.putInt(H_PEAK, runPeak);
+        buffer.putInt(H_MAX, maxCount);
+    }
+
+    /** Counts the cleaned cells of {@code map} for its run. */
+    public synchronized void merge(MapData map) throws IOException {
+        if (!map.hasData() || map == lastMerged.get() || !channel.isOpen()) return;
+        int w = map.getWidth(), h = map.getHeight();
+        if (buffer == null || w != width || h != height) reset(w, h);
+
+        int cleaned = map.getCleanedCells();
+        boolean newRun = runs == 0 || cleaned < runPeak / 2;
+        if (newRun) {
+            runs++;
+            runPeak = 0;
+        }
+        runPeak = Math.max(runPeak, cleaned);
+        char mark = (char) ((runs - 1) % MAX_COUNT + 1); // never 0, the mark of untouched cells
+
+        byte[] cells = map.getCells();
+        MapDiff diff = map.getChanges();
+        if (!newRun && diff != null && diff.appliesTo(lastMerged.get())) {
+            diff.forEachDirtyRect((x0, y0, x1, y1) -> mergeRect(cells, mark, x0, y0, x1, y1));
+        } else {
+            mergeRect(cells, mark, 0, 0, w, h);
+        }
+        writeHeader();
+        lastMerged = new WeakReference<>(map);
+    }
+
+    private void mergeRect(byte[] cells, char mark, int x0, int y0, int x1, int y1) {
+        CharBuffer c = counts, m = marks;
+        int max = maxCount;
+        for (int y = y0; y < y1; y++) {
+            for (int i = y * width + x0, end = y * width + x1; i < end; i++) {
+                if (cells[i] != MapData.CELL_FLOOR || m.get(i) == mark) continue;
+                m.put(i, mark);
+                int n = c.get(i);
+                if (n < MAX_COUNT) c.put(i, (char) ++n);
+                if (n > max) max = n;
+            }
+        }
+        maxCount = max;
+    }
+
+    public synchronized int getWidth() { return width; }
+    public synchronized int getHeight() { return height; }
+
+    /** Number of runs merged so far. */
+    public synchronized int getRuns() { return runs; }
+
+    /** Highest count of any cell. */
+    public synchronized int getMaxCount() { return maxCount; }
+
+    public synchronized int getCount(int x, int y) {
+        return counts == null ? 0 : counts.get(y * width + x);
+    }
+
+    /** Copies {@code len} counts of row {@code y}, starting at {@code x}, into {@code dst}. */
+    public synchronized void readRow(int x, int y, int len, char[] dst) {
+        if (counts == null) {
+            java.util.Arrays.fill(dst, 0, len, (char) 0);
+            return;
+        }
+        CharBuffer c = counts.duplicate();
+        c.position(y * width + x);
+        c.get(dst, 0, len);
+    }
+
+    private synchronized void close() {
+        buffer = null;
+        counts = marks = null;
+        width = height = 0;
+        try {
+            raf.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -1,20 +1,75 @@
 package com.sharkcontrol.model;
 
+import java.util.Collections;
+import java.util.List;
+
 public class MapData {
     public static final int CELL_UNKNOWN = 0;
     public static final int CELL_FLOOR   = 1;
     public static final int CELL_WALL    = 2;
     public static final int CELL_ROBOT   = 255;
 
-    private int[][] grid;
+    /** Each cell is 50x50mm. */
+    public static final float CELL_AREA_SQM = 0.0025f;
+
+    // Row-major, one byte per cell: cells[y * width + x]. A flat array keeps a
+    // large map in one allocation instead of one int[] per row.
+    private byte[] cells;
+    private int width, height;
     private int robotX = -1, robotY = -1;
     private float robotAngle = 0f;
     private int chargeX = -1, chargeY = -1;
     private int cleanedCells = 0;
     private int totalCells = 0;
+    private MapDiff changes;
+    private List<Room> rooms = Collections.emptyList();
+    private final MapTimings timings = new MapTimings();
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+
+    /** Takes ownership of {@code cells} (row-major, {@code width * height} bytes). */
+    public void setGrid(int width, int height, byte[] cells) {
+        if (cells.length < width * height) throw new IllegalArgumentException("grid too small");
+        this.width = width;
+        this.height = height;
+        this.cells = cells;
+    }
+
+    /** Backing store, row-major; index with {@link #rowOffset(int)} + x. Do not modify. */
+    public byte[] getCells() { return cells; }
+
+    public int rowOffset(int y) { return y * width; }
+
+    public int getCell(int x, int y) { return cells[y * width + x] & 0xFF; }
+
+    /** Copies the {@code w x h} region at ({@code x}, {@code y}) row by row into {@code dst}. */
+    public void copyRegion(int x, int y, int w, int h, byte[] dst) {
+        for (int r = 0; r < h; r++) System.arraycopy(cells, (y + r) * width + x, dst, r * w, w);
+    }
 
-    public int[][] getGrid() { return grid; }
-    public void setGrid(int[][] grid) { this.grid = grid; }
+    /** Number of cells with the given value. */
+    public int countCells(int value) {
+        byte v = (byte) value;
+        int n = 0, end = width * height;
+        for (int i = 0; i < end; i++) if (cells[i] == v) n++;
+        return n;
+    }
+
+    public interface CellVisitor {
+        void visit(int x, int y, int value);
+    }
+
+    /** Calls {@code visitor} for every cell that is not {@link #CELL_UNKNOWN}, row by row. */
+    public void forEachKnownCell(CellVisitor visitor) {
+        for (int y = 0; y < height; y++) {
+            int off = y * width;
+            for (int x = 0; x < width; x++) {
+                int v = cells[off + x] & 0xFF;
+                if (v != CELL_UNKNOWN) visitor.visit(x, y, v);
+            }
+        }
+    }
 
     public int getRobotX() { return robotX; }
     public void setRobotX(int robotX) { this.robotX = robotX; }
@@ -37,12 +92,23 @@ public class MapData {
     public int getTotalCells() { return totalCells; }
     public void setTotalCells(int totalCells) { this.totalCells = totalCells; }
 
+    /** What changed against the previously loaded map of the same robot; null if unknown. */
+    public MapDiff getChanges() { return changes; }
+    public void setChanges(MapDiff changes) { this.changes = changes; }
+
+    /** Rooms found by {@link RoomSegmenter}; empty until the map was segmented. */
+    public List<Room> getRooms() { return rooms; }
+    public void setRooms(List<Room> rooms) { this.rooms = rooms; }
+
+    /** Time spent in each stage of loading and showing this map. */
+    public MapTimings getTimings() { return timings; }
+
     public boolean hasData() {
-        return grid != null && grid.length > 0;
+        return cells != null && width > 0 && height > 0;
     }
 
     /** Returns cleaned area in square meters (each cell = 50x50mm = 0.0025 m²) */
     public float getCleanedAreaSqm() {
-        return cleanedCells * 0.0025f;
+        return cleanedCells * CELL_AREA_SQM;
     }
 }
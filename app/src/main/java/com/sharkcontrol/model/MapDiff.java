@@ -0,0 +1,99 @@
+package com.sharkcontrol.model;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Which parts of a map changed against the map it replaces, tracked per
+ * {@link #BLOCK} x {@link #BLOCK} block of cells. Lets the view repaint only
+ * the changed regions during a cleaning run, where a refresh usually touches
+ * a few cells.
+ */
+public final class MapDiff {
+
+    public static final int BLOCK = 16;
+
+    public interface RectVisitor {
+        /** Dirty region in cells, end exclusive. */
+        void visit(int x0, int y0, int x1, int y1);
+    }
+
+    // Weak so a chain of refreshes doesn't keep every earlier map alive.
+    private final WeakReference<MapData> base;
+    private final int width, height;
+    private final int blocksX, blocksY;
+    private final boolean[] dirty;
+    private int dirtyCount;
+    private int minBx = Integer.MAX_VALUE, minBy = Integer.MAX_VALUE, maxBx = -1, maxBy = -1;
+
+    private MapDiff(MapData base, int width, int height) {
+        this.base = new WeakReference<>(base);
+        this.width = width;
+        this.height = height;
+        this.blocksX = (width + BLOCK - 1) / BLOCK;
+        this.blocksY = (height + BLOCK - 1) / BLOCK;
+        this.dirty = new boolean[blocksX * blocksY];
+    }
+
+    /** The changes from {@code before} to {@code after}, or null if they don't have the same shape. */
+    public static MapDiff between(MapData before, MapData after) {
+        if (before == null || after == null || !before.hasData() || !after.hasData()) return null;
+        int w = after.getWidth(), h = after.getHeight();
+        if (before.getWidth() != w || before.getHeight() != h) return null;
+        MapDiff diff = new MapDiff(before, w, h);
+        byte[] a = before.getCells(), b = after.getCells();
+        if (a == b) return diff;
+        for (int y = 0; y < h; y++) {
+            int off = y * w, by = y / BLOCK;
+            for (int x = 0; x < w; x++) {
+                if (a[off + x] != b[off + x]) {
+                    // Mark the block and jump to the next one; the rest of it needs no compare.
+                    diff.mark(x / BLOCK, by);
+                    x = (x / BLOCK + 1) * BLOCK - 1;
+                }
+            }
+        }
+        return diff;
+    }
+
+    private void mark(int bx, int by) {
+        int i = by * blocksX + bx;
+        if (dirty[i]) return;
+        dirty[i] = true;
+        dirtyCount++;
+        minBx = Math.min(minBx, bx); maxBx = Math.max(maxBx, bx);
+        minBy = Math.min(minBy, by); maxBy = Math.max(maxBy, by);
+    }
+
+    /** True if these changes apply on top of {@code map}. */
+    public boolean appliesTo(MapData map) { return map != null && base.get() == map; }
+
+    public boolean isEmpty() { return dirtyCount == 0; }
+
+    public int getDirtyBlockCount() { return dirtyCount; }
+
+    /** True if any changed cell may lie in the given cell rectangle (end exclusive). */
+    public boolean intersects(int x0, int y0, int x1, int y1) {
+        if (dirtyCount == 0) return false;
+        int bx0 = Math.max(minBx, x0 / BLOCK), by0 = Math.max(minBy, y0 / BLOCK);
+        int bx1 = Math.min(maxBx, (Math.min(x1, width) - 1) / BLOCK);
+        int by1 = Math.min(maxBy, (Math.min(y1, height) - 1) / BLOCK);
+        for (int by = by0; by <= by1; by++) {
+            for (int bx = bx0; bx <= bx1; bx++) if (dirty[by * blocksX + bx]) return true;
+        }
+        return false;
+    }
+
+    /** Reports the changed regions, merging horizontally adjacent blocks. */
+    public void forEachDirtyRect(RectVisitor visitor) {
+        for (int by = minBy; by <= maxBy; by++) {
+            int bx = minBx;
+            while (bx <= maxBx) {
+                if (!dirty[by * blocksX + bx]) { bx++; continue; }
+                int start = bx;
+                while (bx <= maxBx && dirty[by * blocksX + bx]) bx++;
+                visitor.visit(start * BLOCK, by * BLOCK,
+                        Math.min(bx * BLOCK, width), Math.min((by + 1) * BLOCK, height));
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.sharkcontrol.model;
+
+/**
+ * How long each stage took to bring one map to the screen, in nanoseconds.
+ *
+ * FETCH is the whole download. The grid is decoded while it streams in, so
+ * DECODE is part of FETCH rather than following it. ANALYSE covers change
+ * detection, room segmentation and coverage merging, BUILD the render
+ * frame, and HANDOFF the wait until the UI thread picked the frame up.
+ */
+public final class MapTimings {
+
+    public static final int FETCH = 0, DECODE = 1, ANALYSE = 2, BUILD = 3, HANDOFF = 4;
+    private static final String[] NAMES = {"fetch", "decode", "analyse", "build", "handoff"};
+
+    private final long[] nanos = new long[NAMES.length];
+
+    public synchronized void set(int stage, long value) { nanos[stage] = value; }
+    public synchronized void add(int stage, long value) { nanos[stage] += value; }
+    public synchronized long get(int stage) { return nanos[stage]; }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nanos.length; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(NAMES[i]).append('=').append(nanos[i] / 100000 / 10f).append("ms");
+        }
+        return sb.toString();
+    }
+}
@@ -1,6 +1,14 @@
 package com.sharkcontrol.model;
 
 public class RobotStatus {
+    public static final int FIELD_OPERATING_MODE = 1;
+    public static final int FIELD_BATTERY        = 1 << 1;
+    public static final int FIELD_POWER_MODE     = 1 << 2;
+    public static final int FIELD_CLEANING_TIME  = 1 << 3;
+    public static final int FIELD_ERROR          = 1 << 4;
+    public static final int FIELD_CHARGING       = 1 << 5;
+    public static final int FIELDS_ALL           = (1 << 6) - 1;
+
     private String operatingMode;
     private int batteryCapacity;
     private String powerMode;
@@ -9,6 +17,22 @@ public class RobotStatus {
     private int volume;
     private boolean charging;
     private int rssi;
+    private int changedFields = FIELDS_ALL;
+
+    public RobotStatus() {}
+
+    /** Copy of {@code other} with no fields marked as changed. */
+    public RobotStatus(RobotStatus other) {
+        operatingMode = other.operatingMode;
+        batteryCapacity = other.batteryCapacity;
+        powerMode = other.powerMode;
+        cleaningTime = other.cleaningTime;
+        errorCode = other.errorCode;
+        volume = other.volume;
+        charging = other.charging;
+        rssi = other.rssi;
+        changedFields = 0;
+    }
 
     public String getOperatingMode() { return operatingMode; }
     public void setOperatingMode(String operatingMode) { this.operatingMode = operatingMode; }
@@ -35,4 +59,10 @@ public class RobotStatus {
     public void setRssi(int rssi) { this.rssi = rssi; }
 
     public boolean hasError() { return errorCode > 0; }
+
+    /** FIELD_* bits that differ from the previous poll of the same robot. */
+    public int getChangedFields() { return changedFields; }
+    public void setChangedFields(int changedFields) { this.changedFields = changedFields; }
+
+    public boolean hasChanged(int field) { return (changedFields & field) != 0; }
 }
@@ -0,0 +1,38 @@
+package com.sharkcontrol.model;
+
+/** A room found by {@link RoomSegmenter}, measured in map cells. */
+public final class Room {
+    private final int id;
+    private final int cells, cleanedCells;
+    private final int left, top, right, bottom;
+
+    Room(int id, int cells, int cleanedCells, int left, int top, int right, int bottom) {
+        this.id = id;
+        this.cells = cells;
+        this.cleanedCells = cleanedCells;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    /** 1-based, numbered from the top left of the map. */
+    public int getId() { return id; }
+
+    /** Floor cells plus the unexplored cells enclosed by the room. */
+    public int getCells() { return cells; }
+    public int getCleanedCells() { return cleanedCells; }
+
+    // Bounding box in cells, right and bottom inclusive
+    public int getLeft() { return left; }
+    public int getTop() { return top; }
+    public int getRight() { return right; }
+    public int getBottom() { return bottom; }
+
+    public float getAreaSqm() { return cells * MapData.CELL_AREA_SQM; }
+    public float getCleanedAreaSqm() { return cleanedCells * MapData.CELL_AREA_SQM; }
+
+    public int getCleanedPercent() {
+        return cells == 0 ? 0 : Math.round(cleanedCells * 100f / cells);
+    }
+}
@@ -0,0 +1,437 @@
+package com.sharkcontrol.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits a map into rooms and measures each one: area, cleaned share and
+ * bounding box.
+ *
+ * Doorways are floor cells in a gap in a wall: a passage at most
+ * {@link #DOOR_MAX_CELLS} wide, along the row or the column, that opens
+ * into wider areas at both ends within {@link #DOOR_DEPTH_CELLS} and less
+ * than half its width. They separate rooms. The strip between furniture
+ * and a wall is narrow too, but longer, so it stays part of its room.
+ * Doorways and other small pieces join their largest neighbour. Unknown cells enclosed by the map count as
+ * the not yet cleaned part of the room they lie in. Unknown cells connected
+ * to the map border are outside.
+ *
+ * The grid is labelled per {@link MapDiff#BLOCK}-sized block, and the block
+ * parts are then joined with a union-find. After a refresh with a diff, only
+ * the changed blocks and a doorway-width margin are relabelled. The join
+ * works on parts, not cells, so it stays cheap on large maps. One instance
+ * per DSN keeps this state between refreshes, and the result is cached for
+ * the map it was computed for.
+ */
+public final class RoomSegmenter {
+
+    /** Widest passage, in cells, that still counts as a doorway (90 cm). */
+    public static final int DOOR_MAX_CELLS = 18;
+    /** Longest passage, in cells, that still counts as a doorway (30 cm, a thick wall). */
+    public static final int DOOR_DEPTH_CELLS = 6;
+    /** Smallest room, in cells (1 m²). */
+    public static final int MIN_ROOM_CELLS = 400;
+
+    private static final int B = MapDiff.BLOCK;
+    private static final int DEPTH = DOOR_DEPTH_CELLS;    // cells around a block whose runs the doorway test reads
+    private static final int REACH = DOOR_MAX_CELLS + 1 + DEPTH; // cells that can change a cell's doorway test
+    private static final int E = B + 2 * DEPTH;           // row length of the run scratch
+    private static final byte WALL = 0, FLOOR = 1, UNKNOWN = 2, DOOR = 3;
+    // Per-part statistics, S_LEN ints each
+    private static final int S_CELLS = 0, S_FLOOR = 1, S_MINX = 2, S_MINY = 3, S_MAXX = 4, S_MAXY = 5, S_LEN = 6;
+
+    private static final Map<String, RoomSegmenter> byDsn = new HashMap<>();
+
+    /** Connected same-type pieces of one block. */
+    private static final class Block {
+        int parts;
+        byte[] type;
+        boolean[] border; // touches the edge of the map
+        int[] stats;
+        int[] edges;      // adjacent parts of different type, (a << 16) | b, 1-based
+    }
+
+    private MapData last;
+    private List<Room> rooms = Collections.emptyList();
+    private int width, height, blocksX, blocksY;
+    private Block[] blocks;
+    private short[] labels; // per cell: 1-based part within its block, 0 for walls
+
+    // Scratch for labelBlock()
+    private final int[] runH = new int[E * E], runV = new int[E * E], colStart = new int[E];
+    private int ex0, ey0; // map position of the run scratch's first cell
+    private final byte[] cellType = new byte[B * B];
+    private final short[] local = new short[B * B];
+    private final int[] stack = new int[B * B];
+    private final byte[] partType = new byte[B * B];
+    private final boolean[] partBorder = new boolean[B * B];
+    private final int[] partStats = new int[B * B * S_LEN];
+    private final int[] partEdges = new int[2 * B * B];
+
+    // Scratch for join(), indexed by global part id
+    private int[] base = new int[0], parent = new int[0], agg = new int[0], edges = new int[64];
+    private byte[] type = new byte[0];
+    private boolean[] outside = new boolean[0];
+    private int edgeCount;
+
+    private RoomSegmenter() {}
+
+    public static synchronized RoomSegmenter forDevice(String dsn) {
+        RoomSegmenter s = byDsn.get(dsn);
+        if (s == null) {
+            s = new RoomSegmenter();
+            byDsn.put(dsn, s);
+        }
+        return s;
+    }
+
+    /**
+     * Returns the rooms of {@code map}. If the map carries a diff against
+     * the previously segmented one, only the changed region is relabelled.
+     */
+    public synchronized List<Room> segment(MapData map) {
+        if (map == null || !map.hasData()) return Collections.emptyList();
+        if (map == last) return rooms;
+        MapDiff diff = map.getChanges();
+        byte[] cells = map.getCells();
+        if (blocks != null && map.getWidth() == width && map.getHeight() == height
+                && diff != null && diff.appliesTo(last)) {
+            last = map;
+            if (diff.isEmpty()) return rooms;
+            boolean[] dirty = new boolean[blocks.length];
+            diff.forEachDirtyRect((x0, y0, x1, y1) -> {
+                int bx0 = Math.max(0, x0 - REACH) / B, bx1 = Math.min(width - 1, x1 - 1 + REACH) / B;
+                int by0 = Math.max(0, y0 - REACH) / B, by1 = Math.min(height - 1, y1 - 1 + REACH) / B;
+                for (int by = by0; by <= by1; by++) {
+                    for (int bx = bx0; bx <= bx1; bx++) dirty[by * blocksX + bx] = true;
+                }
+            });
+            for (int b = 0; b < dirty.length; b++) if (dirty[b]) labelBlock(cells, b % blocksX, b / blocksX);
+        } else {
+            last = map;
+            width = map.getWidth();
+            height = map.getHeight();
+            blocksX = (width + B - 1) / B;
+            blocksY = (height + B - 1) / B;
+            blocks = new Block[blocksX * blocksY];
+            labels = new short[width * height];
+            for (int by = 0; by < blocksY; by++) {
+                for (int bx = 0; bx < blocksX; bx++) labelBlock(cells, bx, by);
+            }
+        }
+        rooms = join();
+        return rooms;
+    }
+
+    private static boolean isWall(byte v) {
+        return v != MapData.CELL_FLOOR && v != MapData.CELL_UNKNOWN;
+    }
+
+    /** Classifies the cells of one block and splits them into connected same-type parts. */
+    private void labelBlock(byte[] cells, int bx, int by) {
+        int x0 = bx * B, y0 = by * B;
+        int w = Math.min(B, width - x0), h = Math.min(B, height - y0);
+
+        // Length of the open run through each cell of the block and DEPTH
+        // cells around it, looking DOOR_MAX_CELLS + 1 cells further; anything
+        // longer than DOOR_MAX_CELLS is not a doorway.
+        ex0 = Math.max(0, x0 - DEPTH);
+        ey0 = Math.max(0, y0 - DEPTH);
+        int ex1 = Math.min(width, x0 + w + DEPTH), ey1 = Math.min(height, y0 + h + DEPTH);
+        int xs = Math.max(0, ex0 - DOOR_MAX_CELLS - 1), xe = Math.min(width, ex1 + DOOR_MAX_CELLS + 1);
+        for (int y = ey0; y < ey1; y++) {
+            int off = y * width, row = (y - ey0) * E - ex0, start = xs;
+            for (int x = xs; x <= xe; x++) {
+                if (x < xe && !isWall(cells[off + x])) continue;
+                for (int k = Math.max(start, ex0), to = Math.min(x, ex1); k < to; k++) runH[row + k] = x - start;
+                start = x + 1;
+            }
+        }
+        int ew = ex1 - ex0;
+        int ys = Math.max(0, ey0 - DOOR_MAX_CELLS - 1), ye = Math.min(height, ey1 + DOOR_MAX_CELLS + 1);
+        // Columns are walked row by row, to read the grid in memory order
+        Arrays.fill(colStart, 0, ew, ys);
+        for (int y = ys; y <= ye; y++) {
+            int off = y * width + ex0;
+            for (int c = 0; c < ew; c++) {
+                if (y < ye && !isWall(cells[off + c])) continue;
+                int start = colStart[c];
+                for (int k = Math.max(start, ey0), to = Math.min(y, ey1); k < to; k++) runV[(k - ey0) * E + c] = y - start;
+                colStart[c] = y + 1;
+            }
+        }
+        for (int r = 0; r < h; r++) {
+            int off = (y0 + r) * width + x0;
+            for (int c = 0; c < w; c++) {
+                byte v = cells[off + c];
+                int i = r * B + c;
+                cellType[i] = v == MapData.CELL_FLOOR
+                        ? (isDoorway(cells, x0 + c, y0 + r) ? DOOR : FLOOR)
+                        : v == MapData.CELL_UNKNOWN ? UNKNOWN : WALL;
+                local[i] = 0;
+            }
+        }
+
+        // Flood fill each part, 4-connected
+        int parts = 0;
+        for (int r = 0; r < h; r++) {
+            for (int c = 0; c < w; c++) {
+                int seed = r * B + c;
+                byte t = cellType[seed];
+                if (t == WALL || local[seed] != 0) continue;
+                short id = (short) ++parts;
+                int s = (parts - 1) * S_LEN;
+                partType[parts - 1] = t;
+                partBorder[parts - 1] = false;
+                partStats[s + S_CELLS] = 0;
+                partStats[s + S_FLOOR] = 0;
+                partStats[s + S_MINX] = partStats[s + S_MINY] = Integer.MAX_VALUE;
+                partStats[s + S_MAXX] = partStats[s + S_MAXY] = -1;
+                int sp = 0;
+                stack[sp++] = seed;
+                local[seed] = id;
+                while (sp > 0) {
+                    int i = stack[--sp], cr = i / B, cc = i % B;
+                    int x = x0 + cc, y = y0 + cr;
+                    partStats[s + S_CELLS]++;
+                    if (t != UNKNOWN) partStats[s + S_FLOOR]++;
+                    if (x < partStats[s + S_MINX]) partStats[s + S_MINX] = x;
+                    if (y < partStats[s + S_MINY]) partStats[s + S_MINY] = y;
+                    if (x > partStats[s + S_MAXX]) partStats[s + S_MAXX] = x;
+                    if (y > partStats[s + S_MAXY]) partStats[s + S_MAXY] = y;
+                    if (x == 0 || y == 0 || x == width - 1 || y == height - 1) partBorder[parts - 1] = true;
+                    if (cc > 0 && local[i - 1] == 0 && cellType[i - 1] == t) { local[i - 1] = id; stack[sp++] = i - 1; }
+                    if (cc < w - 1 && local[i + 1] == 0 && cellType[i + 1] == t) { local[i + 1] = id; stack[sp++] = i + 1; }
+                    if (cr > 0 && local[i - B] == 0 && cellType[i - B] == t) { local[i - B] = id; stack[sp++] = i - B; }
+                    if (cr < h - 1 && local[i + B] == 0 && cellType[i + B] == t) { local[i + B] = id; stack[sp++] = i + B; }
+                }
+            }
+        }
+
+        // Adjacent parts inside the block; consecutive repeats are skipped
+        int ne = 0;
+        for (int r = 0; r < h; r++) {
+            for (int c = 0; c < w; c++) {
+                int i = r * B + c, a = local[i];
+                if (a == 0) continue;
+                if (c < w - 1) ne = addLocalEdge(a, local[i + 1], ne);
+                if (r < h - 1) ne = addLocalEdge(a, local[i + B], ne);
+            }
+        }
+        for (int r = 0; r < h; r++) System.arraycopy(local, r * B, labels, (y0 + r) * width + x0, w);
+
+        Block blk = new Block();
+        blk.parts = parts;
+        blk.type = Arrays.copyOf(partType, parts);
+        blk.border = Arrays.copyOf(partBorder, parts);
+        blk.stats = Arrays.copyOf(partStats, parts * S_LEN);
+        blk.edges = Arrays.copyOf(partEdges, ne);
+        blocks[by * blocksX + bx] = blk;
+    }
+
+    /** Narrow across one axis, and a short passage along the other. Reads the runs of the last labelBlock(). */
+    private boolean isDoorway(byte[] cells, int x, int y) {
+        int i = (y - ey0) * E + x - ex0;
+        return runH[i] <= DOOR_MAX_CELLS && isPassage(cells, x, y, 0, 1, runH, runH[i])
+                || runV[i] <= DOOR_MAX_CELLS && isPassage(cells, x, y, 1, 0, runV, runV[i]);
+    }
+
+    /**
+     * Follows the narrow run at (x, y), {@code across} cells wide, along
+     * (dx, dy) both ways: true if it reaches a wide run on both sides within
+     * DEPTH cells and less than half its width. A wall or the map edge first
+     * means a niche or a corridor, not a gap in a wall.
+     */
+    private boolean isPassage(byte[] cells, int x, int y, int dx, int dy, int[] run, int across) {
+        int length = 1, maxLength = Math.min(DEPTH, (across - 1) / 2);
+        for (int dir = -1; dir <= 1; dir += 2) {
+            for (int k = 1; ; k++) {
+                int px = x + dir * k * dx, py = y + dir * k * dy;
+                if (px < 0 || py < 0 || px >= width || py >= height || isWall(cells[py * width + px])) return false;
+                if (run[(py - ey0) * E + px - ex0] > DOOR_MAX_CELLS) break;
+                if (++length > maxLength) return false;
+            }
+        }
+        return true;
+    }
+
+    private int addLocalEdge(int a, int b, int ne) {
+        if (b == 0 || b == a) return ne;
+        int e = a < b ? (a << 16) | b : (b << 16) | a;
+        if (ne == 0 || partEdges[ne - 1] != e) partEdges[ne++] = e;
+        return ne;
+    }
+
+    /** Joins the block parts into rooms and measures them. */
+    private List<Room> join() {
+        int nb = blocks.length;
+        if (base.length < nb) base = new int[nb];
+        int n = 0;
+        for (int b = 0; b < nb; b++) {
+            base[b] = n;
+            n += blocks[b].parts;
+        }
+        if (parent.length < n) {
+            int cap = Math.max(n, parent.length * 2);
+            parent = new int[cap];
+            type = new byte[cap];
+            outside = new boolean[cap];
+            agg = new int[cap * S_LEN];
+        }
+        for (int b = 0; b < nb; b++) {
+            Block blk = blocks[b];
+            System.arraycopy(blk.type, 0, type, base[b], blk.parts);
+        }
+
+        // Adjacent parts: inside blocks, then across block edges
+        edgeCount = 0;
+        for (int b = 0; b < nb; b++) {
+            int[] e = blocks[b].edges;
+            for (int k = 0; k < e.length; k++) addEdge(base[b] + (e[k] >>> 16) - 1, base[b] + (e[k] & 0xFFFF) - 1);
+        }
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                int b = by * blocksX + bx, x0 = bx * B, y0 = by * B;
+                if (bx + 1 < blocksX) {
+                    int x = x0 + B - 1;
+                    for (int y = y0, end = Math.min(y0 + B, height); y < end; y++) {
+                        int la = labels[y * width + x], lb = labels[y * width + x + 1];
+                        if (la != 0 && lb != 0) addEdge(base[b] + la - 1, base[b + 1] + lb - 1);
+                    }
+                }
+                if (by + 1 < blocksY) {
+                    int y = y0 + B - 1;
+                    for (int x = x0, end = Math.min(x0 + B, width); x < end; x++) {
+                        int la = labels[y * width + x], lb = labels[(y + 1) * width + x];
+                        if (la != 0 && lb != 0) addEdge(base[b] + la - 1, base[b + blocksX] + lb - 1);
+                    }
+                }
+            }
+        }
+
+        // Unknown areas reaching the map border are outside the rooms
+        for (int p = 0; p < n; p++) { parent[p] = p; outside[p] = false; }
+        for (int k = 0; k < edgeCount; k += 2) {
+            int a = edges[k], b = edges[k + 1];
+            if (type[a] == UNKNOWN && type[b] == UNKNOWN) union(a, b);
+        }
+        for (int b = 0; b < nb; b++) {
+            Block blk = blocks[b];
+            for (int k = 0; k < blk.parts; k++) {
+                if (blk.type[k] == UNKNOWN && blk.border[k]) outside[find(base[b] + k)] = true;
+            }
+        }
+        for (int p = 0; p < n; p++) if (type[p] == UNKNOWN) outside[p] = outside[find(p)];
+
+        // Regions: rooms join across floor and enclosed unknown, doorways join only with doorways
+        for (int p = 0; p < n; p++) parent[p] = p;
+        for (int k = 0; k < edgeCount; k += 2) {
+            int a = edges[k], b = edges[k + 1];
+            if (outside[a] || outside[b]) continue;
+            if ((type[a] == DOOR) == (type[b] == DOOR)) union(a, b);
+        }
+        for (int p = 0; p < n; p++) {
+            int s = p * S_LEN;
+            agg[s + S_CELLS] = agg[s + S_FLOOR] = 0;
+            agg[s + S_MINX] = agg[s + S_MINY] = Integer.MAX_VALUE;
+            agg[s + S_MAXX] = agg[s + S_MAXY] = -1;
+        }
+        for (int b = 0; b < nb; b++) {
+            Block blk = blocks[b];
+            for (int k = 0; k < blk.parts; k++) {
+                int p = base[b] + k;
+                if (!outside[p]) accumulate(find(p), blk.stats, k * S_LEN);
+            }
+        }
+
+        // Small regions and unexplored pockets join their largest neighbour, smallest first
+        int regions = 0;
+        for (int p = 0; p < n; p++) if (!outside[p] && parent[p] == p) regions++;
+        long[] order = new long[regions];
+        int[] degree = new int[n + 1];
+        for (int p = 0, i = 0; p < n; p++) {
+            if (!outside[p] && parent[p] == p) order[i++] = ((long) agg[p * S_LEN + S_CELLS] << 32) | p;
+        }
+        Arrays.sort(order);
+        for (int k = 0; k < edgeCount; k += 2) {
+            int a = edges[k], b = edges[k + 1];
+            if (outside[a] || outside[b] || find(a) == find(b)) continue;
+            degree[find(a) + 1]++;
+            degree[find(b) + 1]++;
+        }
+        for (int p = 0; p < n; p++) degree[p + 1] += degree[p];
+        int[] adjacent = new int[degree[n]];
+        int[] fill = Arrays.copyOf(degree, n);
+        for (int k = 0; k < edgeCount; k += 2) {
+            int a = edges[k], b = edges[k + 1];
+            if (outside[a] || outside[b]) continue;
+            int ra = find(a), rb = find(b);
+            if (ra == rb) continue;
+            adjacent[fill[ra]++] = rb;
+            adjacent[fill[rb]++] = ra;
+        }
+        for (long o : order) {
+            int r = (int) o;
+            int s = r * S_LEN;
+            if (agg[s + S_CELLS] >= MIN_ROOM_CELLS && agg[s + S_FLOOR] > 0) continue;
+            int best = -1;
+            for (int k = degree[r]; k < degree[r + 1]; k++) {
+                int q = find(adjacent[k]);
+                if (q != r && (best < 0 || agg[q * S_LEN + S_CELLS] > agg[best * S_LEN + S_CELLS])) best = q;
+            }
+            if (best < 0) continue;
+            parent[r] = best;
+            accumulate(best, agg, s);
+        }
+
+        List<int[]> found = new ArrayList<>();
+        for (int p = 0; p < n; p++) {
+            int s = p * S_LEN;
+            if (outside[p] || parent[p] != p || agg[s + S_CELLS] < MIN_ROOM_CELLS || agg[s + S_FLOOR] == 0) continue;
+            found.add(Arrays.copyOfRange(agg, s, s + S_LEN));
+        }
+        // Stable numbering: top to bottom, then left to right
+        Collections.sort(found, (a, b) -> a[S_MINY] != b[S_MINY] ? Integer.compare(a[S_MINY], b[S_MINY])
+                : Integer.compare(a[S_MINX], b[S_MINX]));
+        List<Room> result = new ArrayList<>(found.size());
+        for (int i = 0; i < found.size(); i++) {
+            int[] st = found.get(i);
+            result.add(new Room(i + 1, st[S_CELLS], st[S_FLOOR], st[S_MINX], st[S_MINY], st[S_MAXX], st[S_MAXY]));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private void addEdge(int a, int b) {
+        if (edgeCount >= 2 && edges[edgeCount - 2] == a && edges[edgeCount - 1] == b) return;
+        if (edgeCount + 2 > edges.length) edges = Arrays.copyOf(edges, edges.length * 2);
+        edges[edgeCount++] = a;
+        edges[edgeCount++] = b;
+    }
+
+    private void accumulate(int root, int[] src, int s) {
+        int d = root * S_LEN;
+        agg[d + S_CELLS] += src[s + S_CELLS];
+        agg[d + S_FLOOR] += src[s + S_FLOOR];
+        agg[d + S_MINX] = Math.min(agg[d + S_MINX], src[s + S_MINX]);
+        agg[d + S_MINY] = Math.min(agg[d + S_MINY], src[s + S_MINY]);
+        agg[d + S_MAXX] = Math.max(agg[d + S_MAXX], src[s + S_MAXX]);
+        agg[d + S_MAXY] = Math.max(agg[d + S_MAXY], src[s + S_MAXY]);
+    }
+
+    private int find(int p) {
+        while (parent[p] != p) {
+            parent[p] = parent[parent[p]];
+            p = parent[p];
+        }
+        return p;
+    }
+
+    private void union(int a, int b) {
+        int ra = find(a), rb = find(b);
+        if (ra != rb) parent[ra] = rb;
+    }
+}
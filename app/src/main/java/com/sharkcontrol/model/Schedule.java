@@ -1,30 +1,71 @@
 package com.sharkcontrol.model;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.Locale;
+import java.util.Objects;
 
+/**
+ * A weekly cleaning schedule: a start time applied to a set of days.
+ *
+ * Days are a 7-bit mask (bit 0 = Monday ... bit 6 = Sunday) and the start is
+ * a minute of the day, so a schedule is a handful of primitives. The labels
+ * come from tables shared by all schedules, so binding a list allocates
+ * nothing per row.
+ */
 public class Schedule {
+
+    public static final int ALL_DAYS = 0x7F;
+    public static final int WEEKDAYS = 0x1F;
+    public static final int WEEKEND = 0x60;
+
+    private static final String[] DAY_LABELS = {"Mo", "Di", "Mi", "Do", "Fr", "Sa", "So"};
+    private static final String[] DAYS_LABELS = new String[ALL_DAYS + 1];
+    private static final String[] TIME_LABELS = new String[SchedulePlanner.MINUTES_PER_DAY]; // filled on first use
+
+    static {
+        for (int mask = 0; mask <= ALL_DAYS; mask++) {
+            if (mask == 0) DAYS_LABELS[mask] = "Kein Tag";
+            else if (mask == ALL_DAYS) DAYS_LABELS[mask] = "Täglich";
+            else if (mask == WEEKDAYS) DAYS_LABELS[mask] = "Werktags";
+            else if (mask == WEEKEND) DAYS_LABELS[mask] = "Wochenende";
+            else {
+                StringBuilder sb = new StringBuilder();
+                for (int d = 0; d < 7; d++) {
+                    if ((mask & 1 << d) == 0) continue;
+                    if (sb.length() > 0) sb.append(", ");
+                    sb.append(DAY_LABELS[d]);
+                }
+                DAYS_LABELS[mask] = sb.toString();
+            }
+        }
+    }
+
     private String id;
-    private List<Integer> days; // 0=Mon ... 6=Sun
-    private int hour;
-    private int minute;
+    private int dayMask;
+    private int startMinute; // minute of the day
     private boolean enabled;
     private String powerMode = "normal";
 
-    private static final String[] DAY_LABELS = {"Mo", "Di", "Mi", "Do", "Fr", "Sa", "So"};
-
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
 
-    public List<Integer> getDays() { return days; }
-    public void setDays(List<Integer> days) { this.days = days; }
+    public int getDayMask() { return dayMask; }
+    public void setDayMask(int dayMask) { this.dayMask = dayMask & ALL_DAYS; }
+
+    /** {@code day}: 0=Mon ... 6=Sun. */
+    public boolean hasDay(int day) { return (dayMask & 1 << day) != 0; }
 
-    public int getHour() { return hour; }
-    public void setHour(int hour) { this.hour = hour; }
+    public int getDayCount() { return Integer.bitCount(dayMask); }
 
-    public int getMinute() { return minute; }
-    public void setMinute(int minute) { this.minute = minute; }
+    public int getHour() { return startMinute / 60; }
+    public void setHour(int hour) { startMinute = hour * 60 + startMinute % 60; }
+
+    public int getMinute() { return startMinute % 60; }
+    public void setMinute(int minute) { startMinute = startMinute / 60 * 60 + minute; }
+
+    public int getStartMinute() { return startMinute; }
+    public void setStartMinute(int minuteOfDay) { startMinute = minuteOfDay; }
+
+    /** Start of the run on {@code day} in minutes of the week, Monday 00:00 = 0. */
+    public int getStartMinuteOfWeek(int day) { return day * SchedulePlanner.MINUTES_PER_DAY + startMinute; }
 
     public boolean isEnabled() { return enabled; }
     public void setEnabled(boolean enabled) { this.enabled = enabled; }
@@ -32,20 +73,35 @@ public class Schedule {
     public String getPowerMode() { return powerMode; }
     public void setPowerMode(String powerMode) { this.powerMode = powerMode; }
 
-    public String getDaysLabel() {
-        if (days == null || days.isEmpty()) return "Kein Tag";
-        if (days.size() == 7) return "Täglich";
-        if (days.equals(Arrays.asList(0, 1, 2, 3, 4))) return "Werktags";
-        if (days.equals(Arrays.asList(5, 6))) return "Wochenende";
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < days.size(); i++) {
-            if (i > 0) sb.append(", ");
-            sb.append(DAY_LABELS[days.get(i)]);
-        }
-        return sb.toString();
+    public Schedule copy() {
+        Schedule s = new Schedule();
+        s.id = id;
+        s.dayMask = dayMask;
+        s.startMinute = startMinute;
+        s.enabled = enabled;
+        s.powerMode = powerMode;
+        return s;
     }
 
-    public String getTimeLabel() {
-        return String.format(Locale.getDefault(), "%02d:%02d Uhr", hour, minute);
+    /** Same id and same settings. */
+    public boolean sameAs(Schedule o) {
+        return o != null && Objects.equals(id, o.id) && dayMask == o.dayMask && startMinute == o.startMinute
+                && enabled == o.enabled && Objects.equals(powerMode, o.powerMode);
+    }
+
+    public String getDaysLabel() { return DAYS_LABELS[dayMask]; }
+
+    public String getTimeLabel() { return timeLabel(startMinute); }
+
+    /** "08:05 Uhr" for minute 485 of the day. */
+    public static String timeLabel(int minuteOfDay) {
+        String label = TIME_LABELS[minuteOfDay];
+        if (label == null) {
+            int h = minuteOfDay / 60, m = minuteOfDay % 60;
+            label = new String(new char[] {(char) ('0' + h / 10), (char) ('0' + h % 10), ':',
+                    (char) ('0' + m / 10), (char) ('0' + m % 10)}) + " Uhr";
+            TIME_LABELS[minuteOfDay] = label; // racing threads just build the same string
+        }
+        return label;
     }
 }
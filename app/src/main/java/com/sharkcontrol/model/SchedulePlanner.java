@@ -0,0 +1,336 @@
+package com.sharkcontrol.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the schedules of all robots on the account together and suggests
+ * staggered start times where they get in each other's way.
+ *
+ * Every enabled schedule becomes one run per scheduled day, an interval in
+ * minutes of the week (Monday 00:00 = 0) as long as the robot's expected run
+ * time. A run past Sunday midnight continues at the start of the week. One
+ * sweep over the runs sorted by start finds all overlaps in
+ * O(n log n + overlaps); conflicts are reported once per pair of schedules
+ * with their overlap summed over the week.
+ *
+ * Suggestions keep every conflict-free schedule where it is and place the
+ * conflicting ones one by one, earliest first, at the nearest start time
+ * (in {@link #STEP_MINUTES} steps, at most {@link #MAX_SHIFT_MINUTES} away,
+ * same day) that is free on all of the schedule's days.
+ */
+public final class SchedulePlanner {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    public static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    public static final int DEFAULT_RUN_MINUTES = 60;
+    static final int STEP_MINUTES = 15;
+    static final int MAX_SHIFT_MINUTES = 4 * 60;
+
+    public static final class Conflict {
+        /** The robot is scheduled twice at once; the later start is lost. */
+        public static final int SAME_ROBOT = 0;
+        /** Two robots cleaning the same floor at once. */
+        public static final int SAME_FLOOR = 1;
+        /** More robots running at once than the home network should carry. */
+        public static final int TOO_MANY = 2;
+        /** Starts, and uploads its map, in the network's busiest hours. */
+        public static final int NETWORK_PEAK = 3;
+
+        public final int kind;
+        public final String dsn;
+        public final Schedule schedule;
+        /** The schedule it collides with; null for TOO_MANY and NETWORK_PEAK. */
+        public final String otherDsn;
+        public final Schedule other;
+        /** First occurrence, in minutes of the week. */
+        public final int startMinute;
+        int overlapMinutes;
+
+        Conflict(int kind, String dsn, Schedule schedule, String otherDsn, Schedule other, int startMinute) {
+            this.kind = kind;
+            this.dsn = dsn;
+            this.schedule = schedule;
+            this.otherDsn = otherDsn;
+            this.other = other;
+            this.startMinute = startMinute;
+        }
+
+        /** Minutes per week the two runs overlap; 0 for NETWORK_PEAK. */
+        public int getOverlapMinutes() { return overlapMinutes; }
+    }
+
+    public static final class Suggestion {
+        public final String dsn;
+        public final Schedule schedule;
+        public final int hour, minute;
+        /** Minutes later (positive) or earlier (negative) than now. */
+        public final int shiftMinutes;
+
+        Suggestion(String dsn, Schedule schedule, int startOfDay, int shiftMinutes) {
+            this.dsn = dsn;
+            this.schedule = schedule;
+            this.hour = startOfDay / 60;
+            this.minute = startOfDay % 60;
+            this.shiftMinutes = shiftMinutes;
+        }
+    }
+
+    public static final class Plan {
+        public final List<Conflict> conflicts;
+        public final List<Suggestion> suggestions;
+        /** Most robots running at the same time. */
+        public final int peakConcurrent;
+
+        Plan(List<Conflict> conflicts, List<Suggestion> suggestions, int peakConcurrent) {
+            this.conflicts = conflicts;
+            this.suggestions = suggestions;
+            this.peakConcurrent = peakConcurrent;
+        }
+    }
+
+    private final Map<String, Integer> runMinutes = new HashMap<>();
+    private final Map<String, String> floors = new HashMap<>();
+    private final boolean[] peakMinute = new boolean[MINUTES_PER_DAY];
+    private int defaultRunMinutes = DEFAULT_RUN_MINUTES;
+    private int maxConcurrent = Integer.MAX_VALUE;
+
+    public SchedulePlanner setDefaultRunMinutes(int minutes) {
+        defaultRunMinutes = Math.max(1, minutes);
+        return this;
+    }
+
+    /** Expected run time of robot {@code dsn}, e.g. from its last runs. */
+    public SchedulePlanner setRunMinutes(String dsn, int minutes) {
+        runMinutes.put(dsn, Math.max(1, minutes));
+        return this;
+    }
+
+    /** Robots with the same floor must not run at the same time. */
+    public SchedulePlanner setFloor(String dsn, String floor) {
+        floors.put(dsn, floor);
+        return this;
+    }
+
+    public SchedulePlanner setMaxConcurrent(int robots) {
+        maxConcurrent = Math.max(1, robots);
+        return this;
+    }
+
+    /** Daily window in which no run should start; {@code to} before {@code from} wraps past midnight. */
+    public SchedulePlanner addNetworkPeak(int fromMinuteOfDay, int toMinuteOfDay) {
+        for (int m = fromMinuteOfDay; m != toMinuteOfDay; m = (m + 1) % MINUTES_PER_DAY) peakMinute[m] = true;
+        return this;
+    }
+
+    public Plan plan(Map<String, List<Schedule>> schedulesByDsn) {
+        // Flatten to primitive arrays: robots, schedules, runs
+        List<String> robots = new ArrayList<>(schedulesByDsn.keySet());
+        Map<String, Integer> floorIds = new HashMap<>();
+        int[] robotFloor = new int[robots.size()];
+        List<Schedule> schedules = new ArrayList<>();
+        int[] schedRobot = new int[16], schedLen = new int[16], schedStart = new int[16];
+        int runCount = 0;
+        for (int r = 0; r < robots.size(); r++) {
+            String floor = floors.get(robots.get(r));
+            if (floor == null) robotFloor[r] = -1;
+            else {
+                Integer id = floorIds.get(floor);
+                if (id == null) floorIds.put(floor, id = floorIds.size());
+                robotFloor[r] = id;
+            }
+            Integer len = runMinutes.get(robots.get(r));
+            for (Schedule s : schedulesByDsn.get(robots.get(r))) {
+                if (!s.isEnabled() || s.getDayMask() == 0) continue;
+                int i = schedules.size();
+                if (i == schedRobot.length) {
+                    schedRobot = Arrays.copyOf(schedRobot, i * 2);
+                    schedLen = Arrays.copyOf(schedLen, i * 2);
+                    schedStart = Arrays.copyOf(schedStart, i * 2);
+                }
+                schedules.add(s);
+                schedRobot[i] = r;
+                schedLen[i] = len != null ? len : defaultRunMinutes;
+                schedStart[i] = s.getStartMinute();
+                runCount += s.getDayCount();
+            }
+        }
+
+        int[] runStart = new int[runCount], runSched = new int[runCount];
+        int n = 0;
+        for (int i = 0; i < schedules.size(); i++) {
+            Schedule s = schedules.get(i);
+            for (int day = 0; day < 7; day++) {
+                if (!s.hasDay(day)) continue;
+                runStart[n] = s.getStartMinuteOfWeek(day);
+                runSched[n++] = i;
+            }
+        }
+
+        // Segments: a run past the end of the week continues at its start
+        int segCount = runCount;
+        for (int i = 0; i < runCount; i++) if (runStart[i] + schedLen[runSched[i]] > MINUTES_PER_WEEK) segCount++;
+        int[] segStart = new int[segCount], segEnd = new int[segCount], segRun = new int[segCount];
+        long[] order = new long[segCount];
+        n = 0;
+        for (int i = 0; i < runCount; i++) {
+            int end = runStart[i] + schedLen[runSched[i]];
+            segStart[n] = runStart[i];
+            segEnd[n] = Math.min(end, MINUTES_PER_WEEK);
+            segRun[n++] = i;
+            if (end > MINUTES_PER_WEEK) {
+                segStart[n] = 0;
+                segEnd[n] = end - MINUTES_PER_WEEK;
+                segRun[n++] = i;
+            }
+        }
+        for (int i = 0; i < segCount; i++) order[i] = (long) segStart[i] << 32 | i;
+        Arrays.sort(order);
+
+        // Sweep; active holds the segments still running at the current start
+        List<Conflict> conflicts = new ArrayList<>();
+        Map<Long, Conflict> byPair = new HashMap<>();
+        boolean[] movable = new boolean[schedules.size()];
+        int[] active = new int[16];
+        int activeCount = 0, peak = 0;
+        for (long o : order) {
+            int seg = (int) o, start = segStart[seg];
+            int run = segRun[seg], sched = runSched[run], robot = schedRobot[sched];
+            int kept = 0;
+            for (int k = 0; k < activeCount; k++) if (segEnd[active[k]] > start) active[kept++] = active[k];
+            activeCount = kept;
+
+            for (int k = 0; k < activeCount; k++) {
+                int otherSched = runSched[segRun[active[k]]], otherRobot = schedRobot[otherSched];
+                int kind;
+                if (otherRobot == robot) kind = Conflict.SAME_ROBOT;
+                else if (robotFloor[robot] >= 0 && robotFloor[robot] == robotFloor[otherRobot]) kind = Conflict.SAME_FLOOR;
+                else continue;
+                Conflict c = conflict(byPair, conflicts, kind, sched, otherSched, robots, schedules, schedRobot, start);
+                c.overlapMinutes += Math.min(segEnd[seg], segEnd[active[k]]) - start;
+                movable[sched] = true;
+            }
+            if (activeCount + 1 > maxConcurrent) {
+                conflict(byPair, conflicts, Conflict.TOO_MANY, sched, -1, robots, schedules, schedRobot, start)
+                        .overlapMinutes += segEnd[seg] - start;
+                movable[sched] = true;
+            }
+            if (segStart[seg] == runStart[run] && peakMinute[start % MINUTES_PER_DAY]) {
+                conflict(byPair, conflicts, Conflict.NETWORK_PEAK, sched, -1, robots, schedules, schedRobot, start);
+                movable[sched] = true;
+            }
+
+            if (activeCount == active.length) active = Arrays.copyOf(active, activeCount * 2);
+            active[activeCount++] = seg;
+            peak = Math.max(peak, activeCount);
+        }
+
+        return new Plan(conflicts, suggest(robots, schedules, schedRobot, schedLen, schedStart, robotFloor,
+                floorIds.size(), movable), peak);
+    }
+
+    private static Conflict conflict(Map<Long, Conflict> byPair, List<Conflict> conflicts, int kind, int sched,
+                                     int otherSched, List<String> robots, List<Schedule> schedules,
+                                     int[] schedRobot, int start) {
+        long key = ((long) sched << 32 | (otherSched + 1)) * 4 + kind;
+        Conflict c = byPair.get(key);
+        if (c == null) {
+            c = new Conflict(kind, robots.get(schedRobot[sched]), schedules.get(sched),
+                    otherSched < 0 ? null : robots.get(schedRobot[otherSched]),
+                    otherSched < 0 ? null : schedules.get(otherSched), start);
+            byPair.put(key, c);
+            conflicts.add(c);
+        }
+        return c;
+    }
+
+    private List<Suggestion> suggest(List<String> robots, List<Schedule> schedules, int[] schedRobot, int[] schedLen,
+                                     int[] schedStart, int[] robotFloor, int floorCount, boolean[] movable) {
+        List<Suggestion> suggestions = new ArrayList<>();
+        Occupancy occ = new Occupancy(robots.size(), floorCount);
+        List<Integer> moving = new ArrayList<>();
+        for (int i = 0; i < schedules.size(); i++) {
+            if (movable[i]) moving.add(i);
+            else occ.place(schedules.get(i), schedRobot[i], robotFloor[schedRobot[i]], schedStart[i], schedLen[i]);
+        }
+        moving.sort((a, b) -> Integer.compare(schedStart[a], schedStart[b]));
+
+        for (int i : moving) {
+            Schedule s = schedules.get(i);
+            int robot = schedRobot[i], floor = robotFloor[robot], start = schedStart[i], len = schedLen[i];
+            int chosen = start;
+            // 0, +15, -15, +30, -30, ... within the same day
+            for (int k = 0; k <= 2 * MAX_SHIFT_MINUTES / STEP_MINUTES; k++) {
+                int shift = (k + 1) / 2 * STEP_MINUTES * (k % 2 == 1 ? 1 : -1);
+                int t = start + shift;
+                if (t < 0 || t >= MINUTES_PER_DAY || peakMinute[t]) continue;
+                if (occ.fits(s, robot, floor, t, len, maxConcurrent)) { chosen = t; break; }
+            }
+            occ.place(s, robot, floor, chosen, len);
+            if (chosen != start) suggestions.add(new Suggestion(robots.get(robot), s, chosen, chosen - start));
+        }
+        return suggestions;
+    }
+
+    /** Minutes of the week already taken, per floor, per robot and in total. */
+    private static final class Occupancy {
+        final short[] total = new short[MINUTES_PER_WEEK];
+        final short[][] floors;
+        // Per robot: [from, to) pairs in minutes of the week, to may run past the week
+        final int[][] robotRuns;
+        final int[] robotRunCount;
+
+        Occupancy(int robotCount, int floorCount) {
+            floors = new short[floorCount][];
+            robotRuns = new int[robotCount][];
+            robotRunCount = new int[robotCount];
+        }
+
+        boolean fits(Schedule s, int robot, int floor, int startOfDay, int len, int maxConcurrent) {
+            short[] f = floor >= 0 ? floors[floor] : null;
+            for (int day = 0; day < 7; day++) {
+                if (!s.hasDay(day)) continue;
+                int from = day * MINUTES_PER_DAY + startOfDay, to = from + len;
+                if (overlapsOwn(robot, from, to)) return false;
+                for (int m = from; m < to; m++) {
+                    int w = m % MINUTES_PER_WEEK;
+                    if (total[w] >= maxConcurrent || (f != null && f[w] > 0)) return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean overlapsOwn(int robot, int from, int to) {
+            int[] runs = robotRuns[robot];
+            for (int k = 0; k < robotRunCount[robot]; k += 2) {
+                int a = runs[k], b = runs[k + 1];
+                if ((from < b && a < to) || (from + MINUTES_PER_WEEK < b && a < to + MINUTES_PER_WEEK)
+                        || (from < b + MINUTES_PER_WEEK && a + MINUTES_PER_WEEK < to)) return true;
+            }
+            return false;
+        }
+
+        void place(Schedule s, int robot, int floor, int startOfDay, int len) {
+            if (floor >= 0 && floors[floor] == null) floors[floor] = new short[MINUTES_PER_WEEK];
+            for (int day = 0; day < 7; day++) {
+                if (!s.hasDay(day)) continue;
+                int from = day * MINUTES_PER_DAY + startOfDay, to = from + len;
+                for (int m = from; m < to; m++) {
+                    int w = m % MINUTES_PER_WEEK;
+                    total[w]++;
+                    if (floor >= 0) floors[floor][w]++;
+                }
+                int[] runs = robotRuns[robot];
+                int c = robotRunCount[robot];
+                if (runs == null) runs = robotRuns[robot] = new int[16];
+                else if (c == runs.length) runs = robotRuns[robot] = Arrays.copyOf(runs, c * 2);
+                runs[c] = from;
+                runs[c + 1] = to;
+                robotRunCount[robot] = c + 2;
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ public class SharkDevice {
     private String productName;
     private String model;
     private boolean connected;
+    private String lanIp;
 
     public String getDsn() { return dsn; }
     public void setDsn(String dsn) { this.dsn = dsn; }
@@ -18,6 +19,10 @@ public class SharkDevice {
     public boolean isConnected() { return connected; }
     public void setConnected(boolean connected) { this.connected = connected; }
 
+    /** Local network address if the robot has LAN mode enabled, else null. */
+    public String getLanIp() { return lanIp; }
+    public void setLanIp(String lanIp) { this.lanIp = lanIp; }
+
     @Override
     public String toString() { return getProductName(); }
 }
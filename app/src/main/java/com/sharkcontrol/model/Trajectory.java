@@ -0,0 +1,141 @@
+package com.sharkcontrol.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The path a robot drove during its current cleaning run, in map cells.
+ *
+ * Samples go into a fixed-size ring of primitive coordinates, so memory is
+ * constant and recording allocates nothing; on very long runs the oldest
+ * samples are overwritten. {@link #simplify} reduces the path with
+ * Douglas–Peucker for drawing, again into preallocated arrays.
+ *
+ * One instance per DSN lives for the whole process so the path survives
+ * leaving and reopening the map screen.
+ */
+public final class Trajectory {
+
+    /** About 11 hours at one sample every 5 s. */
+    public static final int CAPACITY = 8192;
+
+    private static final Map<String, Trajectory> byDsn = new HashMap<>();
+
+    private final int[] xs = new int[CAPACITY];
+    private final int[] ys = new int[CAPACITY];
+    private int head;   // index of the oldest sample
+    private int count;
+    private long runId;
+    private boolean running;
+
+    // Scratch space for simplify()
+    private final int[] stack = new int[2 * CAPACITY];
+    private final boolean[] keep = new boolean[CAPACITY];
+
+    private Trajectory() {}
+
+    public static synchronized Trajectory forDevice(String dsn) {
+        Trajectory t = byDsn.get(dsn);
+        if (t == null) {
+            t = new Trajectory();
+            byDsn.put(dsn, t);
+        }
+        return t;
+    }
+
+    /** Identifies the current run; changes whenever a new run starts. */
+    public synchronized long getRunId() { return runId; }
+
+    public synchronized int size() { return count; }
+
+    /** Clears the path and starts a new run. */
+    public synchronized void startRun() {
+        head = 0;
+        count = 0;
+        runId++;
+    }
+
+    /**
+     * Feeds the robot's operating mode. Going from stopped or docked to
+     * cleaning starts a new run; resuming from pause continues the current one.
+     */
+    public synchronized void onOperatingMode(String mode) {
+        boolean active = "start".equals(mode) || "pause".equals(mode) || "return".equals(mode);
+        if ("start".equals(mode) && !running) startRun();
+        running = active;
+    }
+
+    /** Records a position sample. Repeats of the last point are ignored. */
+    public synchronized void add(int x, int y) {
+        if (x < 0 || y < 0) return;
+        if (count > 0) {
+            int last = (head + count - 1) % CAPACITY;
+            if (xs[last] == x && ys[last] == y) return;
+        }
+        int i;
+        if (count < CAPACITY) {
+            i = (head + count) % CAPACITY;
+            count++;
+        } else {
+            i = head;
+            head = (head + 1) % CAPACITY;
+        }
+        xs[i] = x;
+        ys[i] = y;
+    }
+
+    /**
+     * Writes the path, reduced with Douglas–Peucker so no dropped point is
+     * more than {@code tolerance} cells off it, into {@code outX}/{@code outY}
+     * (at least {@link #CAPACITY} long) and returns the number of points.
+     */
+    public synchronized int simplify(float tolerance, int[] outX, int[] outY) {
+        int n = count;
+        if (n <= 2) {
+            for (int k = 0; k < n; k++) { outX[k] = x(k); outY[k] = y(k); }
+            return n;
+        }
+        float tol2 = tolerance * tolerance;
+        java.util.Arrays.fill(keep, 0, n, false);
+        keep[0] = keep[n - 1] = true;
+        int sp = 0;
+        stack[sp++] = 0;
+        stack[sp++] = n - 1;
+        while (sp > 0) {
+            int last = stack[--sp], first = stack[--sp];
+            if (last - first < 2) continue;
+            float ax = x(first), ay = y(first);
+            float dx = x(last) - ax, dy = y(last) - ay;
+            float len2 = dx * dx + dy * dy;
+            float maxDist = -1;
+            int index = -1;
+            for (int k = first + 1; k < last; k++) {
+                float px = x(k) - ax, py = y(k) - ay;
+                // Distance to the segment, not the line through it: an out-and-back
+                // stretch lies on that line but far past the segment's end
+                float t = len2 == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / len2));
+                float ex = px - t * dx, ey = py - t * dy;
+                float dist = ex * ex + ey * ey;
+                if (dist > maxDist) { maxDist = dist; index = k; }
+            }
+            if (maxDist > tol2) {
+                keep[index] = true;
+                stack[sp++] = first;
+                stack[sp++] = index;
+                stack[sp++] = index;
+                stack[sp++] = last;
+            }
+        }
+        int m = 0;
+        for (int k = 0; k < n; k++) {
+            if (!keep[k]) continue;
+            outX[m] = x(k);
+            outY[m] = y(k);
+            m++;
+        }
+        return m;
+    }
+
+    private int x(int k) { return xs[(head + k) % CAPACITY]; }
+    private int y(int k) { return ys[(head + k) % CAPACITY]; }
+}
@@ -2,7 +2,6 @@ package com.sharkcontrol.ui;
 
 import android.annotation.SuppressLint;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
@@ -11,6 +10,7 @@ import android.widget.ProgressBar;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import com.sharkcontrol.R;
+import com.sharkcontrol.api.AuthManager;
 
 import org.json.JSONObject;
 import java.io.*;
@@ -41,9 +41,8 @@ public class LoginActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_login);
 
-        // Auto-login if token saved
-        SharedPreferences prefs = getSharedPreferences("SharkControl", MODE_PRIVATE);
-        if (prefs.getString("access_token", null) != null) {
+        // Auto-login if token saved; AuthManager renews it when needed
+        if (AuthManager.get(this).isSignedIn()) {
             navigateToMain();
             return;
         }
@@ -164,13 +163,8 @@ public class LoginActivity extends AppCompatActivity {
 
                 if (responseCode == 200) {
                     JSONObject json = new JSONObject(response);
-                    String accessToken = json.getString("access_token");
-                    String refreshToken = json.optString("refresh_token", "");
-
-                    SharedPreferences.Editor editor = getSharedPreferences("SharkControl", MODE_PRIVATE).edit();
-                    editor.putString("access_token", accessToken);
-                    editor.putString("refresh_token", refreshToken);
-                    editor.apply();
+                    AuthManager.get(this).signedIn(json.getString("access_token"),
+                            json.optString("refresh_token", ""), json.optLong("expires_in", 0));
 
                     runOnUiThread(this::navigateToMain);
                 } else {
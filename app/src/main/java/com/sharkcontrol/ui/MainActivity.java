@@ -1,5 +1,6 @@
 package com.sharkcontrol.ui;
 
+import android.app.TimePickerDialog;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
@@ -13,16 +14,23 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.cardview.widget.CardView;
 import com.sharkcontrol.R;
+import com.sharkcontrol.api.AuthManager;
 import com.sharkcontrol.api.AylaApiClient;
+import com.sharkcontrol.model.Schedule;
+import com.sharkcontrol.model.SchedulePlanner;
 import com.sharkcontrol.model.SharkDevice;
 import com.sharkcontrol.model.RobotStatus;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class MainActivity extends AppCompatActivity {
 
     private AylaApiClient apiClient;
     private SharkDevice currentDevice;
+    private List<SharkDevice> devices;
 
     // UI Elements
     private TextView deviceNameText, statusText, batteryText, powerModeText;
@@ -35,9 +43,20 @@ public class MainActivity extends AppCompatActivity {
     private ImageView robotIcon;
     private TextView connectionStatus;
 
+    private boolean statusShown; // false until the current device's status was rendered once
+    private boolean onlineShown;
+
+    // Schedule check: reports runs that collide. Limits on robots running at
+    // once and a busy time of the home network apply only if the user set them.
+    private static final String PREFS_NAME = "SharkControl";
+    private static final String KEY_MAX_ROBOTS = "schedule_max_robots"; // 0: no limit
+    private static final String KEY_PEAK_FROM = "schedule_peak_from";   // minute of day, -1: none
+    private static final String KEY_PEAK_TO = "schedule_peak_to";
+    private static final String[] DAY_LABELS = {"Mo", "Di", "Mi", "Do", "Fr", "Sa", "So"};
+
     private Handler refreshHandler = new Handler(Looper.getMainLooper());
-    private Runnable refreshRunnable;
-    private static final int REFRESH_INTERVAL_MS = 10000;
+    private StatusPoller poller;
+    private AylaApiClient.Subscription statusSubscription;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -49,6 +68,7 @@ public class MainActivity extends AppCompatActivity {
         }
 
         apiClient = new AylaApiClient(this);
+        poller = new StatusPoller(refreshHandler, this::refreshStatus);
         initViews();
         loadDevices();
     }
@@ -91,41 +111,19 @@ public class MainActivity extends AppCompatActivity {
 
         apiClient.getDevices(new AylaApiClient.Callback<List<SharkDevice>>() {
             @Override
-            public void onSuccess(List<SharkDevice> devices) {
+            public void onCached(List<SharkDevice> cached) {
+                runOnUiThread(() -> { if (!cached.isEmpty()) showDevices(cached); });
+            }
+
+            @Override
+            public void onSuccess(List<SharkDevice> result) {
                 runOnUiThread(() -> {
                     setLoading(false);
-                    if (devices.isEmpty()) {
+                    if (result.isEmpty()) {
                         statusText.setText("Keine Geräte gefunden.\nBitte zuerst in der SharkClean App einrichten.");
                         return;
                     }
-
-                    String[] deviceNames = new String[devices.size()];
-                    for (int i = 0; i < devices.size(); i++) {
-                        deviceNames[i] = devices.get(i).getProductName();
-                    }
-
-                    ArrayAdapter<String> adapter = new ArrayAdapter<>(MainActivity.this,
-                            android.R.layout.simple_spinner_item, deviceNames);
-                    adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-                    deviceSpinner.setAdapter(adapter);
-
-                    deviceSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
-                        @Override
-                        public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                            currentDevice = devices.get(position);
-                            deviceNameText.setText(currentDevice.getProductName());
-                            controlsLayout.setVisibility(View.VISIBLE);
-                            startStatusRefresh();
-                        }
-
-                        @Override
-                        public void onNothingSelected(AdapterView<?> parent) {}
-                    });
-
-                    currentDevice = devices.get(0);
-                    deviceNameText.setText(currentDevice.getProductName());
-                    controlsLayout.setVisibility(View.VISIBLE);
-                    startStatusRefresh();
+                    showDevices(result);
                 });
             }
 
@@ -133,27 +131,96 @@ public class MainActivity extends AppCompatActivity {
             public void onError(String error) {
                 runOnUiThread(() -> {
                     setLoading(false);
-                    statusText.setText("Fehler beim Laden: " + error);
-                    if (error.contains("401") || error.contains("auth")) {
+                    if (!apiClient.isSignedIn()) {
+                        // The token could not be renewed; nothing to do but log in again
+                        statusText.setText("Fehler beim Laden: " + error);
                         logout();
+                    } else if (devices == null) {
+                        statusText.setText("Fehler beim Laden: " + error);
                     }
                 });
             }
         });
     }
 
+    /**
+     * Shows {@code list} in the spinner. Called with the cached list first and
+     * again with the fresh one, so the selection is kept by DSN and the status
+     * refresh only restarts when the selected robot actually changes.
+     */
+    private void showDevices(List<SharkDevice> list) {
+        String selectedDsn = currentDevice != null ? currentDevice.getDsn() : null;
+        boolean sameDevices = devices != null && devices.size() == list.size();
+        int position = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (sameDevices && !list.get(i).getDsn().equals(devices.get(i).getDsn())) sameDevices = false;
+            if (list.get(i).getDsn().equals(selectedDsn)) position = i;
+        }
+        devices = list;
+
+        if (!sameDevices) {
+            String[] deviceNames = new String[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                deviceNames[i] = list.get(i).getProductName();
+            }
+
+            ArrayAdapter<String> adapter = new ArrayAdapter<>(MainActivity.this,
+                    android.R.layout.simple_spinner_item, deviceNames);
+            adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+            deviceSpinner.setAdapter(adapter);
+            deviceSpinner.setSelection(position);
+
+            deviceSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
+                    SharkDevice device = devices.get(pos);
+                    if (currentDevice != null && device.getDsn().equals(currentDevice.getDsn())) return;
+                    currentDevice = device;
+                    statusShown = false;
+                    deviceNameText.setText(currentDevice.getProductName());
+                    controlsLayout.setVisibility(View.VISIBLE);
+                    startStatusRefresh();
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {}
+            });
+        }
+
+        SharkDevice device = list.get(position);
+        boolean restart = !device.getDsn().equals(selectedDsn);
+        currentDevice = device;
+        deviceNameText.setText(currentDevice.getProductName());
+        controlsLayout.setVisibility(View.VISIBLE);
+        if (restart) {
+            statusShown = false;
+            startStatusRefresh();
+        }
+    }
+
     private void refreshStatus() {
         if (currentDevice == null) return;
 
         apiClient.getDeviceStatus(currentDevice.getDsn(), new AylaApiClient.Callback<RobotStatus>() {
+            @Override
+            public void onCached(RobotStatus status) {
+                runOnUiThread(() -> { if (!statusShown) showCachedStatus(status); });
+            }
+
             @Override
             public void onSuccess(RobotStatus status) {
-                runOnUiThread(() -> updateUI(status));
+                runOnUiThread(() -> {
+                    poller.onStatus(status);
+                    updateUI(status);
+                });
             }
 
             @Override
             public void onError(String error) {
                 runOnUiThread(() -> {
+                    if (!apiClient.isSignedIn()) { if (!isFinishing()) logout(); return; }
+                    poller.onError();
+                    onlineShown = false;
                     connectionStatus.setText("⚠ Offline");
                     connectionStatus.setTextColor(getColor(android.R.color.holo_orange_dark));
                 });
@@ -162,34 +229,59 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void updateUI(RobotStatus status) {
-        connectionStatus.setText("● Online");
-        connectionStatus.setTextColor(getColor(android.R.color.holo_green_dark));
+        // Only touch views whose backing field changed since the last poll.
+        int changed = statusShown ? status.getChangedFields() : RobotStatus.FIELDS_ALL;
+        statusShown = true;
+
+        if (!onlineShown) {
+            connectionStatus.setText("● Online");
+            connectionStatus.setTextColor(getColor(android.R.color.holo_green_dark));
+            onlineShown = true;
+        }
+        render(status, changed);
+    }
+
+    /** Last known status from a previous session, until the first live one arrives. */
+    private void showCachedStatus(RobotStatus status) {
+        render(status, RobotStatus.FIELDS_ALL);
+        onlineShown = false;
+        connectionStatus.setText("○ Zuletzt bekannt");
+        connectionStatus.setTextColor(getColor(android.R.color.darker_gray));
+    }
+
+    private void render(RobotStatus status, int changed) {
+        if (changed == 0) return;
 
         // Battery
-        int battery = status.getBatteryCapacity();
-        batteryProgress.setProgress(battery);
-        batteryText.setText("🔋 " + battery + "%");
+        if ((changed & RobotStatus.FIELD_BATTERY) != 0) {
+            int battery = status.getBatteryCapacity();
+            batteryProgress.setProgress(battery);
+            batteryText.setText("🔋 " + battery + "%");
+        }
 
         // Status
-        String operatingMode = status.getOperatingMode();
-        String statusEmoji = getStatusEmoji(operatingMode);
-        statusText.setText(statusEmoji + " " + getStatusLabel(operatingMode));
+        if ((changed & RobotStatus.FIELD_OPERATING_MODE) != 0) {
+            String operatingMode = status.getOperatingMode();
+            String statusEmoji = getStatusEmoji(operatingMode);
+            statusText.setText(statusEmoji + " " + getStatusLabel(operatingMode));
+            updateButtonStates(operatingMode);
+        }
 
         // Power Mode
-        String powerMode = status.getPowerMode();
-        powerModeText.setText("⚡ " + getPowerModeLabel(powerMode));
+        if ((changed & RobotStatus.FIELD_POWER_MODE) != 0) {
+            powerModeText.setText("⚡ " + getPowerModeLabel(status.getPowerMode()));
+        }
 
         // Cleaning stats
-        int cleanTime = status.getCleaningTime();
-        if (cleanTime > 0) {
-            cleaningTimeText.setText("⏱ " + formatTime(cleanTime));
-            cleaningTimeText.setVisibility(View.VISIBLE);
-        } else {
-            cleaningTimeText.setVisibility(View.GONE);
+        if ((changed & RobotStatus.FIELD_CLEANING_TIME) != 0) {
+            int cleanTime = status.getCleaningTime();
+            if (cleanTime > 0) {
+                cleaningTimeText.setText("⏱ " + formatTime(cleanTime));
+                cleaningTimeText.setVisibility(View.VISIBLE);
+            } else {
+                cleaningTimeText.setVisibility(View.GONE);
+            }
         }
-
-        // Update button states
-        updateButtonStates(operatingMode);
     }
 
     private void updateButtonStates(String mode) {
@@ -214,8 +306,8 @@ public class MainActivity extends AppCompatActivity {
                 runOnUiThread(() -> {
                     setLoading(false);
                     Toast.makeText(MainActivity.this, "Befehl gesendet: " + getCommandLabel(command), Toast.LENGTH_SHORT).show();
-                    // Refresh status after short delay
-                    refreshHandler.postDelayed(() -> refreshStatus(), 2000);
+                    // Check back shortly and poll fast while the robot reacts
+                    poller.boost();
                 });
             }
 
@@ -231,20 +323,31 @@ public class MainActivity extends AppCompatActivity {
 
     private void startStatusRefresh() {
         stopStatusRefresh();
-        refreshStatus();
-        refreshRunnable = new Runnable() {
+        poller.start();
+        SharkDevice device = currentDevice;
+        statusSubscription = apiClient.subscribeStatus(device, new AylaApiClient.StatusListener() {
+            @Override
+            public void onStatus(RobotStatus status) {
+                runOnUiThread(() -> {
+                    if (device != currentDevice) return;
+                    poller.onStatus(status);
+                    updateUI(status);
+                });
+            }
+
             @Override
-            public void run() {
-                refreshStatus();
-                refreshHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+            public void onLiveChanged(boolean live) {
+                runOnUiThread(() -> poller.setStreamLive(live));
             }
-        };
-        refreshHandler.postDelayed(refreshRunnable, REFRESH_INTERVAL_MS);
+        });
     }
 
     private void stopStatusRefresh() {
-        if (refreshRunnable != null) {
-            refreshHandler.removeCallbacks(refreshRunnable);
+        poller.stop();
+        poller.setStreamLive(false);
+        if (statusSubscription != null) {
+            statusSubscription.cancel();
+            statusSubscription = null;
         }
     }
 
@@ -260,10 +363,20 @@ public class MainActivity extends AppCompatActivity {
         stopStatusRefresh();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        refreshHandler.removeCallbacksAndMessages(null);
+        apiClient.close();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         menu.add(0, 1, 0, "Abmelden").setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM);
         menu.add(0, 2, 1, "Aktualisieren").setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM);
+        menu.add(0, 3, 2, "LAN-Modus").setCheckable(true).setChecked(apiClient.isLanModeEnabled());
+        menu.add(0, 4, 3, "Zeitpläne prüfen");
+        menu.add(0, 5, 4, "Regeln für Zeitpläne");
         return true;
     }
 
@@ -277,7 +390,16 @@ public class MainActivity extends AppCompatActivity {
                     .setNegativeButton("Nein", null)
                     .show();
         } else if (item.getItemId() == 2) {
-            refreshStatus();
+            poller.pollNow();
+        } else if (item.getItemId() == 3) {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            apiClient.setLanModeEnabled(enabled);
+            Toast.makeText(this, enabled ? "LAN-Modus aktiviert" : "LAN-Modus deaktiviert", Toast.LENGTH_SHORT).show();
+        } else if (item.getItemId() == 4) {
+            checkSchedules();
+        } else if (item.getItemId() == 5) {
+            editScheduleRules();
         }
         return super.onOptionsItemSelected(item);
     }
@@ -296,9 +418,130 @@ public class MainActivity extends AppCompatActivity {
         startActivity(intent);
     }
 
+    /** Looks for schedules of all robots that collide and offers staggered start times. */
+    private void checkSchedules() {
+        if (devices == null || devices.isEmpty()) return;
+        List<String> dsns = new ArrayList<>();
+        for (SharkDevice d : devices) dsns.add(d.getDsn());
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        SchedulePlanner planner = new SchedulePlanner();
+        int maxRobots = prefs.getInt(KEY_MAX_ROBOTS, 0);
+        int peakFrom = prefs.getInt(KEY_PEAK_FROM, -1), peakTo = prefs.getInt(KEY_PEAK_TO, -1);
+        if (maxRobots > 0) planner.setMaxConcurrent(maxRobots);
+        if (peakFrom >= 0 && peakTo >= 0) planner.addNetworkPeak(peakFrom, peakTo);
+        setLoading(true);
+        apiClient.getAllSchedules(dsns, new AylaApiClient.Callback<Map<String, List<Schedule>>>() {
+            @Override
+            public void onSuccess(Map<String, List<Schedule>> schedules) {
+                SchedulePlanner.Plan plan = planner.plan(schedules);
+                runOnUiThread(() -> {
+                    setLoading(false);
+                    showPlan(plan);
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                runOnUiThread(() -> {
+                    setLoading(false);
+                    Toast.makeText(MainActivity.this, "Fehler: " + error, Toast.LENGTH_LONG).show();
+                });
+            }
+        });
+    }
+
+    /** Optional limits for {@link #checkSchedules}: robots at once, and a time no run should start. */
+    private void editScheduleRules() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        int maxRobots = prefs.getInt(KEY_MAX_ROBOTS, 0);
+        int peakFrom = prefs.getInt(KEY_PEAK_FROM, -1), peakTo = prefs.getInt(KEY_PEAK_TO, -1);
+        String[] rules = {
+                "Roboter gleichzeitig: " + (maxRobots > 0 ? String.valueOf(maxRobots) : "beliebig viele"),
+                "Keine Starts im Heimnetz: " + (peakFrom >= 0 && peakTo >= 0
+                        ? Schedule.timeLabel(peakFrom) + " – " + Schedule.timeLabel(peakTo) : "nie")};
+        new AlertDialog.Builder(this)
+                .setTitle("Regeln für Zeitpläne")
+                .setItems(rules, (d, which) -> {
+                    if (which == 0) editMaxRobots(prefs); else editNetworkPeak(prefs);
+                })
+                .setNegativeButton("Schließen", null)
+                .show();
+    }
+
+    private void editMaxRobots(SharedPreferences prefs) {
+        String[] choices = {"Beliebig viele", "1", "2", "3"};
+        new AlertDialog.Builder(this)
+                .setTitle("Roboter gleichzeitig")
+                .setItems(choices, (d, which) -> prefs.edit().putInt(KEY_MAX_ROBOTS, which).apply())
+                .show();
+    }
+
+    private void editNetworkPeak(SharedPreferences prefs) {
+        String[] choices = {"Keine", "Zeitraum wählen…"};
+        new AlertDialog.Builder(this)
+                .setTitle("Keine Starts im Heimnetz")
+                .setItems(choices, (d, which) -> {
+                    if (which == 0) {
+                        prefs.edit().remove(KEY_PEAK_FROM).remove(KEY_PEAK_TO).apply();
+                        return;
+                    }
+                    new TimePickerDialog(this, (tp, fromH, fromM) -> new TimePickerDialog(this, (tp2, toH, toM) ->
+                            prefs.edit().putInt(KEY_PEAK_FROM, fromH * 60 + fromM).putInt(KEY_PEAK_TO, toH * 60 + toM).apply(),
+                            23, 0, true).show(), 19, 0, true).show();
+                })
+                .show();
+    }
+
+    private void showPlan(SchedulePlanner.Plan plan) {
+        if (plan.conflicts.isEmpty()) {
+            Toast.makeText(this, "Keine Überschneidungen gefunden", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (SchedulePlanner.Conflict c : plan.conflicts) {
+            int day = c.startMinute / SchedulePlanner.MINUTES_PER_DAY, t = c.startMinute % SchedulePlanner.MINUTES_PER_DAY;
+            sb.append(String.format(Locale.getDefault(), "%s %02d:%02d · %s: ", DAY_LABELS[day], t / 60, t % 60, deviceName(c.dsn)));
+            switch (c.kind) {
+                case SchedulePlanner.Conflict.SAME_ROBOT: sb.append("doppelt geplant"); break;
+                case SchedulePlanner.Conflict.SAME_FLOOR: sb.append("gleichzeitig mit ").append(deviceName(c.otherDsn)); break;
+                case SchedulePlanner.Conflict.TOO_MANY: sb.append("zu viele Roboter gleichzeitig"); break;
+                default: sb.append("Start zur Hauptlast im Heimnetz"); break;
+            }
+            sb.append('\n');
+        }
+        if (!plan.suggestions.isEmpty()) sb.append("\nVorschläge:\n");
+        for (SchedulePlanner.Suggestion s : plan.suggestions) {
+            sb.append(String.format(Locale.getDefault(), "%s (%s): %s → %02d:%02d Uhr\n", deviceName(s.dsn),
+                    s.schedule.getDaysLabel(), s.schedule.getTimeLabel(), s.hour, s.minute));
+        }
+        AlertDialog.Builder dialog = new AlertDialog.Builder(this)
+                .setTitle("Zeitpläne prüfen")
+                .setMessage(sb.toString().trim())
+                .setNegativeButton("Schließen", null);
+        if (!plan.suggestions.isEmpty()) {
+            dialog.setPositiveButton("Vorschläge übernehmen", (d, w) -> {
+                for (SchedulePlanner.Suggestion s : plan.suggestions) {
+                    Schedule moved = s.schedule.copy();
+                    moved.setHour(s.hour);
+                    moved.setMinute(s.minute);
+                    apiClient.schedules(s.dsn).upsert(moved);
+                }
+                Toast.makeText(this, plan.suggestions.size() + " Zeitpläne verschoben", Toast.LENGTH_SHORT).show();
+            });
+        }
+        dialog.show();
+    }
+
+    private String deviceName(String dsn) {
+        if (devices != null) for (SharkDevice d : devices) if (d.getDsn().equals(dsn)) return d.getProductName();
+        return dsn;
+    }
+
     private void logout() {
         stopStatusRefresh();
-        getSharedPreferences("SharkControl", MODE_PRIVATE).edit().clear().apply();
+        AuthManager.get(this).signOut();
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit().clear().apply();
+        apiClient.clearLocalData();
         startActivity(new Intent(this, LoginActivity.class));
         finish();
     }
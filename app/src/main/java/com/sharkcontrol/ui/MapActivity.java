@@ -1,24 +1,64 @@
 package com.sharkcontrol.ui;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.Button;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 import com.sharkcontrol.R;
 import com.sharkcontrol.api.AylaApiClient;
+import com.sharkcontrol.api.PropertyQuery;
+import com.sharkcontrol.api.PropertyValues;
+import com.sharkcontrol.model.CoverageMap;
 import com.sharkcontrol.model.MapData;
+import com.sharkcontrol.model.Room;
+import com.sharkcontrol.model.Trajectory;
+
+import java.util.Locale;
 
 public class MapActivity extends AppCompatActivity {
 
     private AylaApiClient apiClient;
     private MapView mapView;
     private ProgressBar loadingProgress;
-    private TextView statusText;
+    private TextView statusText, roomSummary;
     private String dsn;
 
+    // While the screen is open the map is refreshed in place; MapView only
+    // repaints the regions that changed.
+    private static final long AUTO_REFRESH_MS = 20000;
+    private final Handler refreshHandler = new Handler(Looper.getMainLooper());
+    private final Runnable autoRefresh = new Runnable() {
+        @Override
+        public void run() {
+            loadMap(false);
+            refreshHandler.postDelayed(this, AUTO_REFRESH_MS);
+        }
+    };
+
+    // The robot pose is cheap to poll, so it is read far more often than the
+    // map and recorded into the run's trajectory.
+    private static final PropertyQuery POSE = PropertyQuery.of("GET_Robot_Position", "GET_Operating_Mode");
+    private static final long POSE_ACTIVE_MS = 5000;
+    private static final long POSE_IDLE_MS = 30000;
+    private static final float PATH_TOLERANCE_CELLS = 0.5f;
+    private Trajectory trajectory;
+    private final int[] pathX = new int[Trajectory.CAPACITY];
+    private final int[] pathY = new int[Trajectory.CAPACITY];
+    private long poseDelay = POSE_ACTIVE_MS;
+    private final Runnable posePoll = new Runnable() {
+        @Override
+        public void run() {
+            pollPose();
+            refreshHandler.postDelayed(this, poseDelay);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -31,32 +71,109 @@ public class MapActivity extends AppCompatActivity {
 
         dsn = getIntent().getStringExtra("dsn");
         apiClient = new AylaApiClient(this);
+        trajectory = Trajectory.forDevice(dsn);
 
         mapView = findViewById(R.id.map_view);
         loadingProgress = findViewById(R.id.loading_progress);
         statusText = findViewById(R.id.status_text);
+        roomSummary = findViewById(R.id.room_summary);
+
+        findViewById(R.id.btn_refresh).setOnClickListener(v -> loadMap(true));
+        Button heatmapButton = findViewById(R.id.btn_heatmap);
+        heatmapButton.setOnClickListener(v -> {
+            boolean on = !mapView.isHeatmap();
+            CoverageMap coverage = on ? apiClient.getCoverage(dsn) : null;
+            if (on && (coverage == null || coverage.getRuns() == 0)) {
+                Toast.makeText(this, "Noch keine Reinigungen aufgezeichnet", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            mapView.setHeatmap(coverage);
+            heatmapButton.setText(on ? "Karte" : "Heatmap");
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refreshHandler.removeCallbacks(autoRefresh);
+        refreshHandler.removeCallbacks(posePoll);
+        showTrajectory();
+        autoRefresh.run();
+        posePoll.run();
+    }
 
-        findViewById(R.id.btn_refresh).setOnClickListener(v -> loadMap());
-        loadMap();
+    @Override
+    protected void onPause() {
+        super.onPause();
+        refreshHandler.removeCallbacks(autoRefresh);
+        refreshHandler.removeCallbacks(posePoll);
     }
 
-    private void loadMap() {
+    private void pollPose() {
+        apiClient.getProperties(dsn, POSE, new AylaApiClient.Callback<PropertyValues>() {
+            @Override
+            public void onSuccess(PropertyValues values) {
+                runOnUiThread(() -> onPose(values));
+            }
+
+            @Override
+            public void onError(String error) {
+                // the next poll or map refresh will catch up
+            }
+        });
+    }
+
+    private void onPose(PropertyValues values) {
+        String mode = values.getString("GET_Operating_Mode");
+        trajectory.onOperatingMode(mode);
+        poseDelay = "start".equals(mode) || "return".equals(mode) ? POSE_ACTIVE_MS : POSE_IDLE_MS;
+        String pos = values.getString("GET_Robot_Position");
+        if (pos == null) return;
+        String[] p = pos.split(",");
+        if (p.length < 2) return;
+        try {
+            int x = Integer.parseInt(p[0].trim()), y = Integer.parseInt(p[1].trim());
+            float angle = p.length >= 3 ? Float.parseFloat(p[2].trim()) : 0f;
+            trajectory.add(x, y);
+            mapView.setRobotPosition(x, y, angle);
+            showTrajectory();
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    private void showTrajectory() {
+        int n = trajectory.simplify(PATH_TOLERANCE_CELLS, pathX, pathY);
+        mapView.setTrajectory(pathX, pathY, n);
+    }
+
+    /** {@code force} skips the map cache, so the refresh button always asks the robot. */
+    private void loadMap(boolean force) {
         loadingProgress.setVisibility(View.VISIBLE);
-        statusText.setText("Karte wird geladen...");
-        mapView.setVisibility(View.GONE);
+        if (mapView.getVisibility() != View.VISIBLE) statusText.setText("Karte wird geladen...");
+
+        apiClient.getMapData(dsn, force, new AylaApiClient.Callback<MapData>() {
+            @Override
+            public void onCached(MapData mapData) {
+                // Last known map while the fresh one downloads; the spinner keeps running.
+                if (!mapData.hasData()) return;
+                mapView.setMapData(mapData);
+                runOnUiThread(() -> showMap());
+            }
 
-        apiClient.getMapData(dsn, new AylaApiClient.Callback<MapData>() {
             @Override
             public void onSuccess(MapData mapData) {
+                // Frame preparation stays on this worker thread; the UI only swaps it in
+                if (mapData != null && mapData.hasData()) mapView.setMapData(mapData);
                 runOnUiThread(() -> {
                     loadingProgress.setVisibility(View.GONE);
                     if (mapData == null || !mapData.hasData()) {
+                        mapView.setVisibility(View.GONE);
+                        roomSummary.setVisibility(View.GONE);
                         statusText.setText("Keine Kartendaten verfügbar.\nStarte eine Reinigung, um eine Karte zu erstellen.");
                         statusText.setVisibility(View.VISIBLE);
                     } else {
-                        statusText.setVisibility(View.GONE);
-                        mapView.setVisibility(View.VISIBLE);
-                        mapView.setMapData(mapData);
+                        showMap();
+                        showRooms(mapData);
                     }
                 });
             }
@@ -72,6 +189,33 @@ public class MapActivity extends AppCompatActivity {
         });
     }
 
+    private void showMap() {
+        statusText.setVisibility(View.GONE);
+        mapView.setVisibility(View.VISIBLE);
+    }
+
+    private void showRooms(MapData mapData) {
+        if (mapData.getRooms().isEmpty()) {
+            roomSummary.setVisibility(View.GONE);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Room r : mapData.getRooms()) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(String.format(Locale.getDefault(), "Raum %d: %.1f m² · %d %% gereinigt",
+                    r.getId(), r.getAreaSqm(), r.getCleanedPercent()));
+        }
+        roomSummary.setText(sb);
+        roomSummary.setVisibility(View.VISIBLE);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        refreshHandler.removeCallbacksAndMessages(null);
+        apiClient.close();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) { finish(); return true; }
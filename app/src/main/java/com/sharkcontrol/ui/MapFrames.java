@@ -0,0 +1,58 @@
+package com.sharkcontrol.ui;
+
+import com.sharkcontrol.model.MapData;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Double buffer between the thread that prepares a map for display and the
+ * UI thread. The UI owns the front frame; the producer fills the other one
+ * and publishes it, and the UI takes it over by swapping a reference. A
+ * frame published again before the UI picked it up is simply overwritten,
+ * so only the newest map is ever shown and nothing is allocated per map.
+ */
+final class MapFrames {
+
+    /** Everything {@link MapView} needs to switch to a new map. */
+    static final class Frame {
+        MapData map;
+        // Fit-to-view transform for a view of viewW x viewH; valid if hasFit
+        boolean hasFit;
+        int viewW, viewH;
+        float fitScale, fitTranslateX, fitTranslateY;
+        long publishedAt;
+    }
+
+    private final AtomicReference<Frame> free = new AtomicReference<>(new Frame());
+    private final AtomicReference<Frame> published = new AtomicReference<>();
+    private Frame front = new Frame(); // UI thread only
+
+    /** Producer: a frame to fill. Only one producer may fill at a time. */
+    Frame acquire() {
+        while (true) {
+            Frame f = free.getAndSet(null);
+            if (f == null) f = published.getAndSet(null); // not shown yet: replace it
+            if (f != null) return f;
+            Thread.yield(); // the UI is in the middle of a swap
+        }
+    }
+
+    /** Producer: hands a filled frame to the UI. */
+    void publish(Frame f) {
+        f.publishedAt = System.nanoTime();
+        published.set(f);
+    }
+
+    boolean hasPending() { return published.get() != null; }
+
+    /** UI thread: the newest published frame, now the front, or null if there is none. */
+    Frame swap() {
+        Frame f = published.getAndSet(null);
+        if (f == null) return null;
+        Frame old = front;
+        old.map = null;
+        front = f;
+        free.set(old);
+        return f;
+    }
+}
@@ -0,0 +1,340 @@
+package com.sharkcontrol.ui;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import com.sharkcontrol.model.CoverageMap;
+import com.sharkcontrol.model.MapData;
+import com.sharkcontrol.model.MapDiff;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tile pyramid for {@link MapView}. The grid is cut into {@link #TILE}-pixel
+ * square tiles; at level L one tile pixel covers 2^L x 2^L cells, so a
+ * zoomed-out view of a huge map needs only a handful of coarse tiles.
+ *
+ * Only tiles that intersect the viewport are requested. They are rendered
+ * on a single low-priority worker thread and kept in an LRU bounded by
+ * bytes, so memory stays flat however large the map is. A missing tile is
+ * drawn from a coarser cached level until it arrives.
+ *
+ * In heatmap mode floor pixels are coloured by how many runs covered them,
+ * read from a {@link CoverageMap}; zoomed out, a pixel shows the highest
+ * count of its block.
+ *
+ * Everything except tile rendering runs on the UI thread.
+ */
+final class MapTileRenderer {
+
+    static final int TILE = 256;
+    private static final int MAX_LEVEL = 8;
+
+    // Downsampling keeps the most significant cell of each block: walls
+    // survive zooming out, then floor, then anything else.
+    private static final int[] RANK = new int[256];
+    static {
+        RANK[MapData.CELL_FLOOR] = 1;
+        RANK[MapData.CELL_WALL] = 2;
+    }
+
+    private final int cellSizePx;
+    private final int[] colors;
+    private final Runnable onTileReady;
+    private final long budgetBytes;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor worker;
+
+    private final LinkedHashMap<Long, Bitmap> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private final Set<Long> pending = new HashSet<>();
+    private final Set<Long> stale = new HashSet<>(); // cached, but shows an older grid
+    private long usedBytes;
+
+    private final Matrix tileMatrix = new Matrix();
+    private final Paint paint = new Paint();
+    private final Rect src = new Rect();
+    private final RectF dst = new RectF();
+
+    private MapData map;
+    private CoverageMap coverage;
+    private int[] heatColors;
+    private int version;
+    // Last drawn viewport {version, level, tx0, ty0, tx1, ty1}; the worker skips tiles outside it.
+    private volatile int[] wanted = new int[6];
+
+    /**
+     * @param colors      ARGB colour per cell value (256 entries)
+     * @param onTileReady called on the UI thread when a requested tile is ready
+     */
+    MapTileRenderer(int cellSizePx, int[] colors, Runnable onTileReady) {
+        this.cellSizePx = cellSizePx;
+        this.colors = colors;
+        this.onTileReady = onTileReady;
+        this.budgetBytes = Math.max(8L << 20, Math.min(32L << 20, Runtime.getRuntime().maxMemory() / 8));
+        this.worker = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "map-tiles");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        worker.allowCoreThreadTimeOut(true);
+        paint.setFilterBitmap(false);
+    }
+
+    void setMap(MapData map) {
+        this.map = map;
+        version++;
+        clear();
+    }
+
+    /**
+     * Colours floor by run count from {@code coverage}, with {@code heatColors}
+     * running from rarely to always covered; null switches back to the plain map.
+     */
+    void setCoverage(CoverageMap coverage, int[] heatColors) {
+        this.coverage = coverage;
+        this.heatColors = heatColors;
+        version++;
+        clear();
+    }
+
+    /**
+     * Switches to {@code map}, which differs from the current one only where
+     * {@code diff} says. Unaffected tiles stay cached; affected ones keep
+     * being drawn until their re-render replaces them, so nothing flickers.
+     */
+    void patch(MapData map, MapDiff diff) {
+        this.map = map;
+        if (diff.isEmpty()) return; // in-flight renders of the same grid are still valid
+        version++;
+        pending.clear();
+        for (long key : tiles.keySet()) {
+            int level = (int) (key >>> 56), ty = (int) ((key >>> 28) & 0xFFFFFFF), tx = (int) (key & 0xFFFFFFF);
+            int span = TILE << level;
+            if (diff.intersects(tx * span, ty * span, (tx + 1) * span, (ty + 1) * span)) stale.add(key);
+        }
+    }
+
+    /** Drops all cached tiles, e.g. when the view is detached. Tiles are re-requested on the next draw. */
+    void clear() {
+        for (Bitmap b : tiles.values()) b.recycle();
+        tiles.clear();
+        pending.clear();
+        stale.clear();
+        usedBytes = 0;
+    }
+
+    /** Bytes currently held by cached tiles. */
+    long memoryBytes() { return usedBytes; }
+
+    /**
+     * Draws the visible part of the map. {@code canvas} is in map pixels
+     * (cell * cellSizePx); the viewport is given in cells.
+     */
+    void draw(Canvas canvas, float left, float top, float right, float bottom, float screenPxPerCell) {
+        MapData m = map;
+        if (m == null || !m.hasData()) return;
+        int level = levelFor(screenPxPerCell);
+        int span = TILE << level;
+        int tx0 = Math.max(0, (int) Math.floor(left / span));
+        int ty0 = Math.max(0, (int) Math.floor(top / span));
+        int tx1 = Math.min((m.getWidth() - 1) / span, (int) Math.floor(right / span));
+        int ty1 = Math.min((m.getHeight() - 1) / span, (int) Math.floor(bottom / span));
+        wanted = new int[]{version, level, tx0, ty0, tx1, ty1};
+
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                long key = key(level, tx, ty);
+                Bitmap b = tiles.get(key);
+                if (b != null) {
+                    if (stale.contains(key)) request(m, level, tx, ty);
+                    drawTile(canvas, b, level, tx, ty);
+                } else {
+                    request(m, level, tx, ty);
+                    drawFallback(canvas, level, tx, ty);
+                }
+            }
+        }
+    }
+
+    /** Finest level whose pixels are still at least one screen pixel. */
+    private static int levelFor(float screenPxPerCell) {
+        int level = 0;
+        while (level < MAX_LEVEL && screenPxPerCell * (1 << (level + 1)) < 2f) level++;
+        return level;
+    }
+
+    private void drawTile(Canvas canvas, Bitmap b, int level, int tx, int ty) {
+        float scale = cellSizePx << level;
+        tileMatrix.setScale(scale, scale);
+        tileMatrix.postTranslate((float) tx * TILE * scale, (float) ty * TILE * scale);
+        canvas.drawBitmap(b, tileMatrix, paint);
+    }
+
+    /** Draws the matching part of the nearest cached coarser tile, if any. */
+    private void drawFallback(Canvas canvas, int level, int tx, int ty) {
+        for (int up = 1; level + up <= MAX_LEVEL; up++) {
+            Bitmap parent = tiles.get(key(level + up, tx >> up, ty >> up));
+            if (parent == null) continue;
+            int sub = TILE >> up; // size of this tile inside the parent, in parent pixels
+            int sx = (tx & ((1 << up) - 1)) * sub, sy = (ty & ((1 << up) - 1)) * sub;
+            int sw = Math.min(sub, parent.getWidth() - sx), sh = Math.min(sub, parent.getHeight() - sy);
+            if (sw <= 0 || sh <= 0) return;
+            src.set(sx, sy, sx + sw, sy + sh);
+            float cellsPerPx = 1 << (level + up);
+            float x = ((float) (tx >> up) * TILE + sx) * cellsPerPx * cellSizePx;
+            float y = ((float) (ty >> up) * TILE + sy) * cellsPerPx * cellSizePx;
+            dst.set(x, y, x + sw * cellsPerPx * cellSizePx, y + sh * cellsPerPx * cellSizePx);
+            canvas.drawBitmap(parent, src, dst, paint);
+            return;
+        }
+    }
+
+    private void request(MapData m, int level, int tx, int ty) {
+        long key = key(level, tx, ty);
+        if (!pending.add(key)) return;
+        int v = version;
+        CoverageMap cov = coverage;
+        int[] heat = heatColors;
+        int runs = cov != null ? cov.getRuns() : 0;
+        worker.execute(() -> {
+            Bitmap b = null;
+            if (isWanted(v, level, tx, ty)) {
+                // The history is only drawn over the map it was recorded for
+                boolean heatmap = runs > 0 && cov.getWidth() == m.getWidth() && cov.getHeight() == m.getHeight();
+                b = heatmap ? renderHeatTile(m, cov, heat, runs, level, tx, ty) : renderTile(m, level, tx, ty);
+            }
+            Bitmap tile = b;
+            main.post(() -> deliver(key, v, tile));
+        });
+    }
+
+    private boolean isWanted(int v, int level, int tx, int ty) {
+        int[] w = wanted;
+        return w[0] == v && w[1] == level && tx >= w[2] && ty >= w[3] && tx <= w[4] && ty <= w[5];
+    }
+
+    private void deliver(long key, int v, Bitmap b) {
+        if (v != version) {
+            if (b != null) b.recycle();
+            return;
+        }
+        pending.remove(key);
+        if (b == null) return;
+        Bitmap old = tiles.put(key, b);
+        if (old != null) {
+            usedBytes -= old.getAllocationByteCount();
+            old.recycle();
+        }
+        stale.remove(key);
+        usedBytes += b.getAllocationByteCount();
+        trim();
+        onTileReady.run();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<Long, Bitmap>> it = tiles.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<Long, Bitmap> e = it.next();
+            Bitmap eldest = e.getValue();
+            stale.remove(e.getKey());
+            it.remove();
+            usedBytes -= eldest.getAllocationByteCount();
+            eldest.recycle();
+        }
+    }
+
+    // Worker thread only.
+    private final int[] rowPixels = new int[TILE];
+
+    private Bitmap renderTile(MapData m, int level, int tx, int ty) {
+        int step = 1 << level;
+        int mw = m.getWidth(), mh = m.getHeight();
+        int x0 = tx * (TILE << level), y0 = ty * (TILE << level);
+        int w = Math.min(TILE, (mw - x0 + step - 1) >> level);
+        int h = Math.min(TILE, (mh - y0 + step - 1) >> level);
+        byte[] cells = m.getCells();
+        // Three colours and no alpha: RGB_565 halves the memory per tile.
+        Bitmap b = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+        for (int py = 0; py < h; py++) {
+            int cy0 = y0 + (py << level), cy1 = Math.min(cy0 + step, mh);
+            for (int px = 0; px < w; px++) {
+                int cx0 = x0 + (px << level), cx1 = Math.min(cx0 + step, mw);
+                int best = cells[cy0 * mw + cx0] & 0xFF;
+                if (level > 0) {
+                    for (int cy = cy0; cy < cy1 && RANK[best] < 2; cy++) {
+                        int off = cy * mw;
+                        for (int cx = cx0; cx < cx1; cx++) {
+                            int v = cells[off + cx] & 0xFF;
+                            if (RANK[v] > RANK[best]) best = v;
+                        }
+                    }
+                }
+                rowPixels[px] = colors[best];
+            }
+            b.setPixels(rowPixels, 0, w, 0, py, w, 1);
+        }
+        return b;
+    }
+
+    // Worker thread only, heatmap mode
+    private final char[] rowCounts = new char[TILE << MAX_LEVEL];
+    private final int[] pixelCounts = new int[TILE];
+
+    private Bitmap renderHeatTile(MapData m, CoverageMap cov, int[] heat, int runs, int level, int tx, int ty) {
+        int step = 1 << level;
+        int mw = m.getWidth(), mh = m.getHeight();
+        int x0 = tx * (TILE << level), y0 = ty * (TILE << level);
+        int w = Math.min(TILE, (mw - x0 + step - 1) >> level);
+        int h = Math.min(TILE, (mh - y0 + step - 1) >> level);
+        int span = Math.min(w << level, mw - x0);
+        byte[] cells = m.getCells();
+        Bitmap b = Bitmap.createBitmap(w, h, Bitmap.Config.RGB_565);
+        for (int py = 0; py < h; py++) {
+            int cy0 = y0 + (py << level), cy1 = Math.min(cy0 + step, mh);
+            java.util.Arrays.fill(pixelCounts, 0, w, 0);
+            for (int cy = cy0; cy < cy1; cy++) {
+                cov.readRow(x0, cy, span, rowCounts);
+                for (int i = 0; i < span; i++) {
+                    int px = i >> level;
+                    if (rowCounts[i] > pixelCounts[px]) pixelCounts[px] = rowCounts[i];
+                }
+            }
+            for (int px = 0; px < w; px++) {
+                int cx0 = x0 + (px << level), cx1 = Math.min(cx0 + step, mw);
+                int best = cells[cy0 * mw + cx0] & 0xFF;
+                for (int cy = cy0; cy < cy1 && RANK[best] < 2; cy++) {
+                    int off = cy * mw;
+                    for (int cx = cx0; cx < cx1; cx++) {
+                        int v = cells[off + cx] & 0xFF;
+                        if (RANK[v] > RANK[best]) best = v;
+                    }
+                }
+                int n = pixelCounts[px];
+                if (RANK[best] == 2 || n == 0) {
+                    rowPixels[px] = colors[best];
+                } else {
+                    rowPixels[px] = heat[Math.min(heat.length - 1, (n * (heat.length - 1) + runs / 2) / runs)];
+                }
+            }
+            b.setPixels(rowPixels, 0, w, 0, py, w, 1);
+        }
+        return b;
+    }
+
+    private static long key(int level, int tx, int ty) {
+        return ((long) level << 56) | ((long) ty << 28) | tx;
+    }
+}
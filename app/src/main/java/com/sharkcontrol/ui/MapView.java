@@ -6,7 +6,10 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
+import com.sharkcontrol.model.CoverageMap;
 import com.sharkcontrol.model.MapData;
+import com.sharkcontrol.model.MapDiff;
+import com.sharkcontrol.model.MapTimings;
 
 /**
  * Custom View that renders the Shark robot cleaning map.
@@ -22,8 +25,36 @@ import com.sharkcontrol.model.MapData;
 public class MapView extends View {
 
     private MapData mapData;
+
+    // New maps are prepared on the caller's thread and double-buffered; the
+    // UI thread swaps them in before drawing, but not during a gesture.
+    private final MapFrames frames = new MapFrames();
+    private final Object producerLock = new Object();
+    private volatile int viewWidth, viewHeight;
+    private boolean gestureActive;
     private Paint floorPaint, wallPaint, unknownPaint, robotPaint, chargePaint, gridPaint;
+    private Paint arrowPaint, placeholderPaint, legendTextPaint, legendBgPaint, legendSwatchPaint, pathPaint;
+
+    // Driven path as one batched Path, and the live robot pose, which is
+    // polled more often than the map itself.
+    private final Path trajectoryPath = new Path();
+    private boolean hasTrajectory;
+    private int robotX = -1, robotY = -1;
+    private float robotAngle;
     private Matrix matrix = new Matrix();
+
+    // The occupancy layer comes from pre-rendered tiles scaled by the canvas
+    // matrix; frames only add the overlays on top.
+    private MapTileRenderer tileRenderer;
+    private final int[] cellColors = new int[256];
+
+    // Heatmap mode: floor coloured by the share of runs that covered it
+    private static final int[] HEAT_STOPS = {
+            Color.parseColor("#1565C0"), Color.parseColor("#26C6DA"), Color.parseColor("#9CCC65"),
+            Color.parseColor("#FDD835"), Color.parseColor("#E53935")};
+    private final int[] heatColors = new int[32];
+    private CoverageMap coverage;
+    private int coverageRuns;
     private ScaleGestureDetector scaleDetector;
 
     private float scaleFactor = 1f;
@@ -67,6 +98,45 @@ public class MapView extends View {
         gridPaint.setStrokeWidth(0.5f);
         gridPaint.setStyle(Paint.Style.STROKE);
 
+        pathPaint = new Paint();
+        pathPaint.setColor(Color.parseColor("#884FC3F7")); // translucent robot colour
+        pathPaint.setStyle(Paint.Style.STROKE);
+        pathPaint.setStrokeWidth(CELL_SIZE_PX * 0.6f);
+        pathPaint.setStrokeCap(Paint.Cap.ROUND);
+        pathPaint.setStrokeJoin(Paint.Join.ROUND);
+        pathPaint.setAntiAlias(true);
+
+        arrowPaint = new Paint();
+        arrowPaint.setColor(Color.WHITE);
+        arrowPaint.setStrokeWidth(2f);
+
+        placeholderPaint = new Paint();
+        placeholderPaint.setColor(Color.GRAY);
+        placeholderPaint.setTextSize(40f);
+        placeholderPaint.setTextAlign(Paint.Align.CENTER);
+
+        legendTextPaint = new Paint();
+        legendTextPaint.setColor(Color.WHITE);
+        legendTextPaint.setTextSize(28f);
+        legendTextPaint.setAntiAlias(true);
+
+        legendBgPaint = new Paint();
+        legendBgPaint.setColor(Color.parseColor("#AA16213E"));
+        legendBgPaint.setStyle(Paint.Style.FILL);
+
+        legendSwatchPaint = new Paint();
+        legendSwatchPaint.setStyle(Paint.Style.FILL);
+
+        java.util.Arrays.fill(cellColors, unknownPaint.getColor()); // robot marker etc. keep the background
+        cellColors[MapData.CELL_FLOOR] = floorPaint.getColor();
+        cellColors[MapData.CELL_WALL] = wallPaint.getColor();
+        tileRenderer = new MapTileRenderer(CELL_SIZE_PX, cellColors, this::invalidate);
+        for (int i = 0; i < heatColors.length; i++) {
+            float t = i * (HEAT_STOPS.length - 1f) / (heatColors.length - 1);
+            int k = Math.min((int) t, HEAT_STOPS.length - 2);
+            heatColors[i] = blend(HEAT_STOPS[k], HEAT_STOPS[k + 1], t - k);
+        }
+
         scaleDetector = new ScaleGestureDetector(getContext(), new ScaleGestureDetector.SimpleOnScaleGestureListener() {
             @Override
             public boolean onScale(ScaleGestureDetector detector) {
@@ -78,36 +148,134 @@ public class MapView extends View {
         });
     }
 
+    private static int blend(int a, int b, float t) {
+        return Color.rgb(
+                Math.round(Color.red(a) + (Color.red(b) - Color.red(a)) * t),
+                Math.round(Color.green(a) + (Color.green(b) - Color.green(a)) * t),
+                Math.round(Color.blue(a) + (Color.blue(b) - Color.blue(a)) * t));
+    }
+
+    /** Shows how often each area was cleaned across runs; null returns to the plain map. */
+    public void setHeatmap(CoverageMap coverage) {
+        this.coverage = coverage;
+        coverageRuns = coverage != null ? coverage.getRuns() : 0;
+        tileRenderer.setCoverage(coverage, heatColors);
+        invalidate();
+    }
+
+    public boolean isHeatmap() { return coverage != null; }
+
+    /** UI thread: stage timings of the map on screen, complete once it was drawn; null before the first map. */
+    public MapTimings getTimings() { return mapData != null ? mapData.getTimings() : null; }
+
+    /**
+     * Shows {@code mapData}. May be called from any thread: the fit-to-view
+     * math runs on the caller's thread and the UI thread only swaps the
+     * prepared frame in on its next draw.
+     */
     public void setMapData(MapData mapData) {
+        synchronized (producerLock) {
+            long start = System.nanoTime();
+            MapFrames.Frame f = frames.acquire();
+            f.map = mapData;
+            f.viewW = viewWidth;
+            f.viewH = viewHeight;
+            f.hasFit = mapData != null && mapData.hasData() && f.viewW > 0 && f.viewH > 0;
+            if (f.hasFit) fit(f, mapData);
+            if (mapData != null) mapData.getTimings().set(MapTimings.BUILD, System.nanoTime() - start);
+            frames.publish(f);
+        }
+        postInvalidate();
+    }
+
+    /** Scale and offset that fit the whole map into 90% of the view, centered. */
+    private static void fit(MapFrames.Frame f, MapData mapData) {
+        int gridW = mapData.getWidth() * CELL_SIZE_PX;
+        int gridH = mapData.getHeight() * CELL_SIZE_PX;
+        f.fitScale = Math.min((float) f.viewW / gridW, (float) f.viewH / gridH) * 0.9f;
+        f.fitTranslateX = (f.viewW - gridW * f.fitScale) / 2f;
+        f.fitTranslateY = (f.viewH - gridH * f.fitScale) / 2f;
+    }
+
+    /** UI thread: switches to the newest prepared frame, if any. */
+    private void applyPendingFrame() {
+        MapFrames.Frame f = frames.swap();
+        if (f == null) return;
+        MapData previous = this.mapData;
+        MapData mapData = f.map;
         this.mapData = mapData;
-        // Center the map initially
-        post(() -> {
-            if (mapData != null && mapData.getGrid() != null) {
-                int gridW = mapData.getGrid()[0].length * CELL_SIZE_PX;
-                int gridH = mapData.getGrid().length * CELL_SIZE_PX;
-                translateX = (getWidth() - gridW) / 2f;
-                translateY = (getHeight() - gridH) / 2f;
-                // Auto-scale to fit
-                float scaleX = (float) getWidth() / gridW;
-                float scaleY = (float) getHeight() / gridH;
-                scaleFactor = Math.min(scaleX, scaleY) * 0.9f;
-                translateX = (getWidth() - gridW * scaleFactor) / 2f;
-                translateY = (getHeight() - gridH * scaleFactor) / 2f;
-            }
-            invalidate();
-        });
+        if (mapData == null) {
+            tileRenderer.setMap(null);
+            return;
+        }
+        mapData.getTimings().set(MapTimings.HANDOFF, System.nanoTime() - f.publishedAt);
+
+        setRobotPosition(mapData.getRobotX(), mapData.getRobotY(), mapData.getRobotAngle());
+        boolean sameShape = previous != null && previous.hasData() && mapData.hasData()
+                && previous.getWidth() == mapData.getWidth() && previous.getHeight() == mapData.getHeight();
+        MapDiff diff = mapData.getChanges();
+        // A new run changes every cell's share of runs, so the heatmap is redrawn in full
+        boolean newRuns = coverage != null && coverage.getRuns() != coverageRuns;
+        if (newRuns) coverageRuns = coverage.getRuns();
+        if (sameShape && !newRuns && diff != null && diff.appliesTo(previous)) {
+            tileRenderer.patch(mapData, diff);
+        } else {
+            tileRenderer.setMap(mapData);
+        }
+        // A refresh of the same map keeps the user's zoom and pan
+        if (sameShape || !mapData.hasData()) return;
+        if (!f.hasFit || f.viewW != getWidth() || f.viewH != getHeight()) {
+            f.viewW = getWidth();
+            f.viewH = getHeight();
+            if (f.viewW == 0 || f.viewH == 0) return;
+            fit(f, mapData);
+        }
+        scaleFactor = f.fitScale;
+        translateX = f.fitTranslateX;
+        translateY = f.fitTranslateY;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        viewWidth = w;
+        viewHeight = h;
+    }
+
+    /** Moves the robot marker without reloading the map. */
+    public void setRobotPosition(int x, int y, float angle) {
+        if (x == robotX && y == robotY && angle == robotAngle) return;
+        robotX = x;
+        robotY = y;
+        robotAngle = angle;
+        invalidate();
+    }
+
+    /** Replaces the driven path with the first {@code n} points, in cells. */
+    public void setTrajectory(int[] xs, int[] ys, int n) {
+        trajectoryPath.rewind();
+        hasTrajectory = n >= 2;
+        if (hasTrajectory) {
+            float half = CELL_SIZE_PX / 2f;
+            trajectoryPath.moveTo(xs[0] * CELL_SIZE_PX + half, ys[0] * CELL_SIZE_PX + half);
+            for (int i = 1; i < n; i++) trajectoryPath.lineTo(xs[i] * CELL_SIZE_PX + half, ys[i] * CELL_SIZE_PX + half);
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        tileRenderer.clear();
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (mapData == null || mapData.getGrid() == null) {
+        if (!gestureActive) applyPendingFrame();
+        if (mapData == null || !mapData.hasData()) {
             // Draw placeholder
-            Paint p = new Paint();
-            p.setColor(Color.GRAY);
-            p.setTextSize(40f);
-            p.setTextAlign(Paint.Align.CENTER);
-            canvas.drawText("Keine Karte", getWidth() / 2f, getHeight() / 2f, p);
+            canvas.drawText("Keine Karte", getWidth() / 2f, getHeight() / 2f, placeholderPaint);
             return;
         }
 
@@ -115,28 +283,14 @@ public class MapView extends View {
         canvas.translate(translateX, translateY);
         canvas.scale(scaleFactor, scaleFactor);
 
-        int[][] grid = mapData.getGrid();
-        int rows = grid.length;
-        int cols = grid[0].length;
-
-        // Draw background
-        canvas.drawRect(0, 0, cols * CELL_SIZE_PX, rows * CELL_SIZE_PX, unknownPaint);
-
-        // Draw cells
-        for (int r = 0; r < rows; r++) {
-            for (int c = 0; c < cols; c++) {
-                int val = grid[r][c];
-                Paint paint = null;
-                switch (val) {
-                    case MapData.CELL_FLOOR: paint = floorPaint; break;
-                    case MapData.CELL_WALL:  paint = wallPaint;  break;
-                    default: continue; // skip unknown cells (keep background)
-                }
-                float x = c * CELL_SIZE_PX;
-                float y = r * CELL_SIZE_PX;
-                canvas.drawRect(x, y, x + CELL_SIZE_PX, y + CELL_SIZE_PX, paint);
-            }
-        }
+        // Occupancy layer: only the tiles in the viewport, at a resolution matching the zoom
+        float cellPx = CELL_SIZE_PX * scaleFactor;
+        float left = -translateX / cellPx, top = -translateY / cellPx;
+        canvas.drawRect(0, 0, mapData.getWidth() * CELL_SIZE_PX, mapData.getHeight() * CELL_SIZE_PX, unknownPaint);
+        tileRenderer.draw(canvas, left, top, left + getWidth() / cellPx, top + getHeight() / cellPx, cellPx);
+
+        // Driven path, one draw call
+        if (hasTrajectory) canvas.drawPath(trajectoryPath, pathPaint);
 
         // Draw charging station
         if (mapData.getChargeX() >= 0) {
@@ -146,40 +300,30 @@ public class MapView extends View {
         }
 
         // Draw robot position
-        if (mapData.getRobotX() >= 0) {
-            float rx = mapData.getRobotX() * CELL_SIZE_PX + CELL_SIZE_PX / 2f;
-            float ry = mapData.getRobotY() * CELL_SIZE_PX + CELL_SIZE_PX / 2f;
+        if (robotX >= 0) {
+            float rx = robotX * CELL_SIZE_PX + CELL_SIZE_PX / 2f;
+            float ry = robotY * CELL_SIZE_PX + CELL_SIZE_PX / 2f;
             canvas.drawCircle(rx, ry, CELL_SIZE_PX * 2f, robotPaint);
             // Direction indicator
-            double angle = Math.toRadians(mapData.getRobotAngle());
+            double angle = Math.toRadians(robotAngle);
             float arrowLen = CELL_SIZE_PX * 2.5f;
             float ax = rx + (float)(Math.cos(angle) * arrowLen);
             float ay = ry + (float)(Math.sin(angle) * arrowLen);
-            Paint arrowPaint = new Paint();
-            arrowPaint.setColor(Color.WHITE);
-            arrowPaint.setStrokeWidth(2f);
             canvas.drawLine(rx, ry, ax, ay, arrowPaint);
         }
 
         canvas.restore();
 
         // Draw legend
-        drawLegend(canvas);
+        if (coverage != null) drawHeatLegend(canvas); else drawLegend(canvas);
     }
 
     private void drawLegend(Canvas canvas) {
         float y = getHeight() - 120f;
         float x = 20f;
 
-        Paint textPaint = new Paint();
-        textPaint.setColor(Color.WHITE);
-        textPaint.setTextSize(28f);
-        textPaint.setAntiAlias(true);
-
-        Paint bgPaint = new Paint();
-        bgPaint.setColor(Color.parseColor("#AA16213E"));
-        bgPaint.setStyle(Paint.Style.FILL);
-        canvas.drawRoundRect(x - 10, y - 40, x + 300, y + 90, 12, 12, bgPaint);
+        Paint textPaint = legendTextPaint;
+        canvas.drawRoundRect(x - 10, y - 40, x + 300, y + 90, 12, 12, legendBgPaint);
 
         // Floor
         floorPaint.setAlpha(255);
@@ -195,14 +339,36 @@ public class MapView extends View {
         canvas.drawText("Roboter", x + 28, y + 76, textPaint);
     }
 
+    private void drawHeatLegend(Canvas canvas) {
+        float y = getHeight() - 120f;
+        float x = 20f;
+        canvas.drawRoundRect(x - 10, y - 40, x + 300, y + 90, 12, 12, legendBgPaint);
+
+        // Gradient from rarely to always cleaned, one swatch per palette step
+        float sw = 260f / heatColors.length;
+        for (int i = 0; i < heatColors.length; i++) {
+            legendSwatchPaint.setColor(heatColors[i]);
+            canvas.drawRect(x + i * sw, y, x + (i + 1) * sw, y + 20, legendSwatchPaint);
+        }
+        canvas.drawText("Selten", x, y + 46, legendTextPaint);
+        canvas.drawText("Immer", x + 190, y + 46, legendTextPaint);
+        canvas.drawText(coverageRuns == 1 ? "1 Reinigung" : coverageRuns + " Reinigungen", x, y + 76, legendTextPaint);
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         scaleDetector.onTouchEvent(event);
         switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
+                gestureActive = true;
                 lastTouchX = event.getX();
                 lastTouchY = event.getY();
                 break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                gestureActive = false;
+                if (frames.hasPending()) invalidate(); // a map arrived meanwhile
+                break;
             case MotionEvent.ACTION_MOVE:
                 if (!scaleDetector.isInProgress()) {
                     translateX += event.getX() - lastTouchX;
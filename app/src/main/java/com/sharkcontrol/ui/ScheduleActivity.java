@@ -6,25 +6,44 @@ import android.view.*;
 import android.widget.*;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import com.sharkcontrol.R;
 import com.sharkcontrol.api.AylaApiClient;
+import com.sharkcontrol.api.ScheduleRepository;
 import com.sharkcontrol.model.Schedule;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
+import java.util.Objects;
 
 public class ScheduleActivity extends AppCompatActivity {
 
     private AylaApiClient apiClient;
+    private ScheduleRepository repository;
     private ScheduleAdapter adapter;
-    private List<Schedule> schedules = new ArrayList<>();
+    private final List<Schedule> schedules = new ArrayList<>();
     private ProgressBar loadingProgress;
     private TextView emptyText;
     private String dsn;
 
+    // Edits show up at once; the repository writes them to the cloud behind the scenes.
+    private final ScheduleRepository.Listener repositoryListener = new ScheduleRepository.Listener() {
+        @Override
+        public void onSchedulesChanged() {
+            runOnUiThread(() -> showSchedules());
+        }
+
+        @Override
+        public void onError(String error) {
+            runOnUiThread(() -> {
+                loadingProgress.setVisibility(View.GONE);
+                Toast.makeText(ScheduleActivity.this, "Fehler: " + error, Toast.LENGTH_LONG).show();
+            });
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -37,6 +56,7 @@ public class ScheduleActivity extends AppCompatActivity {
 
         dsn = getIntent().getStringExtra("dsn");
         apiClient = new AylaApiClient(this);
+        repository = apiClient.schedules(dsn);
         loadingProgress = findViewById(R.id.loading_progress);
         emptyText = findViewById(R.id.empty_text);
 
@@ -46,30 +66,20 @@ public class ScheduleActivity extends AppCompatActivity {
         recyclerView.setAdapter(adapter);
 
         findViewById(R.id.btn_add_schedule).setOnClickListener(v -> showAddScheduleDialog());
-        loadSchedules();
+        loadingProgress.setVisibility(View.VISIBLE);
+        repository.addListener(repositoryListener);
+        repository.load();
     }
 
-    private void loadSchedules() {
-        loadingProgress.setVisibility(View.VISIBLE);
-        apiClient.getSchedules(dsn, new AylaApiClient.Callback<List<Schedule>>() {
-            @Override
-            public void onSuccess(List<Schedule> result) {
-                runOnUiThread(() -> {
-                    loadingProgress.setVisibility(View.GONE);
-                    schedules.clear();
-                    schedules.addAll(result);
-                    adapter.notifyDataSetChanged();
-                    emptyText.setVisibility(schedules.isEmpty() ? View.VISIBLE : View.GONE);
-                });
-            }
-            @Override
-            public void onError(String error) {
-                runOnUiThread(() -> {
-                    loadingProgress.setVisibility(View.GONE);
-                    Toast.makeText(ScheduleActivity.this, "Fehler: " + error, Toast.LENGTH_LONG).show();
-                });
-            }
-        });
+    /** Moves the list to the repository's, animating only the rows that changed. */
+    private void showSchedules() {
+        List<Schedule> next = repository.getSchedules();
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new ScheduleDiff(schedules, next));
+        schedules.clear();
+        schedules.addAll(next);
+        diff.dispatchUpdatesTo(adapter);
+        loadingProgress.setVisibility(View.GONE);
+        emptyText.setVisibility(schedules.isEmpty() ? View.VISIBLE : View.GONE);
     }
 
     private void showAddScheduleDialog() {
@@ -90,13 +100,13 @@ public class ScheduleActivity extends AppCompatActivity {
             dialogView.findViewById(R.id.cb_sun)
         };
         TextView timeText = dialogView.findViewById(R.id.time_text);
-        timeText.setText("08:00 Uhr");
+        timeText.setText(Schedule.timeLabel(8 * 60));
 
         dialogView.findViewById(R.id.btn_pick_time).setOnClickListener(v -> {
             new TimePickerDialog(this, (tp, h, m) -> {
                 selectedHour[0] = h;
                 selectedMinute[0] = m;
-                timeText.setText(String.format(Locale.getDefault(), "%02d:%02d Uhr", h, m));
+                timeText.setText(Schedule.timeLabel(h * 60 + m));
             }, selectedHour[0], selectedMinute[0], true).show();
         });
 
@@ -104,16 +114,16 @@ public class ScheduleActivity extends AppCompatActivity {
             .setTitle("Zeitplan hinzufügen")
             .setView(dialogView)
             .setPositiveButton("Speichern", (dialog, which) -> {
-                List<Integer> days = new ArrayList<>();
+                int days = 0;
                 for (int i = 0; i < dayBoxes.length; i++) {
-                    if (dayBoxes[i].isChecked()) days.add(i);
+                    if (dayBoxes[i].isChecked()) days |= 1 << i;
                 }
-                if (days.isEmpty()) {
+                if (days == 0) {
                     Toast.makeText(this, "Bitte mindestens einen Tag wählen", Toast.LENGTH_SHORT).show();
                     return;
                 }
                 Schedule schedule = new Schedule();
-                schedule.setDays(days);
+                schedule.setDayMask(days);
                 schedule.setHour(selectedHour[0]);
                 schedule.setMinute(selectedMinute[0]);
                 schedule.setEnabled(true);
@@ -124,67 +134,32 @@ public class ScheduleActivity extends AppCompatActivity {
     }
 
     private void saveSchedule(Schedule schedule) {
-        loadingProgress.setVisibility(View.VISIBLE);
-        apiClient.addSchedule(dsn, schedule, new AylaApiClient.Callback<Void>() {
-            @Override
-            public void onSuccess(Void v) {
-                runOnUiThread(() -> {
-                    Toast.makeText(ScheduleActivity.this, "Zeitplan gespeichert", Toast.LENGTH_SHORT).show();
-                    loadSchedules();
-                });
-            }
-            @Override
-            public void onError(String error) {
-                runOnUiThread(() -> {
-                    loadingProgress.setVisibility(View.GONE);
-                    Toast.makeText(ScheduleActivity.this, "Fehler: " + error, Toast.LENGTH_LONG).show();
-                });
-            }
-        });
+        repository.upsert(schedule);
+        Toast.makeText(this, "Zeitplan gespeichert", Toast.LENGTH_SHORT).show();
     }
 
     private void onScheduleToggled(Schedule schedule, boolean enabled) {
-        schedule.setEnabled(enabled);
-        apiClient.updateSchedule(dsn, schedule, new AylaApiClient.Callback<Void>() {
-            @Override
-            public void onSuccess(Void v) {
-                runOnUiThread(() -> Toast.makeText(ScheduleActivity.this,
-                    enabled ? "Aktiviert" : "Deaktiviert", Toast.LENGTH_SHORT).show());
-            }
-            @Override
-            public void onError(String error) {
-                runOnUiThread(() -> {
-                    schedule.setEnabled(!enabled); // revert
-                    adapter.notifyDataSetChanged();
-                    Toast.makeText(ScheduleActivity.this, "Fehler: " + error, Toast.LENGTH_SHORT).show();
-                });
-            }
-        });
+        if (schedule.isEnabled() == enabled) return;
+        Schedule edited = schedule.copy();
+        edited.setEnabled(enabled);
+        repository.upsert(edited);
     }
 
-    private void onScheduleDeleted(Schedule schedule, int position) {
+    private void onScheduleDeleted(Schedule schedule) {
         new AlertDialog.Builder(this)
             .setTitle("Zeitplan löschen")
             .setMessage("Diesen Zeitplan wirklich löschen?")
-            .setPositiveButton("Löschen", (d, w) -> {
-                apiClient.deleteSchedule(dsn, schedule, new AylaApiClient.Callback<Void>() {
-                    @Override
-                    public void onSuccess(Void v) {
-                        runOnUiThread(() -> {
-                            schedules.remove(position);
-                            adapter.notifyItemRemoved(position);
-                            emptyText.setVisibility(schedules.isEmpty() ? View.VISIBLE : View.GONE);
-                        });
-                    }
-                    @Override
-                    public void onError(String error) {
-                        runOnUiThread(() -> Toast.makeText(ScheduleActivity.this, "Fehler: " + error, Toast.LENGTH_SHORT).show());
-                    }
-                });
-            })
+            .setPositiveButton("Löschen", (d, w) -> repository.delete(schedule.getId()))
             .setNegativeButton("Abbrechen", null).show();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        repository.removeListener(repositoryListener);
+        apiClient.close();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == android.R.id.home) { finish(); return true; }
@@ -193,7 +168,29 @@ public class ScheduleActivity extends AppCompatActivity {
 
     // ---- Inner Adapter ----
     interface OnScheduleToggle { void onToggle(Schedule s, boolean enabled); }
-    interface OnScheduleDelete { void onDelete(Schedule s, int position); }
+    interface OnScheduleDelete { void onDelete(Schedule s); }
+
+    /** Rows are the same schedule if the ids match, unchanged if all settings do. */
+    static class ScheduleDiff extends DiffUtil.Callback {
+        private final List<Schedule> oldList, newList;
+
+        ScheduleDiff(List<Schedule> oldList, List<Schedule> newList) {
+            this.oldList = oldList; this.newList = newList;
+        }
+
+        @Override public int getOldListSize() { return oldList.size(); }
+        @Override public int getNewListSize() { return newList.size(); }
+
+        @Override
+        public boolean areItemsTheSame(int o, int n) {
+            return Objects.equals(oldList.get(o).getId(), newList.get(n).getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(int o, int n) {
+            return oldList.get(o).sameAs(newList.get(n));
+        }
+    }
 
     static class ScheduleAdapter extends RecyclerView.Adapter<ScheduleAdapter.VH> {
         private final List<Schedule> schedules;
@@ -213,11 +210,19 @@ public class ScheduleActivity extends AppCompatActivity {
         @Override
         public void onBindViewHolder(VH holder, int position) {
             Schedule s = schedules.get(position);
-            holder.timeText.setText(String.format(Locale.getDefault(), "%02d:%02d Uhr", s.getHour(), s.getMinute()));
+            holder.timeText.setText(s.getTimeLabel());
             holder.daysText.setText(s.getDaysLabel());
+            // Detach first: setChecked on a recycled row must not toggle the row's previous schedule
+            holder.enableSwitch.setOnCheckedChangeListener(null);
             holder.enableSwitch.setChecked(s.isEnabled());
-            holder.enableSwitch.setOnCheckedChangeListener((b, checked) -> toggleListener.onToggle(s, checked));
-            holder.deleteBtn.setOnClickListener(v -> deleteListener.onDelete(s, holder.getAdapterPosition()));
+            holder.enableSwitch.setOnCheckedChangeListener((b, checked) -> {
+                int pos = holder.getAdapterPosition();
+                if (pos != RecyclerView.NO_POSITION) toggleListener.onToggle(schedules.get(pos), checked);
+            });
+            holder.deleteBtn.setOnClickListener(v -> {
+                int pos = holder.getAdapterPosition();
+                if (pos != RecyclerView.NO_POSITION) deleteListener.onDelete(schedules.get(pos));
+            });
         }
 
         @Override
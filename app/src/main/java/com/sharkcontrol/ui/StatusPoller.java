@@ -0,0 +1,146 @@
+package com.sharkcontrol.ui;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import com.sharkcontrol.model.RobotStatus;
+
+import java.util.Random;
+
+/**
+ * Drives the status polls of {@link MainActivity} and adapts the interval to
+ * what the robot is doing: fast right after a command and while cleaning,
+ * slow while docked, and exponential backoff with jitter while offline.
+ *
+ * The next poll is always scheduled when one fires, so a lost response never
+ * stalls the loop; results only pull the next poll forward or push it back.
+ * While the push stream is live, polling drops to a slow safety net.
+ */
+class StatusPoller {
+
+    static final long BOOST_MS       = 2000;   // first poll after a command
+    static final long FAST_MS        = 3000;   // shortly after a command
+    static final long ACTIVE_MS      = 5000;   // cleaning or returning to dock
+    static final long PAUSED_MS      = 15000;
+    static final long IDLE_MS        = 20000;  // stopped, not on the charger
+    static final long DOCKED_MS      = 60000;  // charging on the dock
+    static final long OFFLINE_MIN_MS = 10000;
+    static final long OFFLINE_MAX_MS = 5 * 60 * 1000L;
+    static final long BOOST_WINDOW_MS = 20000;
+    static final long STREAM_MS      = 2 * 60 * 1000L; // safety poll while pushed updates arrive
+
+    private static final int RATE_WINDOW = 32;
+
+    private final Handler handler;
+    private final Runnable pollAction;
+    private final Random jitter = new Random();
+    private final Runnable fire = this::fire;
+
+    private final long[] pollTimes = new long[RATE_WINDOW];
+    private int pollCount;
+
+    private boolean running;
+    private long lastPollAt;
+    private long boostUntil;
+    private int failures;
+    private String mode;
+    private boolean charging;
+    private boolean hasError;
+    private boolean streamLive;
+
+    StatusPoller(Handler handler, Runnable pollAction) {
+        this.handler = handler;
+        this.pollAction = pollAction;
+    }
+
+    void start() {
+        stop();
+        running = true;
+        fire();
+    }
+
+    void stop() {
+        running = false;
+        handler.removeCallbacks(fire);
+    }
+
+    /** Polls right away, e.g. for a manual refresh. */
+    void pollNow() {
+        if (!running) return;
+        handler.removeCallbacks(fire);
+        fire();
+    }
+
+    /** A command was sent: check back soon and stay fast for a while. */
+    void boost() {
+        boostUntil = SystemClock.uptimeMillis() + BOOST_WINDOW_MS;
+        if (!running) return;
+        handler.removeCallbacks(fire);
+        handler.postDelayed(fire, BOOST_MS);
+    }
+
+    void onStatus(RobotStatus status) {
+        failures = 0;
+        mode = status.getOperatingMode();
+        charging = status.isCharging();
+        hasError = status.hasError();
+        reschedule();
+    }
+
+    /** The push stream came up or went down; polling takes over while it is down. */
+    void setStreamLive(boolean live) {
+        if (streamLive == live) return;
+        streamLive = live;
+        reschedule();
+    }
+
+    void onError() {
+        failures++;
+        reschedule();
+    }
+
+    /** Current poll interval in milliseconds. */
+    long currentIntervalMs() {
+        if (failures > 0) {
+            long backoff = OFFLINE_MIN_MS << Math.min(failures - 1, 5);
+            backoff = Math.min(backoff, OFFLINE_MAX_MS);
+            // +/-20 % so many clients don't retry in lockstep after an outage.
+            return (long) (backoff * (0.8 + 0.4 * jitter.nextDouble()));
+        }
+        if (streamLive) return STREAM_MS;
+        if (SystemClock.uptimeMillis() < boostUntil) return FAST_MS;
+        if (mode == null) return charging ? DOCKED_MS : IDLE_MS;
+        switch (mode.toLowerCase()) {
+            case "start":
+            case "return": return ACTIVE_MS;
+            case "pause":  return PAUSED_MS;
+            default:       return hasError ? PAUSED_MS : charging ? DOCKED_MS : IDLE_MS;
+        }
+    }
+
+    /** Effective request rate over the recent polls, in requests per minute. */
+    float requestsPerMinute() {
+        int n = Math.min(pollCount, RATE_WINDOW);
+        if (n < 2) return 0f;
+        long newest = pollTimes[(pollCount - 1) % RATE_WINDOW];
+        long oldest = pollTimes[(pollCount - n) % RATE_WINDOW];
+        if (newest <= oldest) return 0f;
+        return (n - 1) * 60000f / (newest - oldest);
+    }
+
+    private void fire() {
+        if (!running) return;
+        lastPollAt = SystemClock.uptimeMillis();
+        pollTimes[pollCount % RATE_WINDOW] = lastPollAt;
+        pollCount++;
+        pollAction.run();
+        handler.postDelayed(fire, currentIntervalMs());
+    }
+
+    private void reschedule() {
+        if (!running) return;
+        long interval = currentIntervalMs();
+        handler.removeCallbacks(fire);
+        long delay = Math.max(0, lastPollAt + interval - SystemClock.uptimeMillis());
+        handler.postDelayed(fire, delay);
+    }
+}
@@ -0,0 +1,87 @@
+package com.sharkcontrol.api;
+
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FailoverChannelTest {
+
+    /** Records writes; fails them with {@link #error} if set. */
+    private static final class FakeChannel implements DeviceChannel {
+        final List<String> writes = new ArrayList<>();
+        Exception error;
+        int reads;
+
+        @Override public boolean isAvailable(String dsn) { return true; }
+
+        @Override
+        public void readProperties(String dsn, PropertyQuery query, PropertyParser.Handler handler) throws Exception {
+            reads++;
+            if (error != null) throw error;
+        }
+
+        @Override
+        public void writeProperty(String dsn, String name, Object value) throws Exception {
+            writes.add(name + "=" + value);
+            if (error != null) throw error;
+        }
+    }
+
+    private final FakeChannel local = new FakeChannel(), cloud = new FakeChannel();
+    private final FailoverChannel channel = new FailoverChannel(local, cloud);
+
+    @Test
+    public void writeNotSentLocallyGoesToCloud() throws Exception {
+        local.error = new DeviceChannel.NotSentException("no route");
+        channel.writeProperty("D1", "SET_Operating_Mode", "stop");
+        assertEquals(Arrays.asList("SET_Operating_Mode=stop"), cloud.writes);
+
+        // The robot is skipped locally for a while
+        channel.writeProperty("D1", "SET_Operating_Mode", "start");
+        assertEquals(1, local.writes.size());
+        assertEquals(2, cloud.writes.size());
+    }
+
+    @Test
+    public void writeThatMayHaveArrivedIsNotRepeated() throws Exception {
+        local.error = new SocketTimeoutException("Read timed out");
+        try {
+            channel.writeProperty("D1", "SET_Operating_Mode", "stop");
+            fail("expected the local failure");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertEquals(0, cloud.writes.size());
+    }
+
+    @Test
+    public void readFallsBackOnAnyFailure() throws Exception {
+        local.error = new SocketTimeoutException("Read timed out");
+        channel.readProperties("D1", PropertyQuery.STATUS, (i, v) -> {});
+        assertEquals(1, local.reads);
+        assertEquals(1, cloud.reads);
+    }
+
+    @Test
+    public void robotThatDoesNotFetchFallsBackToCloudOnce() throws Exception {
+        try (FakeLanRobot robot = new FakeLanRobot()) {
+            LanChannel lan = new LanChannel();
+            lan.setKeySource(dsn -> new LanChannel.Key(FakeLanRobot.KEY_ID, FakeLanRobot.KEY, 30));
+            lan.setEnabled(true);
+            lan.register("D1", robot.lanIp());
+            robot.ignoreNotify = true;
+            try {
+                new FailoverChannel(lan, cloud).writeProperty("D1", "SET_Operating_Mode", "stop");
+            } finally {
+                lan.setEnabled(false);
+            }
+            assertEquals(Arrays.asList("SET_Operating_Mode=stop"), cloud.writes);
+            assertEquals(0, robot.writes.size());
+        }
+    }
+}
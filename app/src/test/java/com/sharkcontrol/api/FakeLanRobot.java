@@ -0,0 +1,132 @@
+package com.sharkcontrol.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in robot in Ayla LAN mode on 127.0.0.1: accepts registrations,
+ * connects back for the key exchange, fetches commands when notified,
+ * applies property writes and posts requested property values.
+ */
+final class FakeLanRobot implements AutoCloseable {
+
+    static final int KEY_ID = 7;
+    static final String KEY = "0123456789abcdef0123456789abcdef";
+
+    final Map<String, Object> properties = new ConcurrentHashMap<>();
+    final List<String> writes = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger keyExchanges = new AtomicInteger();
+    volatile boolean ignoreNotify;
+
+    private final LoopbackServer server;
+    private final ExecutorService robot = Executors.newSingleThreadExecutor(); // one thing at a time, like the firmware
+    private volatile String appBase;
+    private volatile LanCrypto crypto;
+    private int seqNo;
+
+    FakeLanRobot() throws IOException {
+        server = LoopbackServer.http().handle("/local_reg.json", this::localReg);
+    }
+
+    /** The writes applied so far, once there are {@code n} or after a second. */
+    List<String> awaitWrites(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (writes.size() < n && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        synchronized (writes) { return new ArrayList<>(writes); }
+    }
+
+    /** What the cloud reports as lan_ip. */
+    String lanIp() { return "127.0.0.1:" + server.port(); }
+
+    private void localReg(HttpExchange ex) throws IOException {
+        JSONObject reg = new JSONObject(LoopbackServer.readBody(ex)).getJSONObject("local_reg");
+        LoopbackServer.respond(ex, 202, "");
+        appBase = "http://" + reg.getString("ip") + ":" + reg.getInt("port") + reg.getString("uri");
+        if ("POST".equals(ex.getRequestMethod())) {
+            robot.execute(this::keyExchange);
+        } else if (reg.optInt("notify") == 1 && !ignoreNotify) {
+            robot.execute(this::fetchCommands);
+        }
+    }
+
+    private void keyExchange() {
+        try {
+            String random1 = "r1" + System.nanoTime();
+            long time1 = 4242;
+            JSONObject kx = new JSONObject().put("key_exchange", new JSONObject()
+                    .put("ver", 1).put("proto", 1).put("key_id", KEY_ID)
+                    .put("random_1", random1).put("time_1", time1));
+            String[] reply = call("POST", "/key_exchange.json", kx.toString());
+            if (!reply[0].equals("200")) return;
+            JSONObject json = new JSONObject(reply[1]);
+            crypto = new LanCrypto(KEY.getBytes(StandardCharsets.UTF_8), random1, json.getString("random_2"),
+                    time1, json.getLong("time_2"), false);
+            keyExchanges.incrementAndGet();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private void fetchCommands() {
+        try {
+            String[] reply = call("GET", "/commands.json", null);
+            if (!reply[0].equals("200")) return;
+            JSONObject sealed = new JSONObject(reply[1]);
+            JSONObject data = new JSONObject(crypto.open(sealed.getString("enc"), sealed.getString("sign")))
+                    .getJSONObject("data");
+            JSONArray props = data.optJSONArray("properties");
+            for (int i = 0; props != null && i < props.length(); i++) {
+                JSONObject p = props.getJSONObject(i).getJSONObject("property");
+                properties.put(p.getString("name"), p.get("value"));
+                writes.add(p.getString("name") + "=" + p.get("value"));
+            }
+            JSONArray cmds = data.optJSONArray("cmds");
+            for (int i = 0; cmds != null && i < cmds.length(); i++) {
+                JSONObject cmd = cmds.getJSONObject(i).getJSONObject("cmd");
+                String name = cmd.getString("resource").substring("property.json?name=".length());
+                JSONObject dp = new JSONObject().put("name", name);
+                if (properties.containsKey(name)) dp.put("value", properties.get(name));
+                String[] enc = crypto.seal(new JSONObject().put("seq_no", ++seqNo).put("data", dp).toString());
+                call("POST", "/property/datapoint.json?cmd_id=" + cmd.getInt("cmd_id"),
+                        new JSONObject().put("enc", enc[0]).put("sign", enc[1]).put("seq_no", seqNo).toString());
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    private String[] call(String method, String path, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(appBase + path).openConnection();
+        conn.setRequestMethod(method);
+        if (body != null) {
+            conn.setDoOutput(true);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int code = conn.getResponseCode();
+        BufferPool.Buffer buf = new BufferPool.Buffer();
+        if (code < 400) buf.readFully(conn.getInputStream());
+        conn.disconnect();
+        return new String[] {String.valueOf(code), new String(buf.bytes, 0, buf.length, StandardCharsets.UTF_8)};
+    }
+
+    @Override
+    public void close() {
+        server.close();
+        robot.shutdownNow();
+    }
+}
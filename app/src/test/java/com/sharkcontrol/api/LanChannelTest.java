@@ -0,0 +1,108 @@
+package com.sharkcontrol.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class LanChannelTest {
+
+    private FakeLanRobot robot;
+    private LanChannel lan;
+
+    @Before
+    public void setUp() throws Exception {
+        robot = new FakeLanRobot();
+        lan = new LanChannel();
+        lan.setKeySource(dsn -> new LanChannel.Key(FakeLanRobot.KEY_ID, FakeLanRobot.KEY, 30));
+        lan.setEnabled(true);
+        lan.register("D1", robot.lanIp());
+    }
+
+    @After
+    public void tearDown() {
+        lan.setEnabled(false);
+        robot.close();
+    }
+
+    @Test
+    public void writesReachTheRobotOverOneSession() throws Exception {
+        lan.writeProperty("D1", "SET_Operating_Mode", "stop");
+        lan.writeProperty("D1", "SET_Power_Mode", "eco");
+        assertEquals(Arrays.asList("SET_Operating_Mode=stop", "SET_Power_Mode=eco"), robot.awaitWrites(2));
+        assertEquals(1, robot.keyExchanges.get());
+    }
+
+    @Test
+    public void readsPropertiesFromTheRobot() throws Exception {
+        robot.properties.put("GET_Battery_Capacity", 87);
+        robot.properties.put("GET_Operating_Mode", "cleaning");
+        Map<String, String> read = new HashMap<>();
+        lan.readProperties("D1", PropertyQuery.STATUS, (i, v) -> read.put(PropertyQuery.STATUS.name(i), v.asString()));
+        assertEquals("87", read.get("GET_Battery_Capacity"));
+        assertEquals("cleaning", read.get("GET_Operating_Mode"));
+        assertNull(read.get("GET_Error_Code")); // the robot doesn't have it
+    }
+
+    @Test
+    public void writeTheRobotNeverFetchedIsWithdrawn() throws Exception {
+        robot.ignoreNotify = true;
+        try {
+            lan.writeProperty("D1", "SET_Operating_Mode", "start");
+            fail("expected NotSentException");
+        } catch (DeviceChannel.NotSentException expected) {
+        }
+        robot.ignoreNotify = false;
+        lan.writeProperty("D1", "SET_Operating_Mode", "stop");
+        assertEquals(Arrays.asList("SET_Operating_Mode=stop"), robot.awaitWrites(2));
+    }
+
+    @Test
+    public void writeTakenButSlowToReplyIsNotWithdrawn() throws Exception {
+        lan.writeProperty("D1", "SET_Power_Mode", "eco"); // session up
+        lan.beforeCommandsReply = () -> {
+            try { Thread.sleep(LanChannel.REPLY_TIMEOUT_MS + 500); } catch (InterruptedException ignored) {}
+        };
+        try {
+            lan.writeProperty("D1", "SET_Operating_Mode", "stop");
+            fail("expected a timeout");
+        } catch (DeviceChannel.NotSentException e) {
+            fail("a write the robot took must not be retried elsewhere");
+        } catch (IOException expected) {
+        }
+        assertEquals(Arrays.asList("SET_Power_Mode=eco", "SET_Operating_Mode=stop"), robot.awaitWrites(2));
+    }
+
+    @Test(expected = DeviceChannel.NotSentException.class)
+    public void wrongKeyIsNotSent() throws Exception {
+        lan.setKeySource(dsn -> new LanChannel.Key(FakeLanRobot.KEY_ID + 1, "other", 30));
+        lan.writeProperty("D1", "SET_Operating_Mode", "stop");
+    }
+
+    @Test(expected = DeviceChannel.NotSentException.class)
+    public void unreachableRobotIsNotSent() throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) { port = s.getLocalPort(); }
+        lan.register("D2", "127.0.0.1:" + port);
+        lan.writeProperty("D2", "SET_Operating_Mode", "stop");
+    }
+
+    @Test
+    public void onlyPrivateAddressesAreUsed() {
+        assertNull(LanChannel.lanAddress("8.8.8.8"));
+        assertNull(LanChannel.lanAddress("robot.example.com"));
+        assertEquals(80, LanChannel.lanAddress("192.168.1.20").getPort());
+        assertEquals(8080, LanChannel.lanAddress("10.0.0.5:8080").getPort());
+        lan.register("D3", "8.8.8.8");
+        assertEquals(false, lan.isAvailable("D3"));
+    }
+}
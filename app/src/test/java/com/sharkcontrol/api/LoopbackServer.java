@@ -0,0 +1,128 @@
+package com.sharkcontrol.api;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Stand-in server on 127.0.0.1 for transport tests. Serves HTTP or HTTPS
+ * with the self-signed localhost certificate in loopback.p12, and counts
+ * the connections clients opened, so reuse can be asserted. Also hands out
+ * the test certificates for tests that run their own TLS sockets.
+ */
+final class LoopbackServer implements AutoCloseable {
+
+    private static final char[] PASSWORD = "loopback".toCharArray();
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Set<InetSocketAddress> peers = Collections.synchronizedSet(new HashSet<>());
+    private final AtomicInteger requests = new AtomicInteger();
+    private final String scheme;
+
+    private LoopbackServer(HttpServer server, String scheme) {
+        this.server = server;
+        this.scheme = scheme;
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    static LoopbackServer http() throws IOException {
+        return new LoopbackServer(HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0), "http");
+    }
+
+    static LoopbackServer https() throws Exception {
+        HttpsServer s = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        s.setHttpsConfigurator(new HttpsConfigurator(sslContext()));
+        return new LoopbackServer(s, "https");
+    }
+
+    /** Trusts and presents the localhost certificate; clients use its socket factory. */
+    static SSLContext sslContext() throws Exception {
+        return sslContext(keyStore("loopback.p12"), keyStore("loopback.p12"));
+    }
+
+    /** Presents the certificate in {@code keys} and trusts those in {@code trusted}. */
+    static SSLContext sslContext(KeyStore keys, KeyStore trusted) throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, PASSWORD);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trusted);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return ctx;
+    }
+
+    /** A test key store: loopback.p12 for localhost, elsewhere.p12 for elsewhere.example. */
+    static KeyStore keyStore(String resource) throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = LoopbackServer.class.getClassLoader().getResourceAsStream(resource)) {
+            ks.load(in, PASSWORD);
+        }
+        return ks;
+    }
+
+    LoopbackServer handle(String path, HttpHandler handler) {
+        server.createContext(path, exchange -> {
+            requests.incrementAndGet();
+            peers.add(exchange.getRemoteAddress());
+            try {
+                handler.handle(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        return this;
+    }
+
+    String url(String path) {
+        return scheme + "://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    int port() { return server.getAddress().getPort(); }
+
+    /** Distinct client connections that sent at least one request. */
+    int connections() { return peers.size(); }
+
+    int requests() { return requests.get(); }
+
+    static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length == 0) return;
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static String readBody(HttpExchange exchange) throws IOException {
+        BufferPool.Buffer buf = new BufferPool.Buffer();
+        buf.readFully(exchange.getRequestBody());
+        return new String(buf.bytes, 0, buf.length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,102 @@
+package com.sharkcontrol.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestSchedulerTest {
+
+    private RequestScheduler scheduler;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = RequestScheduler.acquire();
+        // Occupy BULK's only slot so everything after it stays queued
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(RequestScheduler.Lane.BULK, null, () -> {
+            started.countDown();
+            await(release);
+        }, null);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        RequestScheduler.release(scheduler);
+    }
+
+    @Test
+    public void replacedTaskIsToldItWasDropped() throws Exception {
+        AtomicInteger firstRan = new AtomicInteger(), firstDropped = new AtomicInteger();
+        CountDownLatch secondRan = new CountDownLatch(1);
+        scheduler.submit(RequestScheduler.Lane.BULK, "D1/map", firstRan::incrementAndGet, firstDropped::incrementAndGet);
+        scheduler.submit(RequestScheduler.Lane.BULK, "D1/map", secondRan::countDown, null);
+        assertEquals(1, firstDropped.get());
+
+        release.countDown();
+        assertTrue(secondRan.await(5, TimeUnit.SECONDS));
+        assertEquals(0, firstRan.get());
+        assertEquals(1, scheduler.droppedCount());
+    }
+
+    @Test
+    public void fullLaneShedsOldestAndTellsIt() throws Exception {
+        int max = RequestScheduler.Lane.BULK.maxQueued;
+        AtomicInteger dropped = new AtomicInteger();
+        CountDownLatch ran = new CountDownLatch(max);
+        for (int i = 0; i <= max; i++) {
+            int n = i;
+            scheduler.submit(RequestScheduler.Lane.BULK, null, ran::countDown, () -> dropped.addAndGet(n == 0 ? 1 : 100));
+        }
+        assertEquals(1, dropped.get());
+        release.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void commandRunsWhileLowerLanesAreBusy() throws Exception {
+        CountDownLatch hold = new CountDownLatch(1);
+        for (RequestScheduler.Lane lane : RequestScheduler.Lane.values()) {
+            if (lane == RequestScheduler.Lane.COMMAND) continue;
+            for (int i = 0; i < lane.maxRunning + 2; i++) scheduler.submit(lane, null, () -> await(hold), null);
+        }
+        CountDownLatch command = new CountDownLatch(1);
+        scheduler.submit(RequestScheduler.Lane.COMMAND, null, command::countDown, null);
+        try {
+            assertTrue(command.await(5, TimeUnit.SECONDS));
+        } finally {
+            hold.countDown();
+        }
+    }
+
+    @Test
+    public void queuedAndLateTasksAreDroppedOnShutdown() throws Exception {
+        AtomicInteger ran = new AtomicInteger(), dropped = new AtomicInteger();
+        scheduler.submit(RequestScheduler.Lane.BULK, "D1/schedule-edits", ran::incrementAndGet, dropped::incrementAndGet);
+        RequestScheduler.release(scheduler);
+        assertEquals(1, dropped.get());
+
+        scheduler.submit(RequestScheduler.Lane.COMMAND, null, ran::incrementAndGet, dropped::incrementAndGet);
+        assertEquals(2, dropped.get());
+        release.countDown();
+        Thread.sleep(100);
+        assertEquals(0, ran.get());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
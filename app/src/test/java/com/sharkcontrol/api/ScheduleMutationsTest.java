@@ -0,0 +1,86 @@
+package com.sharkcontrol.api;
+
+import com.sharkcontrol.model.Schedule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ScheduleMutationsTest {
+
+    /** The datapoint history; {@link #interleave} runs once, right after the app's next write. */
+    private static final class FakeRemote implements ScheduleMutations.Remote {
+        List<Schedule> latest = new ArrayList<>();
+        int version, writes;
+        Runnable interleave;
+
+        @Override
+        public synchronized ScheduleMutations.Snapshot read(String dsn) {
+            return new ScheduleMutations.Snapshot(new ArrayList<>(latest), "v" + version);
+        }
+
+        @Override
+        public synchronized String write(String dsn, List<Schedule> schedules) {
+            writes++;
+            latest = new ArrayList<>(schedules);
+            String mine = "v" + ++version;
+            Runnable other = interleave;
+            interleave = null;
+            if (other != null) other.run();
+            return mine;
+        }
+
+        /** Another app's write. */
+        synchronized void post(Schedule s) {
+            latest.add(s);
+            version++;
+        }
+    }
+
+    private static Schedule schedule(String id) {
+        Schedule s = new Schedule();
+        s.setId(id);
+        return s;
+    }
+
+    private static List<String> ids(List<Schedule> schedules) {
+        List<String> ids = new ArrayList<>();
+        for (Schedule s : schedules) ids.add(s.getId());
+        return ids;
+    }
+
+    private static List<Schedule> drain(String dsn, FakeRemote remote, Schedule s) {
+        ScheduleMutations m = ScheduleMutations.forDevice(dsn);
+        List<List<Schedule>> result = new ArrayList<>();
+        m.submit(Collections.singletonList(ScheduleMutations.upsert(s)), new AylaApiClient.Callback<List<Schedule>>() {
+            @Override public void onSuccess(List<Schedule> written) { result.add(written); }
+            @Override public void onError(String error) { throw new AssertionError(error); }
+        });
+        m.drain(remote);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    @Test
+    public void writeOverwrittenByAnotherWriterIsReapplied() {
+        FakeRemote remote = new FakeRemote();
+        remote.interleave = () -> remote.post(schedule("theirs"));
+        List<Schedule> written = drain("ScheduleMutationsTest-1", remote, schedule("ours"));
+        assertNotNull(written);
+        assertEquals(2, remote.writes);
+        assertEquals(ids(remote.latest), ids(written));
+        assertEquals(2, remote.latest.size());
+    }
+
+    @Test
+    public void uncontestedWriteIsWrittenOnce() {
+        FakeRemote remote = new FakeRemote();
+        remote.post(schedule("theirs"));
+        drain("ScheduleMutationsTest-2", remote, schedule("ours"));
+        assertEquals(1, remote.writes);
+        assertEquals(2, remote.latest.size());
+    }
+}
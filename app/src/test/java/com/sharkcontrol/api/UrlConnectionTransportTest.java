@@ -0,0 +1,105 @@
+package com.sharkcontrol.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class UrlConnectionTransportTest {
+
+    private static final String STATUS = "[{\"property\":{\"name\":\"GET_Battery_Capacity\",\"value\":87}}]";
+
+    private LoopbackServer server;
+    private UrlConnectionTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = LoopbackServer.https()
+                .handle("/status", ex -> LoopbackServer.respond(ex, 200, STATUS))
+                .handle("/big", ex -> LoopbackServer.respond(ex, 200, repeat('x', 32 * 1024)))
+                .handle("/gzip", ex -> {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (OutputStream gz = new GZIPOutputStream(bytes)) {
+                        gz.write(STATUS.getBytes(StandardCharsets.UTF_8));
+                    }
+                    ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                    ex.sendResponseHeaders(200, bytes.size());
+                    ex.getResponseBody().write(bytes.toByteArray());
+                })
+                .handle("/empty", ex -> {
+                    ex.getResponseHeaders().set("Content-Encoding", "gzip");
+                    ex.sendResponseHeaders(204, -1);
+                })
+                .handle("/echo", ex -> LoopbackServer.respond(ex, 200, LoopbackServer.readBody(ex)));
+        transport = new UrlConnectionTransport(LoopbackServer.sslContext().getSocketFactory());
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void sequentialRequestsShareOneTlsConnection() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            try (HttpTransport.Response res = transport.execute(HttpTransport.Request.get(server.url("/status")))) {
+                assertEquals(200, res.code());
+                assertEquals(STATUS, res.string());
+            }
+        }
+        assertEquals(20, transport.requestCount());
+        assertEquals(1, transport.tlsConnectionCount());
+        assertEquals(1, server.connections());
+    }
+
+    @Test
+    public void closingUnreadBodyKeepsConnectionReusable() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            transport.execute(HttpTransport.Request.get(server.url("/big"))).close();
+        }
+        try (HttpTransport.Response res = transport.execute(HttpTransport.Request.get(server.url("/status")))) {
+            assertEquals(STATUS, res.string());
+        }
+        assertEquals(1, transport.tlsConnectionCount());
+        assertEquals(1, server.connections());
+    }
+
+    @Test
+    public void postsReuseTheConnection() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            byte[] body = ("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8);
+            try (HttpTransport.Response res = transport.execute(
+                    HttpTransport.Request.post(server.url("/echo"), "application/json", body))) {
+                assertEquals("{\"n\":" + i + "}", res.string());
+            }
+        }
+        assertEquals(1, transport.tlsConnectionCount());
+    }
+
+    @Test
+    public void decodesGzipBody() throws Exception {
+        try (HttpTransport.Response res = transport.execute(HttpTransport.Request.get(server.url("/gzip")))) {
+            assertEquals(STATUS, res.string());
+        }
+    }
+
+    @Test
+    public void emptyGzipBodyReadsAsEmpty() throws Exception {
+        try (HttpTransport.Response res = transport.execute(HttpTransport.Request.get(server.url("/empty")))) {
+            assertEquals(204, res.code());
+            assertEquals("", res.string());
+        }
+    }
+
+    private static String repeat(char c, int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++) sb.append(c);
+        return sb.toString();
+    }
+}
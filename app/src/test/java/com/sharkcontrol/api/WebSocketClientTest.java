@@ -0,0 +1,124 @@
+package com.sharkcontrol.api;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WebSocketClientTest {
+
+    /** Answers one WebSocket upgrade with a text message and a close. */
+    private static final class WssServer implements AutoCloseable {
+        final SSLServerSocket socket;
+        volatile List<SNIServerName> serverNames;
+        volatile String requestLine;
+
+        WssServer(SSLContext ctx) throws IOException {
+            socket = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            Thread t = new Thread(this::serve, "wss-server");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private void serve() {
+            try (SSLSocket c = (SSLSocket) socket.accept()) {
+                c.startHandshake();
+                serverNames = ((ExtendedSSLSession) c.getSession()).getRequestedServerNames();
+                BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.US_ASCII));
+                requestLine = in.readLine();
+                String key = null;
+                for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine()) {
+                    if (line.startsWith("Sec-WebSocket-Key:")) key = line.substring(18).trim();
+                }
+                byte[] sha1 = MessageDigest.getInstance("SHA-1")
+                        .digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.US_ASCII));
+                OutputStream out = c.getOutputStream();
+                out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(sha1) + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                byte[] text = "{\"seq\":1}".getBytes(StandardCharsets.UTF_8);
+                out.write(new byte[] {(byte) 0x81, (byte) text.length});
+                out.write(text);
+                out.write(new byte[] {(byte) 0x88, 0});
+                out.flush();
+                c.getInputStream().read(); // the client's close
+            } catch (Exception ignored) {
+                // handshake refused by the client
+            }
+        }
+
+        URI uri(String host) {
+            return URI.create("wss://" + host + ":" + socket.getLocalPort() + "/stream?stream_key=secret");
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private WssServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) server.close();
+    }
+
+    /** Trusts both test certificates, so only the host name decides. */
+    private static SSLContext client() throws Exception {
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        trusted.load(null, null);
+        trusted.setCertificateEntry("loopback", LoopbackServer.keyStore("loopback.p12").getCertificate("loopback"));
+        trusted.setCertificateEntry("elsewhere", LoopbackServer.keyStore("elsewhere.p12").getCertificate("elsewhere"));
+        return LoopbackServer.sslContext(LoopbackServer.keyStore("loopback.p12"), trusted);
+    }
+
+    @Test
+    public void sendsSniAndReadsMessages() throws Exception {
+        server = new WssServer(LoopbackServer.sslContext());
+        WebSocketClient ws = new WebSocketClient(server.uri("localhost"), 5000, client().getSocketFactory());
+        ws.connect();
+        List<String> messages = new ArrayList<>();
+        ws.run(messages::add);
+        assertEquals(1, messages.size());
+        assertEquals("{\"seq\":1}", messages.get(0));
+        assertTrue(server.serverNames.contains(new SNIHostName("localhost")));
+        assertEquals("GET /stream?stream_key=secret HTTP/1.1", server.requestLine);
+    }
+
+    @Test
+    public void refusesCertificateForAnotherHost() throws Exception {
+        KeyStore elsewhere = LoopbackServer.keyStore("elsewhere.p12");
+        server = new WssServer(LoopbackServer.sslContext(elsewhere, elsewhere));
+        WebSocketClient ws = new WebSocketClient(server.uri("localhost"), 5000, client().getSocketFactory());
+        try {
+            ws.connect();
+            fail("connected to a server with someone else's certificate");
+        } catch (IOException expected) {
+        }
+        Thread.sleep(100);
+        assertNull(server.requestLine); // the stream key never left
+    }
+}
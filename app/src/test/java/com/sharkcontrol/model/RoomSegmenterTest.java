@@ -0,0 +1,85 @@
+package com.sharkcontrol.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RoomSegmenterTest {
+
+    // Two 40x40 rooms side by side, a two cell wall between them with a 10 cell doorway
+    private static final int W = 84, H = 42;
+
+    private static byte[] twoRooms() {
+        byte[] cells = new byte[W * H];
+        Arrays.fill(cells, (byte) MapData.CELL_FLOOR);
+        for (int x = 0; x < W; x++) { wall(cells, x, 0); wall(cells, x, H - 1); }
+        for (int y = 0; y < H; y++) {
+            wall(cells, 0, y);
+            wall(cells, W - 1, y);
+            if (y < 16 || y > 25) { wall(cells, 41, y); wall(cells, 42, y); }
+        }
+        return cells;
+    }
+
+    private static void wall(byte[] cells, int x, int y) {
+        cells[y * W + x] = MapData.CELL_WALL;
+    }
+
+    private static List<Room> segment(String dsn, byte[] cells) {
+        MapData map = new MapData();
+        map.setGrid(W, H, cells);
+        return RoomSegmenter.forDevice(dsn).segment(map);
+    }
+
+    /** The doorway itself may go to either room. */
+    private static void assertTwoRooms(List<Room> rooms) {
+        assertEquals(2, rooms.size());
+        Room first = rooms.get(0), second = rooms.get(1);
+        assertEquals(Arrays.asList(1, 1, 40), Arrays.asList(first.getLeft(), first.getTop(), first.getBottom()));
+        assertEquals(Arrays.asList(1, 82, 40), Arrays.asList(second.getTop(), second.getRight(), second.getBottom()));
+        assertTrue(first.getRight() >= 40 && first.getRight() <= 42);
+        assertTrue(second.getLeft() >= 41 && second.getLeft() <= 43);
+    }
+
+    @Test
+    public void doorwaySeparatesTwoRooms() {
+        assertTwoRooms(segment("RoomSegmenterTest-empty", twoRooms()));
+    }
+
+    @Test
+    public void gapsAroundFurnitureAreNotDoorways() {
+        byte[] cells = twoRooms();
+        // A table in the first room, 10 cells from every wall
+        for (int y = 11; y <= 30; y++) for (int x = 11; x <= 30; x++) wall(cells, x, y);
+        List<Room> rooms = segment("RoomSegmenterTest-table", cells);
+        assertTwoRooms(rooms);
+        assertTrue(rooms.get(0).getCells() < 40 * 40 - 20 * 20 + 2 * 10 + 1);
+        assertTrue(rooms.get(1).getCells() < 40 * 40 + 2 * 10 + 1);
+    }
+
+    @Test
+    public void refreshWithDiffMatchesFullSegmentation() {
+        RoomSegmenter segmenter = RoomSegmenter.forDevice("RoomSegmenterTest-diff");
+        MapData before = new MapData();
+        before.setGrid(W, H, twoRooms());
+        segmenter.segment(before);
+
+        byte[] cells = twoRooms();
+        for (int y = 11; y <= 30; y++) for (int x = 11; x <= 30; x++) wall(cells, x, y);
+        MapData after = new MapData();
+        after.setGrid(W, H, cells);
+        after.setChanges(MapDiff.between(before, after));
+        List<Room> patched = segmenter.segment(after);
+        List<Room> full = segment("RoomSegmenterTest-full", cells);
+        assertEquals(full.size(), patched.size());
+        for (int i = 0; i < full.size(); i++) {
+            Room f = full.get(i), p = patched.get(i);
+            assertEquals(Arrays.asList(f.getCells(), f.getLeft(), f.getTop(), f.getRight(), f.getBottom()),
+                    Arrays.asList(p.getCells(), p.getLeft(), p.getTop(), p.getRight(), p.getBottom()));
+        }
+    }
+}
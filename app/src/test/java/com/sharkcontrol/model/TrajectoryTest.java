@@ -0,0 +1,40 @@
+package com.sharkcontrol.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TrajectoryTest {
+
+    private final Trajectory path = Trajectory.forDevice("TrajectoryTest");
+    private final int[] outX = new int[Trajectory.CAPACITY], outY = new int[Trajectory.CAPACITY];
+
+    @Before
+    public void setUp() {
+        path.startRun();
+    }
+
+    @Test
+    public void keepsTheTurnOfAnOutAndBackPath() {
+        path.add(0, 10);
+        path.add(40, 10);
+        path.add(5, 10);
+        int n = path.simplify(0.5f, outX, outY);
+        assertEquals(3, n);
+        assertArrayEquals(new int[] {0, 40, 5}, Arrays.copyOf(outX, n));
+    }
+
+    @Test
+    public void dropsPointsOnAStraightStretch() {
+        for (int x = 0; x <= 20; x++) path.add(x, 3);
+        path.add(20, 10);
+        int n = path.simplify(0.5f, outX, outY);
+        assertEquals(3, n);
+        assertArrayEquals(new int[] {0, 20, 20}, Arrays.copyOf(outX, n));
+        assertArrayEquals(new int[] {3, 3, 10}, Arrays.copyOf(outY, n));
+    }
+}